@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of appending one event to each of a number of aggregates in a
+ * single commit.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+    /**
+     * Aggregates are replaced by new ones after this many events, so that
+     * every iteration appends to streams of comparable length.
+     */
+    private static final int EVENTS_PER_AGGREGATE = 1000;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    @Param({"DOCUMENT_PER_AGGREGATE", "DOCUMENT_PER_COMMIT"})
+    private StorageStrategyType strategy;
+
+    @Param({"1", "10"})
+    private int aggregatesPerCommit;
+
+    private CouchbaseEventStoreEngine engine;
+    private String thread;
+    private int generation;
+    private long sequenceNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = strategy.createEngine(FormatType.VERBOSE.format(), new InMemoryCouchbaseTemplate());
+        thread = "t" + THREADS.incrementAndGet();
+    }
+
+    @Benchmark
+    public void append() {
+        if (sequenceNumber == EVENTS_PER_AGGREGATE) {
+            generation++;
+            sequenceNumber = 0;
+        }
+        List<DomainEventMessage<?>> events = new ArrayList<>(aggregatesPerCommit);
+        for (int i = 0; i < aggregatesPerCommit; i++) {
+            events.add(StorageStrategyType.event(thread + "-" + generation + "-" + i, sequenceNumber));
+        }
+        engine.appendEvents(events);
+        sequenceNumber++;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntry;
+import java.util.concurrent.TimeUnit;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning an event into its stored form and back, excluding the
+ * serialization of the payload object itself.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventEntryBenchmark {
+
+    @Param({"VERBOSE", "COMPACT", "COMPACT_DEFLATED"})
+    private FormatType format;
+
+    private EventEntry entry;
+    private JsonObject encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Serializer serializer = new XStreamSerializer();
+        DomainEventMessage<?> event = StorageStrategyType.event("aggregate", 42);
+        entry = new EventEntry(event, serializer, 4711);
+        encoded = format.format().encode(entry, false);
+    }
+
+    @Benchmark
+    public JsonObject encode() {
+        return format.format().encode(entry, false);
+    }
+
+    @Benchmark
+    public JsonObject encodeToJson() {
+        return JsonObject.fromJson(format.format().encode(entry, false).toString());
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        EventEntry decoded = new EventEntry(encoded);
+        blackhole.consume(decoded.getTimestamp());
+        blackhole.consume(decoded.getPayload().getData());
+        blackhole.consume(decoded.getMetaData().getData());
+    }
+
+    @Benchmark
+    public void decodeFromJson(Blackhole blackhole) {
+        EventEntry decoded = new EventEntry(JsonObject.fromJson(encoded.toString()));
+        blackhole.consume(decoded.getTimestamp());
+        blackhole.consume(decoded.getPayload().getData());
+        blackhole.consume(decoded.getMetaData().getData());
+    }
+
+}
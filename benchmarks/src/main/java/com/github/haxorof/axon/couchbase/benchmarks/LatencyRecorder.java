@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latencies of one kind of operation, recorded by a single
+ * thread, and summarizes them as percentiles.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class LatencyRecorder {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+
+    public void record(long nanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+    }
+
+    public void recordError() {
+        errors++;
+    }
+
+    /**
+     * Adds the latencies recorded by another recorder to this one.
+     *
+     * @param other the recorder to add
+     */
+    public void add(LatencyRecorder other) {
+        if (count + other.count > latencies.length) {
+            latencies = Arrays.copyOf(latencies, count + other.count);
+        }
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        errors += other.errors;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Formats throughput and latency percentiles, in milliseconds, of the
+     * recorded operations.
+     *
+     * @param name name of the operation
+     * @param seconds duration in which the operations were recorded
+     * @return one line summary
+     */
+    public String summary(String name, double seconds) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return String.format("%-10s %10d %10.1f %8d %9.3f %9.3f %9.3f %9.3f %9.3f", name, count, count / seconds, errors,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    public static String header() {
+        return String.format("%-10s %10s %10s %8s %9s %9s %9s %9s %9s", "operation", "count", "ops/s", "errors",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+    }
+
+}
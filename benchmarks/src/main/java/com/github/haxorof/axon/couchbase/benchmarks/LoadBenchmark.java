@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.util.concurrent.TimeUnit;
+import org.axonframework.eventsourcing.eventstore.DomainEventStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Latency of loading and deserializing the full event stream of an aggregate,
+ * by length of its history.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+
+    private static final String AGGREGATE_IDENTIFIER = "aggregate";
+
+    @Param({"DOCUMENT_PER_AGGREGATE", "DOCUMENT_PER_COMMIT"})
+    private StorageStrategyType strategy;
+
+    @Param({"VERBOSE", "COMPACT"})
+    private FormatType format;
+
+    @Param({"10", "100", "1000"})
+    private int historyLength;
+
+    private CouchbaseEventStoreEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = strategy.createEngine(format.format(), new InMemoryCouchbaseTemplate());
+        for (int i = 0; i < historyLength; i++) {
+            engine.appendEvents(StorageStrategyType.event(AGGREGATE_IDENTIFIER, i));
+        }
+    }
+
+    @Benchmark
+    public void load(Blackhole blackhole) {
+        DomainEventStream stream = engine.readEvents(AGGREGATE_IDENTIFIER);
+        while (stream.hasNext()) {
+            blackhole.consume(stream.next().getPayload());
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ChangeFeedEventSource;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.LatencyDistribution;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.SimulatedClusterFacade;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.NoOpCouchbaseStoreMonitor;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.StatisticsCouchbaseStoreMonitor;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventStream;
+import org.axonframework.eventsourcing.eventstore.TrackingEventStream;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+
+/**
+ * Drives a mixed workload against an event store on a
+ * {@link SimulatedClusterFacade} and reports throughput and latency
+ * percentiles per operation.
+ * <p>
+ * Command threads repeatedly load a random aggregate, append an event to it
+ * and now and then store a snapshot, so that commands on the same aggregate
+ * conflict as they would in production. Projection threads each follow the
+ * global event stream like a tracking event processor, either polling the
+ * store or following its mutation feed, and record the lag between the
+ * creation of an event and its delivery.
+ * <p>
+ * Options are given as {@code name=value} arguments, see {@link #OPTIONS}.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class LoadDriver {
+
+    /**
+     * Options with their default values.
+     */
+    public static final String[][] OPTIONS = {
+        {"strategy", "DOCUMENT_PER_AGGREGATE", "storage strategy"},
+        {"format", "VERBOSE", "event entry format"},
+        {"commandThreads", "8", "number of threads executing commands"},
+        {"projectionThreads", "2", "number of threads following the global event stream"},
+        {"aggregates", "1000", "number of aggregates the commands are spread over"},
+        {"snapshotInterval", "50", "number of events between snapshots of an aggregate, 0 for none"},
+        {"trackingBatchSize", "100", "maximum number of events read per batch by projections"},
+        {"changeFeed", "false", "whether projections follow the mutation feed instead of polling"},
+        {"warmup", "10", "seconds to run before recording"},
+        {"duration", "30", "seconds to record"},
+        {"latencyMedianMicros", "300", "median latency of every operation"},
+        {"latencyP99Micros", "2000", "99th percentile latency of every operation"},
+        {"timeoutProbability", "0.0001", "probability that an operation times out"},
+        {"timeoutMillis", "2500", "time after which an operation times out"},
+        {"casConflictProbability", "0.01", "probability that a CAS protected write conflicts"},
+        {"maxDocumentSize", String.valueOf(SimulatedClusterFacade.DEFAULT_MAX_DOCUMENT_SIZE), "maximum document size in bytes"}
+    };
+
+    private final Map<String, String> options = new HashMap<>();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    public LoadDriver(String[] args) {
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            String[] nameAndValue = arg.split("=", 2);
+            if (nameAndValue.length != 2 || !options.containsKey(nameAndValue[0])) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+            options.put(nameAndValue[0], nameAndValue[1]);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 1 && ("-h".equals(args[0]) || "--help".equals(args[0]))) {
+            for (String[] option : OPTIONS) {
+                System.out.printf("  %-24s %s (default %s)%n", option[0], option[2], option[1]);
+            }
+            return;
+        }
+        new LoadDriver(args).run();
+    }
+
+    public void run() throws InterruptedException {
+        SimulatedClusterFacade facade = new SimulatedClusterFacade(intOption("maxDocumentSize"))
+                .latency(LatencyDistribution.logNormal(intOption("latencyMedianMicros"), intOption("latencyP99Micros"),
+                        TimeUnit.MICROSECONDS))
+                .timeouts(Double.parseDouble(options.get("timeoutProbability")), intOption("timeoutMillis"),
+                        TimeUnit.MILLISECONDS)
+                .casConflicts(Double.parseDouble(options.get("casConflictProbability")));
+        AbstractCouchbaseStoreStrategy strategy = StorageStrategyType.valueOf(options.get("strategy"))
+                .create(FormatType.valueOf(options.get("format")).format());
+        CouchbaseEventStoreEngine engine = StorageStrategyType.createEngine(strategy, new InMemoryCouchbaseTemplate(facade));
+        StatisticsCouchbaseStoreMonitor monitor = new StatisticsCouchbaseStoreMonitor(true);
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < intOption("commandThreads"); i++) {
+            workers.add(new CommandWorker(engine));
+        }
+        ChangeFeedEventSource source = new ChangeFeedEventSource(engine, facade, intOption("trackingBatchSize"));
+        for (int i = 0; i < intOption("projectionThreads"); i++) {
+            workers.add(Boolean.parseBoolean(options.get("changeFeed")) ? new FeedProjectionWorker(source) : new ProjectionWorker(engine));
+        }
+        workers.forEach(Thread::start);
+        TimeUnit.SECONDS.sleep(intOption("warmup"));
+        long requestsBefore = facade.getRequestCount();
+        long timeoutsBefore = facade.getTimeoutCount();
+        long conflictsBefore = facade.getCasConflictCount();
+        strategy.setMonitor(monitor);
+        long start = System.nanoTime();
+        recording = true;
+        TimeUnit.SECONDS.sleep(intOption("duration"));
+        recording = false;
+        strategy.setMonitor(NoOpCouchbaseStoreMonitor.INSTANCE);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Worker worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(intOption("timeoutMillis") / 1000 + 10));
+        }
+        facade.shutdown();
+
+        Map<String, LatencyRecorder> totals = new HashMap<>();
+        for (Worker worker : workers) {
+            worker.recorders.forEach((name, recorder) -> totals.computeIfAbsent(name, n -> new LatencyRecorder()).add(recorder));
+        }
+        System.out.println("Options: " + options);
+        System.out.printf("Simulated requests: %d (%.1f/s), timeouts: %d, CAS conflicts: %d, documents: %d%n",
+                facade.getRequestCount() - requestsBefore, (facade.getRequestCount() - requestsBefore) / seconds,
+                facade.getTimeoutCount() - timeoutsBefore, facade.getCasConflictCount() - conflictsBefore, facade.size());
+        System.out.println(LatencyRecorder.header());
+        for (String name : new String[]{"load", "append", "snapshot", "command", "track", "lag"}) {
+            LatencyRecorder recorder = totals.get(name);
+            if (recorder != null) {
+                System.out.println(recorder.summary(name, seconds));
+            }
+        }
+        System.out.println("Store operations:");
+        System.out.print(monitor);
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private abstract class Worker extends Thread {
+
+        private final Map<String, LatencyRecorder> recorders = new HashMap<>();
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                work();
+            }
+        }
+
+        protected abstract void work();
+
+        /**
+         * Runs an operation, recording its latency while the driver records.
+         */
+        protected <T> T timed(String name, Supplier<T> operation) {
+            long start = System.nanoTime();
+            try {
+                T result = operation.get();
+                if (recording) {
+                    recorder(name).record(System.nanoTime() - start);
+                }
+                return result;
+            } catch (RuntimeException e) {
+                if (recording) {
+                    recorder(name).recordError();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Records the time since an event was created while the driver
+         * records.
+         */
+        protected void lag(TrackedEventMessage<?> event) {
+            if (recording) {
+                recorder("lag").record(Duration.between(event.getTimestamp(), Instant.now()).toNanos());
+            }
+        }
+
+        private LatencyRecorder recorder(String name) {
+            return recorders.computeIfAbsent(name, n -> new LatencyRecorder());
+        }
+    }
+
+    private class CommandWorker extends Worker {
+
+        private final CouchbaseEventStoreEngine engine;
+        private final int aggregates = intOption("aggregates");
+        private final int snapshotInterval = intOption("snapshotInterval");
+
+        CommandWorker(CouchbaseEventStoreEngine engine) {
+            super("command");
+            this.engine = engine;
+        }
+
+        @Override
+        protected void work() {
+            String aggregateIdentifier = "aggregate-" + ThreadLocalRandom.current().nextInt(aggregates);
+            try {
+                timed("command", () -> {
+                    Long lastSequenceNumber = timed("load", () -> {
+                        DomainEventStream stream = engine.readEvents(aggregateIdentifier);
+                        while (stream.hasNext()) {
+                            stream.next().getPayload();
+                        }
+                        return stream.getLastSequenceNumber();
+                    });
+                    long sequenceNumber = lastSequenceNumber == null ? 0 : lastSequenceNumber + 1;
+                    timed("append", () -> {
+                        engine.appendEvents(StorageStrategyType.event(aggregateIdentifier, sequenceNumber));
+                        return null;
+                    });
+                    if (snapshotInterval > 0 && sequenceNumber > 0 && sequenceNumber % snapshotInterval == 0) {
+                        timed("snapshot", () -> {
+                            DomainEventMessage<?> snapshot = new GenericDomainEventMessage<>("BenchmarkAggregate",
+                                    aggregateIdentifier, sequenceNumber,
+                                    new StorageStrategyType.SampleEvent(aggregateIdentifier, sequenceNumber));
+                            engine.storeSnapshot(snapshot);
+                            return null;
+                        });
+                    }
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                // Recorded as an error of the operation which failed
+            }
+        }
+    }
+
+    private class ProjectionWorker extends Worker {
+
+        private final CouchbaseEventStoreEngine engine;
+        private final int batchSize = intOption("trackingBatchSize");
+        private TrackingToken token;
+
+        ProjectionWorker(CouchbaseEventStoreEngine engine) {
+            super("projection");
+            this.engine = engine;
+        }
+
+        @Override
+        protected void work() {
+            try {
+                List<TrackedEventMessage<?>> batch = timed("track", () -> {
+                    List<TrackedEventMessage<?>> events = new ArrayList<>(batchSize);
+                    try (Stream<? extends TrackedEventMessage<?>> stream = engine.readEvents(token, false)) {
+                        Iterator<? extends TrackedEventMessage<?>> iterator = stream.iterator();
+                        while (events.size() < batchSize && iterator.hasNext()) {
+                            TrackedEventMessage<?> event = iterator.next();
+                            event.getPayload();
+                            lag(event);
+                            events.add(event);
+                        }
+                    }
+                    return events;
+                });
+                if (batch.isEmpty()) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } else {
+                    token = batch.get(batch.size() - 1).trackingToken();
+                }
+            } catch (RuntimeException e) {
+                // Recorded as an error of the operation
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class FeedProjectionWorker extends Worker {
+
+        private final TrackingEventStream stream;
+
+        FeedProjectionWorker(ChangeFeedEventSource source) {
+            super("feed-projection");
+            this.stream = source.openStream(null);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                stream.close();
+            }
+        }
+
+        @Override
+        protected void work() {
+            try {
+                if (stream.hasNextAvailable(100, TimeUnit.MILLISECONDS)) {
+                    TrackedEventMessage<?> event = stream.nextAvailable();
+                    event.getPayload();
+                    lag(event);
+                }
+            } catch (RuntimeException e) {
+                // Retried on the next call, like a tracking processor does
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
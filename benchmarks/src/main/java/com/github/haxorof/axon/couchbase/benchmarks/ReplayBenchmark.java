@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to replay the whole global event stream when every thread of a
+ * tracking processor reads its own segment, for a striped and an unstriped
+ * event log.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+    private static final int AGGREGATES = 256;
+    private static final int EVENTS = 20000;
+
+    @Param({"1", "8"})
+    private int stripes;
+
+    @Param({"1", "2", "8"})
+    private int segments;
+
+    private CouchbaseEventStoreEngine engine;
+    private ExecutorService executor;
+    private List<Segment> processorSegments;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = StorageStrategyType.createEngine(
+                new DocumentPerAggregateStorageStrategy(new GlobalEventLog(GlobalEventLog.DEFAULT_PAGE_SIZE, stripes)),
+                new InMemoryCouchbaseTemplate());
+        for (int i = 0; i < EVENTS / AGGREGATES; i++) {
+            List<DomainEventMessage<?>> events = new ArrayList<>(AGGREGATES);
+            for (int j = 0; j < AGGREGATES; j++) {
+                events.add(StorageStrategyType.event("aggregate-" + j, i));
+            }
+            engine.appendEvents(events);
+        }
+        processorSegments = Arrays.asList(Segment.computeSegments(IntStream.range(0, segments).toArray()));
+        executor = Executors.newFixedThreadPool(segments);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long replay() throws Exception {
+        List<Future<Long>> counts = new ArrayList<>();
+        for (Segment segment : processorSegments) {
+            counts.add(executor.submit(() -> engine.readEvents(segment, null).count()));
+        }
+        long total = 0;
+        for (Future<Long> count : counts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+}
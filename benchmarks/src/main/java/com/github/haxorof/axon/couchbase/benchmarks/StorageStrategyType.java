@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntryFormat;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentpercommit.DocumentPerCommitStorageStrategy;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.serialization.xml.XStreamSerializer;
+
+/**
+ * Storage strategies compared by the benchmarks.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public enum StorageStrategyType {
+
+    DOCUMENT_PER_AGGREGATE {
+        @Override
+        public AbstractCouchbaseStoreStrategy create(EventEntryFormat format) {
+            return new DocumentPerAggregateStorageStrategy(new GlobalEventLog(), DocumentPerAggregateStorageStrategy.DEFAULT_SEGMENT_SIZE,
+                    DocumentPerAggregateStorageStrategy.DEFAULT_MAX_CONCURRENT_WRITES, format);
+        }
+    },
+    DOCUMENT_PER_COMMIT {
+        @Override
+        public AbstractCouchbaseStoreStrategy create(EventEntryFormat format) {
+            return new DocumentPerCommitStorageStrategy(new GlobalEventLog(), DocumentPerCommitStorageStrategy.DEFAULT_MAX_CONCURRENT_WRITES, format);
+        }
+    };
+
+    /**
+     * Number of events fetched per batch by the engines of the benchmarks.
+     */
+    public static final int BATCH_SIZE = 100;
+
+    public abstract AbstractCouchbaseStoreStrategy create(EventEntryFormat format);
+
+    public CouchbaseEventStoreEngine createEngine(EventEntryFormat format, CouchbaseTemplate template) {
+        return createEngine(create(format), template);
+    }
+
+    public static CouchbaseEventStoreEngine createEngine(CouchbaseStoreStrategy strategy, CouchbaseTemplate template) {
+        return new CouchbaseEventStoreEngine(new XStreamSerializer(), null, BATCH_SIZE, strategy, template);
+    }
+
+    /**
+     * Creates an event with a payload of realistic size.
+     *
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param sequenceNumber sequence number of the event
+     * @return the event
+     */
+    public static DomainEventMessage<?> event(String aggregateIdentifier, long sequenceNumber) {
+        return new GenericDomainEventMessage<>("BenchmarkAggregate", aggregateIdentifier, sequenceNumber,
+                new SampleEvent(aggregateIdentifier, sequenceNumber));
+    }
+
+    /**
+     * Payload of the events stored by the benchmarks.
+     */
+    public static class SampleEvent {
+
+        private final String aggregateIdentifier;
+        private final long sequenceNumber;
+        private final String description;
+
+        public SampleEvent(String aggregateIdentifier, long sequenceNumber) {
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.sequenceNumber = sequenceNumber;
+            this.description = "Event " + sequenceNumber + " of aggregate " + aggregateIdentifier
+                    + ", padded to the size of a typical domain event with a few descriptive fields";
+        }
+
+        public String getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+}
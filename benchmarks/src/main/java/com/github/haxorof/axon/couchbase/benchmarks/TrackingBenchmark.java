@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.benchmarks;
+
+import com.couchbase.client.java.Bucket;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Latency of reading one batch of the global event stream, as done by a
+ * tracking event processor, at positions spread over the whole log.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackingBenchmark {
+
+    private static final int AGGREGATES = 100;
+    private static final int EVENTS = 10000;
+
+    @Param({"DOCUMENT_PER_AGGREGATE"})
+    private StorageStrategyType strategy;
+
+    @Param({"10", "100", "1000"})
+    private int batchSize;
+
+    private CouchbaseStoreStrategy storeStrategy;
+    private Bucket bucket;
+    private long position;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InMemoryCouchbaseTemplate template = new InMemoryCouchbaseTemplate();
+        storeStrategy = strategy.create(FormatType.VERBOSE.format());
+        CouchbaseEventStoreEngine engine = StorageStrategyType.createEngine(storeStrategy, template);
+        for (int i = 0; i < EVENTS / AGGREGATES; i++) {
+            List<DomainEventMessage<?>> events = new ArrayList<>(AGGREGATES);
+            for (int j = 0; j < AGGREGATES; j++) {
+                events.add(StorageStrategyType.event("aggregate-" + j, i));
+            }
+            engine.appendEvents(events);
+        }
+        bucket = template.getEventBucket();
+    }
+
+    @Benchmark
+    public void readBatch(Blackhole blackhole) {
+        position = (position + batchSize) % (EVENTS - batchSize);
+        blackhole.consume(storeStrategy.findTrackedEvents(bucket, new GlobalSequenceTrackingToken(position), batchSize));
+    }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntry;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntryFormat;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventLookup;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.NoOpCouchbaseStoreMonitor;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.eventsourcing.eventstore.EventUtils;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.serialization.Serializer;
+import rx.Observable;
+import rx.exceptions.Exceptions;
+
+/**
+ * Base class of the storage strategies, which only differ in how the events of
+ * an aggregate are laid out in documents. Tracking reads are served by the
+ * {@link GlobalEventLog} and only the latest snapshot of an aggregate is kept,
+ * in {@code cbes:ss:<aggregateIdentifier>}.
+ * <p>
+ * Every call is measured and reported to the {@link CouchbaseStoreMonitor}
+ * set on the strategy, if any. Where the documents of the read operations are
+ * fetched from is decided by the {@link ReadPolicy} set per operation, by
+ * default their active copy.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public abstract class AbstractCouchbaseStoreStrategy implements CouchbaseStoreStrategy {
+
+    /**
+     * Default number of aggregates written concurrently by one append.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_WRITES = 16;
+
+    private static final int MAX_CONCURRENT_READS = 64;
+
+    private final String SNAPSHOT_PREFIX = "cbes:ss:";
+
+    private final GlobalEventLog eventLog;
+    private final int maxConcurrentWrites;
+    private final EventEntryFormat format;
+    private volatile CouchbaseStoreMonitor monitor = NoOpCouchbaseStoreMonitor.INSTANCE;
+    private final Map<Operation, ReadPolicy> readPolicies = new ConcurrentHashMap<>();
+
+    protected AbstractCouchbaseStoreStrategy(GlobalEventLog eventLog, int maxConcurrentWrites, EventEntryFormat format) {
+        Assert.isTrue(maxConcurrentWrites > 0, () -> "Max concurrent writes must be positive");
+        Assert.notNull(format, () -> "Format may not be null");
+        this.eventLog = eventLog;
+        this.maxConcurrentWrites = maxConcurrentWrites;
+        this.format = format;
+    }
+
+    protected EventEntryFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the monitor to report the measurements of all further calls to.
+     *
+     * @param monitor the monitor
+     */
+    public void setMonitor(CouchbaseStoreMonitor monitor) {
+        Assert.notNull(monitor, () -> "Monitor may not be null");
+        this.monitor = monitor;
+    }
+
+    /**
+     * Sets the policy deciding where the documents of a read operation are
+     * fetched from. Documents written by the strategy are still read from
+     * their active copy, as are counters and documents which are not
+     * complete on the replica.
+     *
+     * @param operation one of the read operations
+     * @param readPolicy the policy
+     */
+    public void setReadPolicy(Operation operation, ReadPolicy readPolicy) {
+        Assert.isTrue(operation == Operation.READ_EVENTS || operation == Operation.READ_TRACKED_EVENTS
+                || operation == Operation.READ_SNAPSHOT, () -> String.format("Operation [%s] does not read", operation));
+        Assert.notNull(readPolicy, () -> "Read policy may not be null");
+        readPolicies.put(operation, readPolicy);
+    }
+
+    protected ReadPolicy getReadPolicy(Operation operation) {
+        return readPolicies.getOrDefault(operation, ReadPolicy.ACTIVE);
+    }
+
+    /**
+     * Runs an operation, reporting its measurement to the monitor once it
+     * completed or failed.
+     */
+    protected <T> T measured(Operation operation, Function<OperationMeasurement, T> action) {
+        OperationMeasurement measurement = OperationMeasurement.start(monitor, operation);
+        try {
+            T result = action.apply(measurement);
+            measurement.completed();
+            return result;
+        } catch (RuntimeException | Error e) {
+            measurement.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the events of different aggregates concurrently, with at most
+     * {@code maxConcurrentWrites} requests in flight. The indexes of the
+     * events are reserved in the global event log before, and the events of
+     * the aggregates written successfully are added to it after, even if
+     * another aggregate failed. The log publishes the events of a failed
+     * aggregate itself, should they turn out to be stored anyway.
+     * <p>
+     * Should some aggregates fail after others stored their events, the
+     * commit is reported with a {@link PartialCommitException} naming the
+     * aggregates on either side, as the engine does for commits spanning
+     * several shards. A commit failing for every aggregate fails with the
+     * error of the first, so that conflicts are still reported as such.
+     */
+    @Override
+    public void appendEvents(Bucket bucket, List<? extends EventMessage<?>> events, Serializer serializer) {
+        measured(Operation.APPEND_EVENTS, measurement -> {
+            List<? extends DomainEventMessage<?>> domainEvents = events.stream()
+                    .map(EventUtils::asDomainEventMessage)
+                    .collect(Collectors.toList());
+            long[] globalIndexes = eventLog.allocate(bucket,
+                    domainEvents.stream().map(event -> event.getAggregateIdentifier()).collect(Collectors.toList()), measurement);
+            long serializationStart = measurement.startSerialization();
+            List<EventEntry> entries = createEventEntries(domainEvents, serializer, globalIndexes).collect(Collectors.toList());
+            measurement.serialized(serializationStart);
+            Map<String, List<EventEntry>> eventsPerAggregate = entries.stream()
+                    .collect(Collectors.groupingBy(EventEntry::getAggregateIdentifier, LinkedHashMap::new, Collectors.toList()));
+            long reservedAt = eventLog.reserve(bucket, entries, measurement);
+            Map<String, Throwable> failures = new ConcurrentHashMap<>();
+            List<EventEntry> stored = Observable.from(eventsPerAggregate.entrySet())
+                    .flatMap(aggregateEvents -> appendAggregateEvents(bucket.async(), aggregateEvents.getValue(), measurement)
+                            .toCompletable()
+                            .andThen(Observable.just(aggregateEvents.getValue()))
+                            .onErrorResumeNext(e -> {
+                                failures.put(aggregateEvents.getKey(), e);
+                                return Observable.<List<EventEntry>>empty();
+                            }), maxConcurrentWrites)
+                    .flatMapIterable(aggregateEvents -> aggregateEvents)
+                    .toList()
+                    .toBlocking()
+                    .single();
+            if (!stored.isEmpty()) {
+                eventLog.append(bucket, stored, format, reservedAt, measurement);
+            }
+            if (!failures.isEmpty()) {
+                Throwable failure = failures.values().iterator().next();
+                if (stored.isEmpty()) {
+                    throw Exceptions.propagate(failure);
+                }
+                List<String> storedAggregates = eventsPerAggregate.keySet().stream()
+                        .filter(aggregateIdentifier -> !failures.containsKey(aggregateIdentifier))
+                        .collect(Collectors.toList());
+                List<String> failedAggregates = eventsPerAggregate.keySet().stream()
+                        .filter(failures::containsKey)
+                        .collect(Collectors.toList());
+                throw new PartialCommitException(String.format(
+                        "Commit stored partially, events of aggregates %s were stored, those of aggregates %s failed",
+                        storedAggregates, failedAggregates), storedAggregates, failedAggregates, failure);
+            }
+            measurement.events(entries.size());
+            return null;
+        });
+    }
+
+    /**
+     * Writes the events one aggregate got in a commit. Implementations must
+     * fail if another commit already stored an event with the same sequence
+     * number.
+     *
+     * @param bucket bucket to write to
+     * @param entries the events, ordered by sequence number
+     * @param measurement measurement of the append
+     * @return an observable completing once the events are stored
+     */
+    protected abstract Observable<?> appendAggregateEvents(AsyncBucket bucket, List<EventEntry> entries, OperationMeasurement measurement);
+
+    @Override
+    public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, String aggregateIdentifier, long firstSequenceNumber, int batchSize) {
+        return findDomainEvents(bucket, bucket, aggregateIdentifier, firstSequenceNumber, batchSize);
+    }
+
+    @Override
+    public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, int batchSize) {
+        return measured(Operation.READ_EVENTS, measurement -> {
+            List<? extends DomainEventData<?>> events = readAggregateEvents(bucket.async(), archiveBucket.async(), aggregateIdentifier,
+                    firstSequenceNumber, batchSize, measurement).toBlocking().single();
+            measurement.events(events.size());
+            return events;
+        });
+    }
+
+    /**
+     * Reads the events of all aggregates with one round of concurrent
+     * requests, with at most {@value #MAX_CONCURRENT_READS} aggregates in
+     * flight.
+     */
+    @Override
+    public Map<String, List<? extends DomainEventData<?>>> findDomainEvents(Bucket bucket, Bucket archiveBucket,
+            Map<String, Long> firstSequenceNumbers, int batchSize) {
+        return measured(Operation.READ_EVENTS, measurement -> {
+            Map<String, List<EventEntry>> read = Observable.from(firstSequenceNumbers.entrySet())
+                    .flatMap(first -> readAggregateEvents(bucket.async(), archiveBucket.async(), first.getKey(), first.getValue(),
+                            batchSize, measurement).map(aggregateEvents -> new SimpleEntry<>(first.getKey(), aggregateEvents)),
+                            MAX_CONCURRENT_READS)
+                    .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                    .toBlocking()
+                    .single();
+            Map<String, List<? extends DomainEventData<?>>> events = new LinkedHashMap<>();
+            firstSequenceNumbers.keySet().forEach(aggregateIdentifier -> events.put(aggregateIdentifier, read.get(aggregateIdentifier)));
+            measurement.events(events.values().stream().mapToInt(List::size).sum());
+            return events;
+        });
+    }
+
+    /**
+     * Reads the events of an aggregate, in order of sequence number.
+     *
+     * @param bucket bucket to read from
+     * @param archiveBucket bucket holding the archive of the aggregate
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param firstSequenceNumber sequence number of the first event to read
+     * @param batchSize maximum number of events to read
+     * @param measurement measurement of the read
+     * @return an observable emitting the list of events once they are read
+     */
+    protected abstract Observable<List<EventEntry>> readAggregateEvents(AsyncBucket bucket, AsyncBucket archiveBucket,
+            String aggregateIdentifier, long firstSequenceNumber, int batchSize, OperationMeasurement measurement);
+
+    @Override
+    public boolean archiveEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier, long lastSequenceNumber) {
+        return measured(Operation.ARCHIVE_EVENTS,
+                measurement -> archiveEvents(bucket, archiveBucket, aggregateIdentifier, lastSequenceNumber, measurement));
+    }
+
+    /**
+     * Moves the history of an aggregate into its archive. Strategies which
+     * do not archive keep the default, which leaves the events in place.
+     *
+     * @param bucket bucket holding the events of the aggregate
+     * @param archiveBucket bucket to archive the events to
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param lastSequenceNumber sequence number of the last event of the
+     * aggregate known to be dormant
+     * @param measurement measurement of the archival
+     * @return {@code true} if the events were archived
+     */
+    protected boolean archiveEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier, long lastSequenceNumber,
+            OperationMeasurement measurement) {
+        return false;
+    }
+
+    protected Stream<EventEntry> createEventEntries(List<? extends DomainEventMessage<?>> events, Serializer serializer, long[] globalIndexes) {
+        return IntStream.range(0, events.size())
+                .mapToObj(i -> new EventEntry(events.get(i), serializer, globalIndexes[i]));
+    }
+
+    /**
+     * Stores the snapshot in the single snapshot document of the aggregate,
+     * replacing the one it holds only if the new snapshot is more recent.
+     * Concurrent writers are resolved using CAS.
+     */
+    @Override
+    public void appendSnapshot(Bucket bucket, DomainEventMessage<?> snapshot, Serializer serializer) {
+        measured(Operation.STORE_SNAPSHOT, measurement -> {
+            String snapshotId = SNAPSHOT_PREFIX + snapshot.getAggregateIdentifier();
+            long serializationStart = measurement.startSerialization();
+            JsonObject entry = format.encode(new EventEntry(snapshot, serializer, EventEntry.NO_GLOBAL_INDEX), false);
+            measurement.serialized(serializationStart);
+            measurement.events(1);
+            while (true) {
+                JsonDocument current = bucket.get(snapshotId);
+                measurement.requests(1);
+                measurement.read(current);
+                try {
+                    if (current == null) {
+                        measurement.requests(1);
+                        measurement.written(entry);
+                        bucket.insert(JsonDocument.create(snapshotId, entry));
+                    } else if (new EventEntry(current.content()).getSequenceNumber() < snapshot.getSequenceNumber()) {
+                        measurement.requests(1);
+                        measurement.written(entry);
+                        bucket.replace(JsonDocument.create(snapshotId, entry, current.cas()));
+                    }
+                    return null;
+                } catch (DocumentAlreadyExistsException | CASMismatchException e) {
+                    log.debug("Snapshot of aggregate [{}] changed concurrently, retrying", snapshot.getAggregateIdentifier());
+                }
+            }
+        });
+    }
+
+    @Override
+    public Optional<? extends DomainEventData<?>> findLastSnapshot(Bucket bucket, String aggregateIdentifier) {
+        return measured(Operation.READ_SNAPSHOT, measurement -> {
+            JsonDocument snapshot = getReadPolicy(Operation.READ_SNAPSHOT)
+                    .get(bucket.async(), SNAPSHOT_PREFIX + aggregateIdentifier, document -> true, measurement)
+                    .toBlocking()
+                    .singleOrDefault(null);
+            measurement.requests(1);
+            measurement.read(snapshot);
+            measurement.events(snapshot != null ? 1 : 0);
+            return Optional.ofNullable(snapshot).map(doc -> new EventEntry(doc.content()));
+        });
+    }
+
+    /**
+     * Reads the snapshots of all aggregates with one round of concurrent
+     * requests.
+     */
+    @Override
+    public Map<String, ? extends DomainEventData<?>> findLastSnapshots(Bucket bucket, Collection<String> aggregateIdentifiers) {
+        return measured(Operation.READ_SNAPSHOT, measurement -> {
+            ReadPolicy readPolicy = getReadPolicy(Operation.READ_SNAPSHOT);
+            measurement.requests(aggregateIdentifiers.size());
+            Map<String, EventEntry> read = Observable.from(aggregateIdentifiers)
+                    .flatMap(aggregateIdentifier -> readPolicy.get(bucket.async(), SNAPSHOT_PREFIX + aggregateIdentifier, document -> true,
+                            measurement),
+                            MAX_CONCURRENT_READS)
+                    .doOnNext(measurement::read)
+                    .toMap(document -> document.id().substring(SNAPSHOT_PREFIX.length()), document -> new EventEntry(document.content()))
+                    .toBlocking()
+                    .single();
+            Map<String, EventEntry> snapshots = new LinkedHashMap<>();
+            aggregateIdentifiers.stream().filter(read::containsKey).forEach(id -> snapshots.put(id, read.get(id)));
+            measurement.events(snapshots.size());
+            return snapshots;
+        });
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, TrackingToken lastToken, int batchSize) {
+        return findTrackedEvents(bucket, aggregateIdentifier -> bucket, lastToken, batchSize);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Segment segment, TrackingToken lastToken, int batchSize) {
+        return findTrackedEvents(bucket, aggregateIdentifier -> bucket, segment, lastToken, batchSize);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets,
+            TrackingToken lastToken, int batchSize) {
+        return measured(Operation.READ_TRACKED_EVENTS, measurement -> {
+            List<? extends TrackedEventData<?>> events = eventLog.read(bucket, getReadPolicy(Operation.READ_TRACKED_EVENTS),
+                    eventLookup(archiveBuckets), format, lastToken, batchSize, measurement);
+            measurement.events(events.size());
+            return events;
+        });
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets, Segment segment,
+            TrackingToken lastToken, int batchSize) {
+        return measured(Operation.READ_TRACKED_EVENTS, measurement -> {
+            List<? extends TrackedEventData<?>> events = eventLog.read(bucket, getReadPolicy(Operation.READ_TRACKED_EVENTS),
+                    eventLookup(archiveBuckets), format, segment, lastToken, batchSize, measurement);
+            measurement.events(events.size());
+            return events;
+        });
+    }
+
+    /**
+     * Returns the lookup of the events the global event log reserved an index
+     * for in the documents of their aggregate, reading the archive of each
+     * aggregate from the given buckets.
+     */
+    private EventLookup eventLookup(Function<String, Bucket> archiveBuckets) {
+        return (bucket, aggregateIdentifier, sequenceNumber, measurement) -> readAggregateEvents(bucket,
+                archiveBuckets.apply(aggregateIdentifier).async(), aggregateIdentifier, sequenceNumber, 1, measurement)
+                .flatMapIterable(aggregateEvents -> aggregateEvents)
+                .filter(entry -> entry.getSequenceNumber() == sequenceNumber);
+    }
+
+    @Override
+    public TrackingToken createHeadToken(Bucket bucket) {
+        return eventLog.createHeadToken(bucket, OperationMeasurement.none());
+    }
+
+    @Override
+    public TrackingToken createTokenAt(Bucket bucket, Instant dateTime) {
+        return eventLog.createTokenAt(bucket, dateTime, OperationMeasurement.none());
+    }
+
+    @Override
+    public boolean isTrackedEventDocument(String documentId) {
+        return eventLog.isPage(documentId);
+    }
+
+    @Override
+    public Optional<List<? extends TrackedEventData<?>>> decodeTrackedEvents(String documentId, JsonObject content) {
+        return eventLog.readPage(content);
+    }
+
+}
@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntry;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.eventsourcing.eventstore.EventUtils;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.serialization.Serializer;
+
+/**
+ * Storage strategy keeping the recently read event streams of aggregates in
+ * memory, in front of another strategy.
+ * <p>
+ * A cached stream is only ever extended, never trusted to be complete: when a
+ * read reaches the end of the cached events, the events following the last
+ * cached sequence number are fetched from the delegate. A load of a cached
+ * aggregate therefore costs one read of its (usually empty) tail instead of
+ * its whole history. Appended events are not cached by the append, the next
+ * read of the tail picks them up as stored. Streams are evicted least
+ * recently used first when either the number of cached aggregates or the
+ * estimated size of the cached events exceeds its limit.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class CachingCouchbaseStoreStrategy implements CouchbaseStoreStrategy {
+
+    /**
+     * Default maximum number of cached aggregate streams.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * Default maximum estimated size of all cached events, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final CouchbaseStoreStrategy delegate;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<String, CachedStream> streams = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long cachedBytes;
+
+    public CachingCouchbaseStoreStrategy(CouchbaseStoreStrategy delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public CachingCouchbaseStoreStrategy(CouchbaseStoreStrategy delegate, int maxEntries, long maxBytes) {
+        Assert.notNull(delegate, () -> "Delegate may not be null");
+        Assert.isTrue(maxEntries > 0, () -> "Max entries must be positive");
+        Assert.isTrue(maxBytes > 0, () -> "Max bytes must be positive");
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends the events through the delegate. The cached streams are filled
+     * by reads only: a stream stays valid after an append, since the read of
+     * its tail which follows every cache hit fetches the appended events.
+     * Streams of aggregates for which the append failed are dropped.
+     */
+    @Override
+    public void appendEvents(Bucket bucket, List<? extends EventMessage<?>> events, Serializer serializer) {
+        try {
+            delegate.appendEvents(bucket, events, serializer);
+        } catch (RuntimeException e) {
+            events.stream()
+                    .map(EventUtils::asDomainEventMessage)
+                    .forEach(event -> invalidate(bucket, event.getAggregateIdentifier()));
+            throw e;
+        }
+    }
+
+    @Override
+    public void appendSnapshot(Bucket bucket, DomainEventMessage<?> snapshot, Serializer serializer) {
+        delegate.appendSnapshot(bucket, snapshot, serializer);
+    }
+
+    @Override
+    public Optional<? extends DomainEventData<?>> findLastSnapshot(Bucket bucket, String aggregateIdentifier) {
+        return delegate.findLastSnapshot(bucket, aggregateIdentifier);
+    }
+
+    @Override
+    public Map<String, ? extends DomainEventData<?>> findLastSnapshots(Bucket bucket, Collection<String> aggregateIdentifiers) {
+        return delegate.findLastSnapshots(bucket, aggregateIdentifiers);
+    }
+
+    @Override
+    public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, String aggregateIdentifier, long firstSequenceNumber, int batchSize) {
+        return findDomainEvents(bucket, bucket, aggregateIdentifier, firstSequenceNumber, batchSize);
+    }
+
+    @Override
+    public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, int batchSize) {
+        CachedStream stream;
+        synchronized (streams) {
+            stream = streams.get(key(bucket, aggregateIdentifier));
+        }
+        if (stream == null || firstSequenceNumber < stream.firstSequenceNumber() || firstSequenceNumber > stream.lastSequenceNumber() + 1) {
+            misses.incrementAndGet();
+            List<? extends DomainEventData<?>> events = delegate.findDomainEvents(bucket, archiveBucket, aggregateIdentifier,
+                    firstSequenceNumber, batchSize);
+            if (!events.isEmpty() && events.get(0).getSequenceNumber() == firstSequenceNumber) {
+                extend(bucket, aggregateIdentifier, events, true);
+            }
+            return events;
+        }
+        hits.incrementAndGet();
+        List<DomainEventData<?>> result = new ArrayList<>(stream.slice(firstSequenceNumber, batchSize));
+        if (result.size() < batchSize) {
+            List<? extends DomainEventData<?>> tail = delegate.findDomainEvents(bucket, archiveBucket, aggregateIdentifier,
+                    stream.lastSequenceNumber() + 1, batchSize - result.size());
+            if (!tail.isEmpty()) {
+                extend(bucket, aggregateIdentifier, tail, false);
+                result.addAll(tail);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serves the cached part of every stream from memory and reads the
+     * remaining events of all aggregates with a single bulk read of the
+     * delegate.
+     */
+    @Override
+    public Map<String, List<? extends DomainEventData<?>>> findDomainEvents(Bucket bucket, Bucket archiveBucket,
+            Map<String, Long> firstSequenceNumbers, int batchSize) {
+        Map<String, List<DomainEventData<?>>> cached = new LinkedHashMap<>();
+        Map<String, Long> toRead = new LinkedHashMap<>();
+        firstSequenceNumbers.forEach((aggregateIdentifier, firstSequenceNumber) -> {
+            CachedStream stream;
+            synchronized (streams) {
+                stream = streams.get(key(bucket, aggregateIdentifier));
+            }
+            if (stream == null || firstSequenceNumber < stream.firstSequenceNumber() || firstSequenceNumber > stream.lastSequenceNumber() + 1) {
+                misses.incrementAndGet();
+                toRead.put(aggregateIdentifier, firstSequenceNumber);
+            } else {
+                hits.incrementAndGet();
+                List<DomainEventData<?>> slice = new ArrayList<>(stream.slice(firstSequenceNumber, batchSize));
+                cached.put(aggregateIdentifier, slice);
+                if (slice.size() < batchSize) {
+                    toRead.put(aggregateIdentifier, stream.lastSequenceNumber() + 1);
+                }
+            }
+        });
+        Map<String, List<? extends DomainEventData<?>>> read = toRead.isEmpty()
+                ? Collections.emptyMap() : delegate.findDomainEvents(bucket, archiveBucket, toRead, batchSize);
+        Map<String, List<? extends DomainEventData<?>>> events = new LinkedHashMap<>();
+        firstSequenceNumbers.forEach((aggregateIdentifier, firstSequenceNumber) -> {
+            List<? extends DomainEventData<?>> readEvents = read.getOrDefault(aggregateIdentifier, Collections.emptyList());
+            List<DomainEventData<?>> slice = cached.get(aggregateIdentifier);
+            if (slice == null) {
+                if (!readEvents.isEmpty() && readEvents.get(0).getSequenceNumber() == firstSequenceNumber) {
+                    extend(bucket, aggregateIdentifier, readEvents, true);
+                }
+                events.put(aggregateIdentifier, readEvents);
+            } else {
+                if (!readEvents.isEmpty()) {
+                    extend(bucket, aggregateIdentifier, readEvents, false);
+                    slice.addAll(readEvents.subList(0, Math.min(readEvents.size(), batchSize - slice.size())));
+                }
+                events.put(aggregateIdentifier, slice);
+            }
+        });
+        return events;
+    }
+
+    /**
+     * Archives through the delegate. Cached streams stay valid, since
+     * archiving does not change the events of an aggregate.
+     */
+    @Override
+    public boolean archiveEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier, long lastSequenceNumber) {
+        return delegate.archiveEvents(bucket, archiveBucket, aggregateIdentifier, lastSequenceNumber);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, TrackingToken lastToken, int batchSize) {
+        return delegate.findTrackedEvents(bucket, lastToken, batchSize);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Segment segment, TrackingToken lastToken, int batchSize) {
+        return delegate.findTrackedEvents(bucket, segment, lastToken, batchSize);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets,
+            TrackingToken lastToken, int batchSize) {
+        return delegate.findTrackedEvents(bucket, archiveBuckets, lastToken, batchSize);
+    }
+
+    @Override
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets, Segment segment,
+            TrackingToken lastToken, int batchSize) {
+        return delegate.findTrackedEvents(bucket, archiveBuckets, segment, lastToken, batchSize);
+    }
+
+    @Override
+    public TrackingToken createHeadToken(Bucket bucket) {
+        return delegate.createHeadToken(bucket);
+    }
+
+    @Override
+    public TrackingToken createTokenAt(Bucket bucket, Instant dateTime) {
+        return delegate.createTokenAt(bucket, dateTime);
+    }
+
+    @Override
+    public boolean isTrackedEventDocument(String documentId) {
+        return delegate.isTrackedEventDocument(documentId);
+    }
+
+    @Override
+    public Optional<List<? extends TrackedEventData<?>>> decodeTrackedEvents(String documentId, JsonObject content) {
+        return delegate.decodeTrackedEvents(documentId, content);
+    }
+
+    /**
+     * Returns the number of reads which could start from a cached stream.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of reads which had to be fully served by the
+     * delegate.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of streams evicted to stay within the limits.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the estimated size of all cached events.
+     *
+     * @return the size in bytes
+     */
+    public long getCachedBytes() {
+        synchronized (streams) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of cached aggregate streams.
+     *
+     * @return the number of cached streams
+     */
+    public int getCachedStreamCount() {
+        synchronized (streams) {
+            return streams.size();
+        }
+    }
+
+    /**
+     * Drops the cached stream of an aggregate.
+     *
+     * @param bucket bucket holding the events of the aggregate
+     * @param aggregateIdentifier identifier of the aggregate
+     */
+    public void invalidate(Bucket bucket, String aggregateIdentifier) {
+        synchronized (streams) {
+            CachedStream removed = streams.remove(key(bucket, aggregateIdentifier));
+            if (removed != null) {
+                cachedBytes -= removed.bytes;
+            }
+        }
+    }
+
+    /**
+     * Adds contiguous events to the cached stream they directly follow, or
+     * starts a new stream with them if allowed.
+     */
+    private void extend(Bucket bucket, String aggregateIdentifier, List<? extends DomainEventData<?>> events, boolean mayStart) {
+        String key = key(bucket, aggregateIdentifier);
+        synchronized (streams) {
+            CachedStream current = streams.get(key);
+            CachedStream extended;
+            if (current != null && current.lastSequenceNumber() + 1 == events.get(0).getSequenceNumber()) {
+                extended = current.append(events);
+            } else if (current == null && mayStart) {
+                extended = CachedStream.EMPTY.append(events);
+            } else {
+                return;
+            }
+            cachedBytes += extended.bytes - (current != null ? current.bytes : 0);
+            streams.put(key, extended);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedStream> iterator = streams.values().iterator();
+        while (iterator.hasNext() && (streams.size() > maxEntries || cachedBytes > maxBytes)) {
+            cachedBytes -= iterator.next().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private String key(Bucket bucket, String aggregateIdentifier) {
+        return bucket.name() + ":" + aggregateIdentifier;
+    }
+
+    /**
+     * Estimates the memory taken by an event. Entries read from Couchbase are
+     * estimated from their payload and meta data as stored, so that entries
+     * whose payload was never used are not inflated just to be measured.
+     */
+    private static long estimateSize(DomainEventData<?> event) {
+        long dataLength = event instanceof EventEntry
+                ? ((EventEntry) event).getStoredLength()
+                : String.valueOf(event.getPayload().getData()).length() + String.valueOf(event.getMetaData().getData()).length();
+        return 2L * (dataLength + event.getAggregateIdentifier().length() + event.getEventIdentifier().length()) + 64;
+    }
+
+    /**
+     * Immutable list of contiguous events of an aggregate. Streams extended
+     * from one another share their events: the events are kept in an array
+     * with spare room, and the first stream appending to a prefix claims the
+     * free slots following it and writes its events there, which the streams
+     * reading the prefix never look at. Only an append to a prefix already
+     * extended by another stream, or to a full array, copies the events.
+     */
+    private static class CachedStream {
+
+        private static final CachedStream EMPTY = new CachedStream(new DomainEventData<?>[0], new AtomicInteger(), 0, 0);
+
+        private final DomainEventData<?>[] events;
+        private final AtomicInteger claimed;
+        private final int size;
+        private final long bytes;
+
+        private CachedStream(DomainEventData<?>[] events, AtomicInteger claimed, int size, long bytes) {
+            this.events = events;
+            this.claimed = claimed;
+            this.size = size;
+            this.bytes = bytes;
+        }
+
+        private long firstSequenceNumber() {
+            return events[0].getSequenceNumber();
+        }
+
+        private long lastSequenceNumber() {
+            return events[size - 1].getSequenceNumber();
+        }
+
+        private List<DomainEventData<?>> slice(long firstSequenceNumber, int batchSize) {
+            int from = (int) (firstSequenceNumber - firstSequenceNumber());
+            return Collections.unmodifiableList(Arrays.asList(events).subList(from, (int) Math.min(size, (long) from + batchSize)));
+        }
+
+        private CachedStream append(List<? extends DomainEventData<?>> newEvents) {
+            int newSize = size + newEvents.size();
+            DomainEventData<?>[] target = events;
+            AtomicInteger targetClaimed = claimed;
+            if (newSize > events.length || !claimed.compareAndSet(size, newSize)) {
+                target = Arrays.copyOf(events, Math.max(newSize * 2, 16));
+                targetClaimed = new AtomicInteger(newSize);
+            }
+            long newBytes = bytes;
+            for (int i = 0; i < newEvents.size(); i++) {
+                DomainEventData<?> event = newEvents.get(i);
+                target[size + i] = event;
+                newBytes += estimateSize(event);
+            }
+            return new CachedStream(target, targetClaimed, newSize, newBytes);
+        }
+    }
+
+}
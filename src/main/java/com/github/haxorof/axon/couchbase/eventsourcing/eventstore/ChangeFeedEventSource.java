@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.DocumentMutation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.MutationFeed;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.eventstore.GapAwareTrackingToken;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.axonframework.eventsourcing.eventstore.TrackingEventStream;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.StreamableMessageSource;
+import rx.BackpressureOverflow;
+import rx.Observable;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+
+/**
+ * Source of tracked events which is pushed new events by a
+ * {@link MutationFeed} of the event bucket, instead of polling the store.
+ * <p>
+ * Every stream keeps a bounded buffer of events. As long as the consumer keeps
+ * up, the events following its position are decoded straight out of the
+ * changed pages of the global event log and added to the buffer. When the
+ * buffer is full, events arrive out of order, the feed reconnects or the
+ * events can not be decoded, the stream falls behind and catches up with
+ * batched reads from the store once its buffer is drained. Reads are also made
+ * when nothing was heard from the feed for the poll interval, in case a change
+ * got lost.
+ * <p>
+ * Configure tracking processors with this source instead of the event store
+ * to have them follow the feed.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class ChangeFeedEventSource implements StreamableMessageSource<TrackedEventMessage<?>> {
+
+    /**
+     * Default maximum number of events buffered by a stream.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Default time in milliseconds after which a silent stream reads from the
+     * store anyway.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 10000;
+
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final CouchbaseEventStoreEngine engine;
+    private final MutationFeed feed;
+    private final int bufferSize;
+    private final long pollInterval;
+
+    public ChangeFeedEventSource(CouchbaseEventStoreEngine engine, MutationFeed feed) {
+        this(engine, feed, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChangeFeedEventSource(CouchbaseEventStoreEngine engine, MutationFeed feed, int bufferSize) {
+        this(engine, feed, bufferSize, DEFAULT_POLL_INTERVAL);
+    }
+
+    public ChangeFeedEventSource(CouchbaseEventStoreEngine engine, MutationFeed feed, int bufferSize, long pollInterval) {
+        Assert.isTrue(bufferSize > 0, () -> "Buffer size must be positive");
+        Assert.isTrue(pollInterval > 0, () -> "Poll interval must be positive");
+        this.engine = engine;
+        this.feed = feed;
+        this.bufferSize = bufferSize;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public TrackingEventStream openStream(TrackingToken trackingToken) {
+        return new ChangeFeedEventStream(trackingToken);
+    }
+
+    @Override
+    public TrackingToken createTailToken() {
+        return engine.createTailToken();
+    }
+
+    @Override
+    public TrackingToken createHeadToken() {
+        return engine.createHeadToken();
+    }
+
+    @Override
+    public TrackingToken createTokenAt(Instant dateTime) {
+        return engine.createTokenAt(dateTime);
+    }
+
+    private class ChangeFeedEventStream implements TrackingEventStream {
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Deque<TrackedEventMessage<?>> buffer = new ArrayDeque<>();
+        private final Subscription subscription;
+        private TrackingToken lastToken;
+        private boolean behind = true;
+        private boolean catchingUp;
+        private long lastRead;
+
+        private ChangeFeedEventStream(TrackingToken trackingToken) {
+            this.lastToken = trackingToken;
+            this.subscription = feed.mutations()
+                    .filter(mutation -> engine.isTrackedEventDocument(mutation.getKey()))
+                    .onBackpressureBuffer(bufferSize, this::fallBehind, BackpressureOverflow.ON_OVERFLOW_DROP_OLDEST)
+                    .observeOn(Schedulers.computation())
+                    .doOnError(e -> {
+                        log.warn("Lost the connection to the mutation feed, reconnecting", e);
+                        fallBehind();
+                    })
+                    .retryWhen(errors -> errors.flatMap(e -> Observable.timer(RECONNECT_DELAY, TimeUnit.MILLISECONDS)))
+                    .subscribe(this::onMutation);
+        }
+
+        /**
+         * Adds the events decoded from the mutation to the buffer if they
+         * directly follow the last buffered event and fit, and falls behind
+         * otherwise. A mutation without new events, such as one reserving
+         * indexes, is ignored, unless the events can not be decoded at all.
+         * Decoding is done without holding the lock.
+         */
+        private void onMutation(DocumentMutation mutation) {
+            TrackingToken position;
+            lock.lock();
+            try {
+                if (behind || catchingUp) {
+                    changed.signalAll();
+                    return;
+                }
+                position = lastToken;
+            } finally {
+                lock.unlock();
+            }
+            Optional<List<? extends TrackedEventMessage<?>>> decoded = engine.decodeEvents(mutation, position);
+            if (decoded.isPresent() && decoded.get().isEmpty()) {
+                return;
+            }
+            List<? extends TrackedEventMessage<?>> events = decoded.orElse(Collections.emptyList());
+            lock.lock();
+            try {
+                if (!behind && !catchingUp && Objects.equals(position, lastToken) && !events.isEmpty() && follows(position, events)
+                        && buffer.size() + events.size() <= bufferSize) {
+                    buffer.addAll(events);
+                    lastToken = events.get(events.size() - 1).trackingToken();
+                } else {
+                    behind = true;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Checks that the events are the ones directly following the given
+         * position, so that no event of another writer is skipped. A
+         * position with gaps is never followed directly, the events filling
+         * them are read from the store.
+         */
+        private boolean follows(TrackingToken position, List<? extends TrackedEventMessage<?>> events) {
+            long expected;
+            if (position == null) {
+                expected = 0;
+            } else if (position instanceof GapAwareTrackingToken && !((GapAwareTrackingToken) position).hasGaps()) {
+                expected = ((GapAwareTrackingToken) position).getIndex() + 1;
+            } else if (position instanceof GlobalSequenceTrackingToken) {
+                expected = ((GlobalSequenceTrackingToken) position).getGlobalIndex() + 1;
+            } else {
+                return false;
+            }
+            for (TrackedEventMessage<?> event : events) {
+                if (!(event.trackingToken() instanceof GapAwareTrackingToken)
+                        || ((GapAwareTrackingToken) event.trackingToken()).hasGaps()
+                        || ((GapAwareTrackingToken) event.trackingToken()).getIndex() != expected++) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void fallBehind() {
+            lock.lock();
+            try {
+                behind = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the next events from the store into the empty buffer. Must be
+         * called holding the lock once, it is released during the read. Only
+         * the consumer takes events out of the buffer.
+         */
+        private void catchUp() {
+            behind = false;
+            catchingUp = true;
+            TrackingToken position = lastToken;
+            List<? extends TrackedEventMessage<?>> events = null;
+            lock.unlock();
+            try (Stream<? extends TrackedEventMessage<?>> stream = engine.readEvents(position, false)) {
+                events = stream.limit(bufferSize).collect(Collectors.toList());
+            } finally {
+                lock.lock();
+                catchingUp = false;
+                lastRead = System.nanoTime();
+                if (events == null || events.size() == bufferSize) {
+                    behind = true;
+                }
+            }
+            if (!events.isEmpty()) {
+                buffer.addAll(events);
+                lastToken = events.get(events.size() - 1).trackingToken();
+            }
+        }
+
+        @Override
+        public Optional<TrackedEventMessage<?>> peek() {
+            if (!hasNextAvailable()) {
+                return Optional.empty();
+            }
+            lock.lock();
+            try {
+                return Optional.of(buffer.peekFirst());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNextAvailable(int timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (buffer.isEmpty()) {
+                    long now = System.nanoTime();
+                    if (behind || now - lastRead >= TimeUnit.MILLISECONDS.toNanos(pollInterval)) {
+                        catchUp();
+                    } else if (now >= deadline) {
+                        return false;
+                    } else {
+                        changed.awaitNanos(Math.min(deadline - now, lastRead + TimeUnit.MILLISECONDS.toNanos(pollInterval) - now));
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public TrackedEventMessage<?> nextAvailable() throws InterruptedException {
+            while (!hasNextAvailable(Integer.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                // keep waiting for the next event
+            }
+            lock.lock();
+            try {
+                return buffer.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            subscription.unsubscribe();
+        }
+    }
+
+}
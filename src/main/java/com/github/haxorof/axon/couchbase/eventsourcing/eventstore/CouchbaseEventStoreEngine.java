@@ -23,28 +23,78 @@
  */
 package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
 
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.error.subdoc.PathExistsException;
 import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.DocumentMutation;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
 import org.axonframework.common.jdbc.PersistenceExceptionResolver;
 import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventhandling.TrackedEventMessage;
 import org.axonframework.eventsourcing.DomainEventMessage;
 import org.axonframework.eventsourcing.eventstore.BatchingEventStorageEngine;
 import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.eventsourcing.eventstore.DomainEventStream;
+import org.axonframework.eventsourcing.eventstore.EventUtils;
+import org.axonframework.eventsourcing.eventstore.GapAwareTrackingToken;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
 import org.axonframework.eventsourcing.eventstore.TrackedEventData;
 import org.axonframework.eventsourcing.eventstore.TrackingToken;
 import org.axonframework.serialization.Serializer;
 import org.axonframework.serialization.upcasting.event.EventUpcaster;
+import org.axonframework.serialization.upcasting.event.NoOpEventUpcaster;
+import rx.Observable;
+import rx.schedulers.Schedulers;
 
 /**
+ * Event storage engine storing events in Couchbase, in the layout of the given
+ * {@link CouchbaseStoreStrategy}.
+ * <p>
+ * Events and snapshots are stored in the buckets the template assigns to their
+ * aggregate. If the template spreads aggregates over several shards, tracking
+ * processors read the merged streams of all shards, ordered by timestamp
+ * across shards, and are handed {@link ShardedTrackingToken}s.
+ * <p>
+ * Axon 3.3 tracking processors do not pass their segment to the event source,
+ * so {@link #readEvents(Segment, TrackingToken)} is offered to read one
+ * segment of the stream directly, letting replays of several segments run in
+ * parallel.
  *
  * @author Bj&ouml;rn Oscarsson
  */
+@Slf4j
 public class CouchbaseEventStoreEngine extends BatchingEventStorageEngine {
 
     private static final int DEFAULT_BATCH = 100;
     private final CouchbaseStoreStrategy storageStrategy;
     private final CouchbaseTemplate template;
+    private final EventUpcaster upcasterChain;
 
     public CouchbaseEventStoreEngine(Serializer serializer,
             EventUpcaster upcasterChain,
@@ -55,6 +105,7 @@ public class CouchbaseEventStoreEngine extends BatchingEventStorageEngine {
         super(serializer, upcasterChain, persistenceExceptionResolver, null, batchSize);
         this.storageStrategy = storageStrategy;
         this.template = template;
+        this.upcasterChain = upcasterChain == null ? NoOpEventUpcaster.INSTANCE : upcasterChain;
     }
     
     public CouchbaseEventStoreEngine(Serializer serializer,
@@ -65,6 +116,7 @@ public class CouchbaseEventStoreEngine extends BatchingEventStorageEngine {
         super(serializer, upcasterChain, CouchbaseEventStoreEngine::isDuplicateKeyException, null, batchSize);
         this.storageStrategy = storageStrategy;
         this.template = template;
+        this.upcasterChain = upcasterChain == null ? NoOpEventUpcaster.INSTANCE : upcasterChain;
     }
     
     public CouchbaseEventStoreEngine(Serializer serializer,
@@ -74,44 +126,388 @@ public class CouchbaseEventStoreEngine extends BatchingEventStorageEngine {
         super(serializer, upcasterChain, CouchbaseEventStoreEngine::isDuplicateKeyException, null, DEFAULT_BATCH);
         this.storageStrategy = storageStrategy;
         this.template = template;
+        this.upcasterChain = upcasterChain == null ? NoOpEventUpcaster.INSTANCE : upcasterChain;
     }
     
     public CouchbaseEventStoreEngine(CouchbaseTemplate template) {
         super(null, null, CouchbaseEventStoreEngine::isDuplicateKeyException, null, DEFAULT_BATCH);
         this.storageStrategy = new DocumentPerAggregateStorageStrategy();
         this.template = template;
+        this.upcasterChain = NoOpEventUpcaster.INSTANCE;
     }
     
+    /**
+     * Detects if an exception was caused by another writer having stored an
+     * event with the same aggregate identifier and sequence number.
+     */
     private static boolean isDuplicateKeyException(Exception exception) {
-        // FIXME
+        Throwable cause = exception;
+        while (cause != null) {
+            if (cause instanceof PathExistsException
+                    || cause instanceof DocumentAlreadyExistsException
+                    || cause instanceof CASMismatchException) {
+                return true;
+            }
+            if (cause instanceof MultiMutationException
+                    && ((MultiMutationException) cause).firstFailureStatus() == ResponseStatus.SUBDOC_PATH_EXISTS) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
         return false;
-    }    
+    }
 
     @Override
     protected List<? extends TrackedEventData<?>> fetchTrackedEvents(TrackingToken lastToken, int batchSize) {
-        return storageStrategy.findTrackedEvents(template.getEventBucket(), lastToken, batchSize);
+        return fetchTrackedEvents(lastToken, batchSize, (bucket, token) -> storageStrategy.findTrackedEvents(bucket, template::getArchiveBucket, token, batchSize));
+    }
+
+    /**
+     * Reads the next batch of events of one segment of the stream.
+     *
+     * @param segment segment of the stream to read
+     * @param lastToken token of the last event of the segment read, or
+     * {@code null} to read from the start
+     * @param batchSize maximum number of events to read
+     * @return the next events of the segment, empty when the reader caught up
+     */
+    protected List<? extends TrackedEventData<?>> fetchTrackedEvents(Segment segment, TrackingToken lastToken, int batchSize) {
+        return fetchTrackedEvents(lastToken, batchSize, (bucket, token) -> storageStrategy.findTrackedEvents(bucket, template::getArchiveBucket, segment, token, batchSize));
+    }
+
+    /**
+     * Reads the batch from the single shard, or from every shard in parallel
+     * and merges the batches with {@link ShardedTrackingToken#merge}.
+     */
+    private List<? extends TrackedEventData<?>> fetchTrackedEvents(TrackingToken lastToken, int batchSize,
+            BiFunction<Bucket, TrackingToken, List<? extends TrackedEventData<?>>> fetch) {
+        Map<String, Bucket> shards = template.getEventShards();
+        if (shards.size() == 1) {
+            return fetch.apply(shards.values().iterator().next(), lastToken);
+        }
+        Assert.isTrue(lastToken == null || lastToken instanceof ShardedTrackingToken,
+                () -> String.format("Token [%s] is of the wrong type", lastToken));
+        ShardedTrackingToken token = lastToken == null
+                ? new ShardedTrackingToken(Collections.emptyMap()) : (ShardedTrackingToken) lastToken;
+        Map<String, List<? extends TrackedEventData<?>>> batches = new LinkedHashMap<>();
+        shards.keySet().forEach(shard -> batches.put(shard, Collections.emptyList()));
+        Observable.from(shards.entrySet())
+                .flatMap(shard -> Observable.fromCallable(() -> new AbstractMap.SimpleEntry<String, List<? extends TrackedEventData<?>>>(
+                        shard.getKey(), fetch.apply(shard.getValue(), token.getToken(shard.getKey()))))
+                        .subscribeOn(Schedulers.io()))
+                .toList()
+                .toBlocking()
+                .single()
+                .forEach(batch -> batches.put(batch.getKey(), batch.getValue()));
+        return ShardedTrackingToken.merge(token, batches, batchSize);
+    }
+
+    /**
+     * Opens a stream of the events of one segment, following the given token.
+     * The stream ends once the reader caught up with the segment. The tokens of
+     * the events are only valid for reading the same segment.
+     *
+     * @param segment segment of the stream to read
+     * @param trackingToken token of the last event of the segment read, or
+     * {@code null} to read from the start
+     * @return the events of the segment
+     */
+    public Stream<? extends TrackedEventMessage<?>> readEvents(Segment segment, TrackingToken trackingToken) {
+        Spliterator<TrackedEventData<?>> spliterator = new SegmentSpliterator(segment, trackingToken, batchSize());
+        return EventUtils.upcastAndDeserializeTrackedEvents(StreamSupport.stream(spliterator, false), getEventSerializer(), upcasterChain,
+                true);
+    }
+
+    /**
+     * Creates a token positioned after the last event of the store, from which
+     * a tracking processor only receives events appended later.
+     */
+    @Override
+    public TrackingToken createHeadToken() {
+        return createToken(storageStrategy::createHeadToken);
+    }
+
+    /**
+     * Creates a token from which a tracking processor receives the events
+     * stamped at or after the given time, looked up in a coarse time index
+     * rather than by scanning the stream. The token may also deliver some
+     * events stamped shortly before the given time.
+     */
+    @Override
+    public TrackingToken createTokenAt(Instant dateTime) {
+        return createToken(bucket -> storageStrategy.createTokenAt(bucket, dateTime));
+    }
+
+    /**
+     * Creates the token of the single shard, or the tokens of every shard in
+     * parallel, combined into a {@link ShardedTrackingToken}.
+     */
+    private TrackingToken createToken(Function<Bucket, TrackingToken> create) {
+        Map<String, Bucket> shards = template.getEventShards();
+        if (shards.size() == 1) {
+            return create.apply(shards.values().iterator().next());
+        }
+        Map<String, TrackingToken> tokens = new LinkedHashMap<>();
+        Observable.from(shards.entrySet())
+                .flatMap(shard -> Observable.fromCallable(() -> Optional.ofNullable(create.apply(shard.getValue()))
+                        .map(token -> new AbstractMap.SimpleEntry<>(shard.getKey(), token)))
+                        .subscribeOn(Schedulers.io()))
+                .toList()
+                .toBlocking()
+                .single()
+                .forEach(token -> token.ifPresent(shardToken -> tokens.put(shardToken.getKey(), shardToken.getValue())));
+        return new ShardedTrackingToken(tokens);
+    }
+
+    /**
+     * Returns whether a document holds events of the tracked event stream, so
+     * that a change to it may announce new tracked events.
+     *
+     * @param documentId identifier of the document
+     * @return {@code true} if the document is part of the tracked stream
+     */
+    public boolean isTrackedEventDocument(String documentId) {
+        return storageStrategy.isTrackedEventDocument(documentId);
+    }
+
+    /**
+     * Decodes the tracked events following the given token out of a changed
+     * document of the tracked event stream, saving the read of a consumer
+     * which is notified of the change. Events of a sharded store can not be
+     * decoded, since their tokens depend on the position in the other shards.
+     *
+     * @param mutation the changed document
+     * @param lastToken token of the last event the consumer read, or
+     * {@code null} if it did not read any
+     * @return the events following the token, possibly none, or nothing if
+     * they can not be decoded
+     */
+    public Optional<List<? extends TrackedEventMessage<?>>> decodeEvents(DocumentMutation mutation, TrackingToken lastToken) {
+        if (mutation.isRemoval() || template.getEventShards().size() != 1) {
+            return Optional.empty();
+        }
+        TrackingToken position = lastToken instanceof GlobalSequenceTrackingToken
+                ? GapAwareTrackingToken.newInstance(((GlobalSequenceTrackingToken) lastToken).getGlobalIndex(), Collections.emptySet())
+                : lastToken;
+        return storageStrategy.decodeTrackedEvents(mutation.getKey(), mutation.getJsonContent())
+                .map(decoded -> EventUtils.upcastAndDeserializeTrackedEvents(decoded.stream()
+                        .filter(event -> position == null || !position.covers(event.trackingToken())),
+                        getEventSerializer(), upcasterChain, true)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * Fetches the batches of a segment on demand, until one comes back empty.
+     */
+    private class SegmentSpliterator extends Spliterators.AbstractSpliterator<TrackedEventData<?>> {
+
+        private final Segment segment;
+        private final int batchSize;
+        private TrackingToken lastToken;
+        private Iterator<? extends TrackedEventData<?>> batch = Collections.emptyIterator();
+
+        SegmentSpliterator(Segment segment, TrackingToken lastToken, int batchSize) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.segment = segment;
+            this.lastToken = lastToken;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TrackedEventData<?>> action) {
+            if (!batch.hasNext()) {
+                batch = fetchTrackedEvents(segment, lastToken, batchSize).iterator();
+                if (!batch.hasNext()) {
+                    return false;
+                }
+            }
+            TrackedEventData<?> next = batch.next();
+            lastToken = next.trackingToken();
+            action.accept(next);
+            return true;
+        }
     }
 
     @Override
     protected List<? extends DomainEventData<?>> fetchDomainEvents(String aggregateIdentifier, long firstSequenceNumber, int batchSize) {
-        return storageStrategy.findDomainEvents(template.getEventBucket(), aggregateIdentifier, firstSequenceNumber, batchSize);
+        return storageStrategy.findDomainEvents(template.getEventBucket(aggregateIdentifier), template.getArchiveBucket(aggregateIdentifier),
+                aggregateIdentifier, firstSequenceNumber, batchSize);
+    }
+
+    /**
+     * Opens the event streams of several aggregates at once, each starting at
+     * the latest snapshot of the aggregate, like a load of each of them
+     * through the event store would. The snapshots of all aggregates are read
+     * in one round of concurrent requests per bucket, followed by one round
+     * reading the first batch of events of every aggregate. Further batches
+     * of an aggregate with a longer history are read once its stream is
+     * consumed that far.
+     *
+     * @param aggregateIdentifiers identifiers of the aggregates
+     * @return the event stream per aggregate identifier, in the order given
+     */
+    public Map<String, DomainEventStream> readEvents(Collection<String> aggregateIdentifiers) {
+        Map<String, DomainEventMessage<?>> snapshots = new ConcurrentHashMap<>();
+        inParallel(groupBy(aggregateIdentifiers, template::getSnapshotBucket), (bucket, identifiers) ->
+                storageStrategy.findLastSnapshots(bucket, identifiers).forEach((aggregateIdentifier, snapshot) ->
+                        deserializeSnapshot(aggregateIdentifier, snapshot)
+                                .ifPresent(message -> snapshots.put(aggregateIdentifier, message))));
+        Map<String, List<? extends DomainEventData<?>>> batches = new ConcurrentHashMap<>();
+        inParallel(groupBy(aggregateIdentifiers,
+                id -> new AbstractMap.SimpleEntry<>(template.getEventBucket(id), template.getArchiveBucket(id))),
+                (buckets, identifiers) -> {
+                    Map<String, Long> firstSequenceNumbers = new LinkedHashMap<>();
+                    identifiers.forEach(id -> firstSequenceNumbers.put(id,
+                            snapshots.containsKey(id) ? snapshots.get(id).getSequenceNumber() + 1 : 0));
+                    batches.putAll(storageStrategy.findDomainEvents(buckets.getKey(), buckets.getValue(), firstSequenceNumbers,
+                            batchSize()));
+                });
+        Map<String, DomainEventStream> streams = new LinkedHashMap<>();
+        for (String aggregateIdentifier : aggregateIdentifiers) {
+            List<? extends DomainEventData<?>> batch = batches.getOrDefault(aggregateIdentifier, Collections.emptyList());
+            DomainEventStream events = EventUtils.upcastAndDeserializeDomainEvents(batch.stream(), getEventSerializer(), upcasterChain,
+                    false);
+            if (batch.size() >= batchSize()) {
+                events = DomainEventStream.concat(events,
+                        readEvents(aggregateIdentifier, batch.get(batch.size() - 1).getSequenceNumber() + 1));
+            }
+            DomainEventMessage<?> snapshot = snapshots.get(aggregateIdentifier);
+            streams.put(aggregateIdentifier, snapshot == null ? events : DomainEventStream.concat(DomainEventStream.of(snapshot), events));
+        }
+        return streams;
     }
 
+    /**
+     * Deserializes a snapshot read in bulk. As when loading a single
+     * aggregate, a snapshot which can not be deserialized is skipped and the
+     * aggregate is loaded from its events.
+     */
+    private Optional<DomainEventMessage<?>> deserializeSnapshot(String aggregateIdentifier, DomainEventData<?> snapshot) {
+        try {
+            DomainEventStream stream = EventUtils.upcastAndDeserializeDomainEvents(Stream.of(snapshot), getSerializer(), upcasterChain,
+                    false);
+            return stream.hasNext() ? Optional.of(stream.next()) : Optional.empty();
+        } catch (Exception | LinkageError e) {
+            log.warn("Error reading snapshot of aggregate [{}]. Reconstructing from the events", aggregateIdentifier, e);
+            return Optional.empty();
+        }
+    }
+
+    private static <K> Map<K, List<String>> groupBy(Collection<String> aggregateIdentifiers, Function<String, K> key) {
+        return aggregateIdentifiers.stream().distinct().collect(Collectors.groupingBy(key, LinkedHashMap::new, Collectors.toList()));
+    }
+
+    /**
+     * Runs a read per group of aggregates, concurrently if there are several
+     * groups, as there are with sharded templates.
+     */
+    private static <K> void inParallel(Map<K, List<String>> groups, BiConsumer<K, List<String>> read) {
+        if (groups.size() == 1) {
+            Map.Entry<K, List<String>> group = groups.entrySet().iterator().next();
+            read.accept(group.getKey(), group.getValue());
+        } else {
+            Observable.from(groups.entrySet())
+                    .flatMap(group -> Observable.fromCallable(() -> {
+                        read.accept(group.getKey(), group.getValue());
+                        return group;
+                    }).subscribeOn(Schedulers.io()))
+                    .toCompletable()
+                    .await();
+        }
+    }
+
+    /**
+     * Moves the history of a dormant aggregate to the archive bucket the
+     * template assigns to it, if its last event still is the given one.
+     * Archived events are read transparently when the aggregate is loaded.
+     *
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param lastSequenceNumber sequence number of the last event of the
+     * aggregate known to be dormant
+     * @return {@code true} if the events were archived
+     */
+    public boolean archiveEvents(String aggregateIdentifier, long lastSequenceNumber) {
+        return storageStrategy.archiveEvents(template.getEventBucket(aggregateIdentifier), template.getArchiveBucket(aggregateIdentifier),
+                aggregateIdentifier, lastSequenceNumber);
+    }
+
+    /**
+     * Appends the events to the bucket of their aggregate, one append per
+     * bucket if the aggregates are sharded. The shards are written
+     * concurrently. Should some of them fail after others stored their
+     * events, the commit is reported as partially stored with a
+     * {@link PartialCommitException} naming the aggregates on either side,
+     * rather than as a conflict a caller might retry. The same goes for the
+     * aggregates within a bucket, which the storage strategy reports in the
+     * same way.
+     */
     @Override
     protected void appendEvents(List<? extends EventMessage<?>> events, Serializer serializer) {
-        if (!events.isEmpty()) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Map<Bucket, List<EventMessage<?>>> eventsPerBucket = new LinkedHashMap<>();
+        for (EventMessage<?> event : events) {
+            eventsPerBucket.computeIfAbsent(template.getEventBucket(aggregateIdentifier(event)), bucket -> new ArrayList<>())
+                    .add(event);
+        }
+        if (eventsPerBucket.size() == 1) {
             try {
-                storageStrategy.appendEvents(template.getEventBucket(), events, serializer);
+                storageStrategy.appendEvents(eventsPerBucket.keySet().iterator().next(), events, serializer);
+            } catch (PartialCommitException e) {
+                log.error("Commit stored partially, events of aggregates {} were stored, those of aggregates {} failed",
+                        e.getStoredAggregateIdentifiers(), e.getFailedAggregateIdentifiers(), e.getCause());
+                throw e;
             } catch (Exception e) {
                 handlePersistenceException(e, events.get(0));
             }
+            return;
+        }
+        Map<Bucket, Throwable> failures = new ConcurrentHashMap<>();
+        Observable.from(eventsPerBucket.entrySet())
+                .flatMap(bucketEvents -> Observable.fromCallable(() -> {
+                    storageStrategy.appendEvents(bucketEvents.getKey(), bucketEvents.getValue(), serializer);
+                    return bucketEvents;
+                }).subscribeOn(Schedulers.io()).onErrorResumeNext(e -> {
+                    failures.put(bucketEvents.getKey(), e);
+                    return Observable.empty();
+                }))
+                .toCompletable()
+                .await();
+        if (failures.isEmpty()) {
+            return;
+        }
+        Throwable failure = failures.values().iterator().next();
+        List<String> stored = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        eventsPerBucket.forEach((bucket, bucketEvents) -> {
+            Throwable bucketFailure = failures.get(bucket);
+            if (bucketFailure instanceof PartialCommitException) {
+                stored.addAll(((PartialCommitException) bucketFailure).getStoredAggregateIdentifiers());
+                failed.addAll(((PartialCommitException) bucketFailure).getFailedAggregateIdentifiers());
+            } else {
+                bucketEvents.stream()
+                        .map(CouchbaseEventStoreEngine::aggregateIdentifier)
+                        .distinct()
+                        .forEach((bucketFailure != null ? failed : stored)::add);
+            }
+        });
+        if (stored.isEmpty()) {
+            handlePersistenceException(failure instanceof Exception ? (Exception) failure : new RuntimeException(failure), events.get(0));
         }
+        log.error("Commit stored partially, events of aggregates {} were stored, those of aggregates {} failed", stored, failed, failure);
+        throw new PartialCommitException(String.format("Commit stored partially, events of aggregates %s were stored, those of aggregates %s failed",
+                stored, failed), stored, failed, failure);
+    }
+
+    private static String aggregateIdentifier(EventMessage<?> event) {
+        return event instanceof DomainEventMessage ? ((DomainEventMessage<?>) event).getAggregateIdentifier() : event.getIdentifier();
     }
 
     @Override
     protected void storeSnapshot(DomainEventMessage<?> snapshot, Serializer serializer) {
         try {
-            storageStrategy.appendSnapshot(template.getSnapshotBucket(), snapshot, serializer);
+            storageStrategy.appendSnapshot(template.getSnapshotBucket(snapshot.getAggregateIdentifier()), snapshot, serializer);
         } catch (Exception e) {
             handlePersistenceException(e, snapshot);
         }
@@ -119,7 +515,7 @@ public class CouchbaseEventStoreEngine extends BatchingEventStorageEngine {
 
     @Override
     protected Optional<? extends DomainEventData<?>> readSnapshotData(String aggregateIdentifier) {
-        return storageStrategy.findLastSnapshot(template.getSnapshotBucket(), aggregateIdentifier);
+        return storageStrategy.findLastSnapshot(template.getSnapshotBucket(aggregateIdentifier), aggregateIdentifier);
     }
 
 }
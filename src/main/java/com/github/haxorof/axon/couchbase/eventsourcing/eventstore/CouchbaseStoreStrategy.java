@@ -24,9 +24,16 @@
 package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
 
 import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.Segment;
 import org.axonframework.eventsourcing.DomainEventMessage;
 import org.axonframework.eventsourcing.eventstore.DomainEventData;
 import org.axonframework.eventsourcing.eventstore.TrackedEventData;
@@ -45,8 +52,170 @@ public interface CouchbaseStoreStrategy {
 
     public Optional<? extends DomainEventData<?>> findLastSnapshot(Bucket bucket, String aggregateIdentifier);
 
+    /**
+     * Reads the latest snapshots of several aggregates held by the same
+     * bucket. Strategies which can not read them at once keep the default,
+     * which reads them one after the other.
+     *
+     * @param bucket bucket holding the snapshots
+     * @param aggregateIdentifiers identifiers of the aggregates
+     * @return the snapshot per aggregate identifier, only for the aggregates
+     * which have one
+     */
+    public default Map<String, ? extends DomainEventData<?>> findLastSnapshots(Bucket bucket, Collection<String> aggregateIdentifiers) {
+        Map<String, DomainEventData<?>> snapshots = new LinkedHashMap<>();
+        aggregateIdentifiers.forEach(aggregateIdentifier -> findLastSnapshot(bucket, aggregateIdentifier)
+                .ifPresent(snapshot -> snapshots.put(aggregateIdentifier, snapshot)));
+        return snapshots;
+    }
+
     public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, String aggregateIdentifier, long firstSequenceNumber, int batchSize);
 
+    /**
+     * Reads the events of an aggregate, including those archived by
+     * {@link #archiveEvents(Bucket, Bucket, String, long)}.
+     *
+     * @param bucket bucket holding the events of the aggregate
+     * @param archiveBucket bucket holding the archive of the aggregate
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param firstSequenceNumber sequence number of the first event to read
+     * @param batchSize maximum number of events to read
+     * @return the events, in order of sequence number
+     */
+    public default List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, int batchSize) {
+        return findDomainEvents(bucket, aggregateIdentifier, firstSequenceNumber, batchSize);
+    }
+
+    /**
+     * Reads the events of several aggregates held by the same buckets.
+     * Strategies which can not read them at once keep the default, which
+     * reads them one after the other.
+     *
+     * @param bucket bucket holding the events of the aggregates
+     * @param archiveBucket bucket holding the archives of the aggregates
+     * @param firstSequenceNumbers sequence number of the first event to read,
+     * per aggregate identifier
+     * @param batchSize maximum number of events to read per aggregate
+     * @return the events per aggregate identifier, in order of sequence
+     * number, empty for aggregates without events
+     */
+    public default Map<String, List<? extends DomainEventData<?>>> findDomainEvents(Bucket bucket, Bucket archiveBucket,
+            Map<String, Long> firstSequenceNumbers, int batchSize) {
+        Map<String, List<? extends DomainEventData<?>>> events = new LinkedHashMap<>();
+        firstSequenceNumbers.forEach((aggregateIdentifier, firstSequenceNumber) -> events.put(aggregateIdentifier,
+                findDomainEvents(bucket, archiveBucket, aggregateIdentifier, firstSequenceNumber, batchSize)));
+        return events;
+    }
+
+    /**
+     * Moves the history of an aggregate into its compressed archive, provided
+     * its last event still is the given one. Archived events are still read by
+     * {@link #findDomainEvents(Bucket, Bucket, String, long, int)}, and new
+     * events can be appended to an archived aggregate.
+     *
+     * @param bucket bucket holding the events of the aggregate
+     * @param archiveBucket bucket to archive the events to
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param lastSequenceNumber sequence number of the last event of the
+     * aggregate known to be dormant
+     * @return {@code true} if the events were archived, {@code false} if the
+     * aggregate got newer events or the strategy does not archive
+     */
+    public default boolean archiveEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier, long lastSequenceNumber) {
+        return false;
+    }
+
     public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, TrackingToken lastToken, int batchSize);
+
+    /**
+     * Reads the tracked events of one segment of the stream, so that the
+     * segments can be read in parallel. The tokens returned are only valid
+     * for reading the same segment.
+     *
+     * @param bucket bucket to read from
+     * @param segment segment of the stream to read
+     * @param lastToken token of the last event of the segment read, or
+     * {@code null} to read from the start
+     * @param batchSize maximum number of events to read
+     * @return the next events of the segment, empty when the reader caught up
+     */
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Segment segment, TrackingToken lastToken, int batchSize);
+
+    /**
+     * Reads the tracked events following the given token. Events which were
+     * reserved in the stream but never added to it are looked up in the
+     * documents of their aggregate, including its archive.
+     *
+     * @param bucket bucket to read from
+     * @param archiveBuckets bucket holding the archive of an aggregate, per
+     * aggregate identifier
+     * @param lastToken token of the last event read, or {@code null} to read
+     * from the start
+     * @param batchSize maximum number of events to read
+     * @return the next events of the stream, empty when the reader caught up
+     */
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets,
+            TrackingToken lastToken, int batchSize);
+
+    /**
+     * Reads the tracked events of one segment of the stream, looking up the
+     * events which were reserved but never added as
+     * {@link #findTrackedEvents(Bucket, Function, TrackingToken, int)} does.
+     *
+     * @param bucket bucket to read from
+     * @param archiveBuckets bucket holding the archive of an aggregate, per
+     * aggregate identifier
+     * @param segment segment of the stream to read
+     * @param lastToken token of the last event of the segment read, or
+     * {@code null} to read from the start
+     * @param batchSize maximum number of events to read
+     * @return the next events of the segment, empty when the reader caught up
+     */
+    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, Function<String, Bucket> archiveBuckets, Segment segment,
+            TrackingToken lastToken, int batchSize);
+
+    /**
+     * Creates a token positioned after the last event of the tracked event
+     * stream.
+     *
+     * @param bucket bucket to read from
+     * @return the token, {@code null} if the stream is empty
+     */
+    public TrackingToken createHeadToken(Bucket bucket);
+
+    /**
+     * Creates a token from which the tracked events stamped at or after the
+     * given time are read.
+     *
+     * @param bucket bucket to read from
+     * @param dateTime the point in time
+     * @return the token, {@code null} to read from the start of the stream
+     */
+    public TrackingToken createTokenAt(Bucket bucket, Instant dateTime);
+
+    /**
+     * Returns whether a document holds events of the tracked event stream, so
+     * that a change to it may announce new tracked events.
+     *
+     * @param documentId identifier of the document
+     * @return {@code true} if the document is part of the tracked stream
+     */
+    public default boolean isTrackedEventDocument(String documentId) {
+        return true;
+    }
+
+    /**
+     * Decodes the tracked events held by the content of a document of the
+     * tracked event stream, as delivered by a mutation feed.
+     *
+     * @param documentId identifier of the document
+     * @param content content of the document
+     * @return the events in stream order, possibly none, or nothing if they
+     * can not be decoded
+     */
+    public default Optional<List<? extends TrackedEventData<?>>> decodeTrackedEvents(String documentId, JsonObject content) {
+        return Optional.empty();
+    }
     
 }
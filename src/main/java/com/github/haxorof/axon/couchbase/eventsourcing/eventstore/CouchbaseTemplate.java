@@ -24,15 +24,63 @@
 package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
 
 import com.couchbase.client.java.Bucket;
+import java.util.Collections;
+import java.util.Map;
 
 /**
+ * Gives access to the buckets holding events and snapshots. Templates may
+ * spread aggregates over several buckets, called shards, in which case the
+ * buckets of an aggregate are looked up by its identifier.
  *
  * @author Bj&ouml;rn Oscarsson
  */
 public interface CouchbaseTemplate {
-    
+
+    /**
+     * Returns the event bucket. Templates spreading aggregates over shards
+     * return the bucket of one of them, see {@link #getEventBucket(String)}.
+     *
+     * @return the event bucket
+     */
     Bucket getEventBucket();
-    
+
+    /**
+     * Returns the snapshot bucket. Templates spreading aggregates over shards
+     * return the bucket of one of them, see
+     * {@link #getSnapshotBucket(String)}.
+     *
+     * @return the snapshot bucket
+     */
     Bucket getSnapshotBucket();
+
+    default Bucket getEventBucket(String aggregateIdentifier) {
+        return getEventBucket();
+    }
+
+    default Bucket getSnapshotBucket(String aggregateIdentifier) {
+        return getSnapshotBucket();
+    }
+
+    /**
+     * Returns the bucket the histories of dormant aggregates are archived to.
+     * By default they stay in the event bucket of the aggregate, where the
+     * archive still takes less memory than the documents it replaces.
+     *
+     * @param aggregateIdentifier identifier of the aggregate
+     * @return the archive bucket of the aggregate
+     */
+    default Bucket getArchiveBucket(String aggregateIdentifier) {
+        return getEventBucket(aggregateIdentifier);
+    }
+
+    /**
+     * Returns the event buckets of all shards by name, in a stable order. The
+     * global event stream is the merge of the streams of these buckets.
+     *
+     * @return the event bucket of every shard
+     */
+    default Map<String, Bucket> getEventShards() {
+        return Collections.singletonMap(getEventBucket().name(), getEventBucket());
+    }
     
 }
@@ -32,9 +32,15 @@ import com.couchbase.client.java.Bucket;
 public class DefaultCouchbaseTemplate implements CouchbaseTemplate {
 
     private final Bucket bucket;
+    private final Bucket archiveBucket;
 
     public DefaultCouchbaseTemplate(Bucket bucket) {
+        this(bucket, bucket);
+    }
+
+    public DefaultCouchbaseTemplate(Bucket bucket, Bucket archiveBucket) {
         this.bucket = bucket;
+        this.archiveBucket = archiveBucket;
     }
 
     
@@ -47,5 +53,10 @@ public class DefaultCouchbaseTemplate implements CouchbaseTemplate {
     public Bucket getSnapshotBucket() {
         return bucket;
     }
+
+    @Override
+    public Bucket getArchiveBucket(String aggregateIdentifier) {
+        return archiveBucket;
+    }
     
 }
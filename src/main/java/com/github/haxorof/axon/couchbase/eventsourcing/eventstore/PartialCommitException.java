@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import java.util.Collections;
+import java.util.List;
+import org.axonframework.eventsourcing.eventstore.EventStoreException;
+
+/**
+ * Thrown when the events of a commit spanning several shards were stored in
+ * some shards but not in others. The events of the aggregates stored stay in
+ * place, so the commit must not be retried as a whole.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class PartialCommitException extends EventStoreException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> storedAggregateIdentifiers;
+    private final List<String> failedAggregateIdentifiers;
+
+    public PartialCommitException(String message, List<String> storedAggregateIdentifiers, List<String> failedAggregateIdentifiers,
+            Throwable cause) {
+        super(message, cause);
+        this.storedAggregateIdentifiers = Collections.unmodifiableList(storedAggregateIdentifiers);
+        this.failedAggregateIdentifiers = Collections.unmodifiableList(failedAggregateIdentifiers);
+    }
+
+    /**
+     * Returns the identifiers of the aggregates whose events were stored.
+     *
+     * @return the aggregates stored
+     */
+    public List<String> getStoredAggregateIdentifiers() {
+        return storedAggregateIdentifiers;
+    }
+
+    /**
+     * Returns the identifiers of the aggregates whose events may not have
+     * been stored.
+     *
+     * @return the aggregates failed
+     */
+    public List<String> getFailedAggregateIdentifiers() {
+        return failedAggregateIdentifiers;
+    }
+
+}
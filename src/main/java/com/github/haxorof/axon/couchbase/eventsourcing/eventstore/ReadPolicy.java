@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.JsonDocument;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.axonframework.common.Assert;
+import rx.Observable;
+
+/**
+ * Decides where the documents read by a storage strategy are fetched from.
+ * Replicas are updated asynchronously and may lag behind the active copy, so
+ * a copy read from a replica is only used if the strategy considers it
+ * complete, which is the case for documents which are never changed again
+ * once written, such as a full segment of events. Any other document is read
+ * from the active copy, as are documents missing from the replica or when no
+ * replica is configured.
+ * <p>
+ * Policies are set per read operation on the strategy, see
+ * {@link AbstractCouchbaseStoreStrategy#setReadPolicy}. They hold no state,
+ * the replica reads and hedged requests they make are recorded on the
+ * measurement of the operation reading, and so reported to the monitor of
+ * the strategy.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ReadPolicy {
+
+    /**
+     * Reads every document from its active copy.
+     */
+    public static final ReadPolicy ACTIVE = new ReadPolicy(false, -1);
+
+    /**
+     * Reads documents from the first replica and falls back to the active
+     * copy if the replica does not hold a complete copy, taking the load of
+     * rebuilding projections off the nodes serving the live traffic.
+     */
+    public static final ReadPolicy REPLICA = new ReadPolicy(true, -1);
+
+    private final boolean replicaFirst;
+    private final long hedgeDelayNanos;
+
+    private ReadPolicy(boolean replicaFirst, long hedgeDelayNanos) {
+        this.replicaFirst = replicaFirst;
+        this.hedgeDelayNanos = hedgeDelayNanos;
+    }
+
+    /**
+     * Returns a policy reading from the active copy, which in addition asks
+     * the first replica if the active copy did not answer within the given
+     * delay, taking whichever complete copy arrives first. A delay around the
+     * 95th percentile of the read latency cuts the tail caused by a single
+     * slow node at the cost of a few percent more requests.
+     *
+     * @param delay time to wait for the active copy before asking the replica
+     * @param unit unit of the delay
+     * @return the hedging policy
+     */
+    public static ReadPolicy hedged(long delay, TimeUnit unit) {
+        Assert.isTrue(delay >= 0, () -> "Delay may not be negative");
+        return new ReadPolicy(false, unit.toNanos(delay));
+    }
+
+    /**
+     * Reads a document.
+     *
+     * @param bucket bucket holding the document
+     * @param id identifier of the document
+     * @param complete tells whether a copy read from a replica is complete
+     * @param measurement measurement recording replica reads and hedged
+     * requests
+     * @return an observable emitting the document, or completing empty if it
+     * does not exist
+     */
+    public Observable<JsonDocument> get(AsyncBucket bucket, String id, Predicate<JsonDocument> complete,
+            OperationMeasurement measurement) {
+        if (replicaFirst) {
+            return fromReplica(bucket, id, complete, measurement)
+                    .switchIfEmpty(Observable.defer(() -> bucket.get(id)));
+        } else if (hedgeDelayNanos >= 0) {
+            return Observable.mergeDelayError(
+                    bucket.get(id).map(Optional::of).defaultIfEmpty(Optional.empty()),
+                    Observable.timer(hedgeDelayNanos, TimeUnit.NANOSECONDS)
+                            .doOnNext(tick -> measurement.hedged())
+                            .flatMap(tick -> fromReplica(bucket, id, complete, measurement).map(Optional::of)))
+                    .take(1)
+                    .flatMap(document -> document.map(Observable::just).orElseGet(Observable::empty));
+        }
+        return bucket.get(id);
+    }
+
+    private Observable<JsonDocument> fromReplica(AsyncBucket bucket, String id, Predicate<JsonDocument> complete,
+            OperationMeasurement measurement) {
+        return bucket.getFromReplica(id, ReplicaMode.FIRST)
+                .filter(complete::test)
+                .take(1)
+                .onErrorResumeNext(Observable.empty())
+                .doOnNext(document -> measurement.replicaRead());
+    }
+
+}
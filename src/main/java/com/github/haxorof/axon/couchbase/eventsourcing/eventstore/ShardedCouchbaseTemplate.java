@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import com.couchbase.client.java.Bucket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.axonframework.common.Assert;
+
+/**
+ * Template spreading aggregates over several shards, each a template of its
+ * own which may use other buckets or clusters. An aggregate is assigned to a
+ * shard by consistent hashing of its identifier, which does not depend on the
+ * order in which shards are given.
+ * <p>
+ * The set of shards must stay the same for the lifetime of the event store.
+ * Events are never moved between shards, and reads do not look for them in
+ * other shards, so an aggregate assigned to another shard after adding or
+ * removing one would be loaded with an empty history.
+ * <p>
+ * Events appended in one commit are stored per shard, so a commit spanning
+ * aggregates of several shards is not atomic, see
+ * {@link PartialCommitException}. Tracking processors read the merged event
+ * streams of all shards, see {@link ShardedTrackingToken}.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ShardedCouchbaseTemplate implements CouchbaseTemplate {
+
+    /**
+     * Default number of points each shard gets on the hash ring.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<String, CouchbaseTemplate> shards;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    public ShardedCouchbaseTemplate(Map<String, CouchbaseTemplate> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardedCouchbaseTemplate(Map<String, CouchbaseTemplate> shards, int virtualNodes) {
+        Assert.isTrue(!shards.isEmpty(), () -> "At least one shard is needed");
+        Assert.isTrue(virtualNodes > 0, () -> "Number of virtual nodes must be positive");
+        this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(new TreeMap<>(shards)));
+        for (String shard : this.shards.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the shard holding an aggregate.
+     *
+     * @param aggregateIdentifier identifier of the aggregate
+     * @return the name of its shard
+     */
+    public String getShard(String aggregateIdentifier) {
+        Map.Entry<Long, String> node = ring.ceilingEntry(hash(aggregateIdentifier));
+        return node != null ? node.getValue() : ring.firstEntry().getValue();
+    }
+
+    public Map<String, CouchbaseTemplate> getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the event bucket of the first shard by name. It only holds the
+     * aggregates of that shard, the bucket of an aggregate is looked up with
+     * {@link #getEventBucket(String)}.
+     */
+    @Override
+    public Bucket getEventBucket() {
+        return firstShard().getEventBucket();
+    }
+
+    /**
+     * Returns the snapshot bucket of the first shard by name. It only holds
+     * the aggregates of that shard, the bucket of an aggregate is looked up
+     * with {@link #getSnapshotBucket(String)}.
+     */
+    @Override
+    public Bucket getSnapshotBucket() {
+        return firstShard().getSnapshotBucket();
+    }
+
+    @Override
+    public Bucket getEventBucket(String aggregateIdentifier) {
+        return shards.get(getShard(aggregateIdentifier)).getEventBucket(aggregateIdentifier);
+    }
+
+    @Override
+    public Bucket getSnapshotBucket(String aggregateIdentifier) {
+        return shards.get(getShard(aggregateIdentifier)).getSnapshotBucket(aggregateIdentifier);
+    }
+
+    @Override
+    public Bucket getArchiveBucket(String aggregateIdentifier) {
+        return shards.get(getShard(aggregateIdentifier)).getArchiveBucket(aggregateIdentifier);
+    }
+
+    @Override
+    public Map<String, Bucket> getEventShards() {
+        Map<String, Bucket> buckets = new LinkedHashMap<>();
+        shards.forEach((shard, template) -> buckets.put(shard, template.getEventBucket()));
+        return buckets;
+    }
+
+    private CouchbaseTemplate firstShard() {
+        return shards.values().iterator().next();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the characters, finished with the mixing step of
+     * MurmurHash3 to spread similar identifiers evenly over the ring.
+     */
+    private static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import org.axonframework.common.Assert;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.eventsourcing.eventstore.TrackedDomainEventData;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+
+/**
+ * Position in the merged event streams of several shards, made of the
+ * position reached in the stream of each shard. A shard without a position
+ * has not been read from yet. Shards are the buckets of a
+ * {@link ShardedCouchbaseTemplate} or the stripes of a global event log.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ShardedTrackingToken implements TrackingToken, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, TrackingToken> tokens;
+
+    public ShardedTrackingToken(Map<String, TrackingToken> tokens) {
+        this(new TreeMap<>(tokens));
+    }
+
+    private ShardedTrackingToken(TreeMap<String, TrackingToken> tokens) {
+        this.tokens = Collections.unmodifiableMap(tokens);
+    }
+
+    public Map<String, TrackingToken> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Returns the position reached in the stream of a shard.
+     *
+     * @param shard name of the shard
+     * @return the token of the shard, or {@code null} if it was not read yet
+     */
+    public TrackingToken getToken(String shard) {
+        return tokens.get(shard);
+    }
+
+    /**
+     * Returns a token which only differs from this one in the position
+     * reached in the stream of the given shard.
+     *
+     * @param shard name of the shard
+     * @param token the new position in the stream of the shard
+     * @return the advanced token
+     */
+    public ShardedTrackingToken advancedTo(String shard, TrackingToken token) {
+        TreeMap<String, TrackingToken> advanced = new TreeMap<>(tokens);
+        advanced.put(shard, token);
+        return new ShardedTrackingToken(advanced);
+    }
+
+    /**
+     * Merges batches read from the streams of several shards into one batch,
+     * always taking the oldest of the next events of the shards while keeping
+     * the order of the events of each shard. Every event is given the token
+     * of the merged stream. Merging stops as soon as a shard which returned a
+     * full batch runs out of events, since its next events may be older than
+     * the heads of the other shards, so the result is in timestamp order.
+     * Events with equal timestamps are taken from the shard with the most
+     * events left, which keeps a merge of many simultaneous events going.
+     *
+     * @param start token of the last event read from the merged stream
+     * @param batches the batch read from each shard, by shard name
+     * @param batchSize batch size the shards were read with
+     * @return the merged events
+     */
+    public static List<TrackedEventData<?>> merge(ShardedTrackingToken start,
+            Map<String, ? extends List<? extends TrackedEventData<?>>> batches, int batchSize) {
+        Map<String, Deque<TrackedEventData<?>>> heads = new LinkedHashMap<>();
+        batches.forEach((shard, batch) -> heads.put(shard, new ArrayDeque<>(batch)));
+        List<TrackedEventData<?>> events = new ArrayList<>();
+        ShardedTrackingToken position = start;
+        while (true) {
+            String nextShard = null;
+            TrackedEventData<?> next = null;
+            for (Map.Entry<String, Deque<TrackedEventData<?>>> head : heads.entrySet()) {
+                TrackedEventData<?> event = head.getValue().peekFirst();
+                if (event != null && (next == null || event.getTimestamp().isBefore(next.getTimestamp())
+                        || event.getTimestamp().equals(next.getTimestamp()) && head.getValue().size() > heads.get(nextShard).size())) {
+                    nextShard = head.getKey();
+                    next = event;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            heads.get(nextShard).pollFirst();
+            position = position.advancedTo(nextShard, next.trackingToken());
+            events.add(withToken(position, (DomainEventData<?>) next));
+            if (heads.get(nextShard).isEmpty() && batches.get(nextShard).size() >= batchSize) {
+                break;
+            }
+        }
+        return events;
+    }
+
+    private static <T> TrackedEventData<T> withToken(TrackingToken token, DomainEventData<T> event) {
+        return new TrackedDomainEventData<>(token, event);
+    }
+
+    @Override
+    public TrackingToken lowerBound(TrackingToken other) {
+        ShardedTrackingToken otherToken = sharded(other);
+        Map<String, TrackingToken> bounds = new TreeMap<>();
+        tokens.forEach((shard, token) -> {
+            TrackingToken otherShardToken = otherToken.tokens.get(shard);
+            if (otherShardToken != null) {
+                bounds.put(shard, token.lowerBound(otherShardToken));
+            }
+        });
+        return new ShardedTrackingToken(bounds);
+    }
+
+    @Override
+    public TrackingToken upperBound(TrackingToken other) {
+        ShardedTrackingToken otherToken = sharded(other);
+        Map<String, TrackingToken> bounds = new TreeMap<>(otherToken.tokens);
+        tokens.forEach((shard, token) -> bounds.merge(shard, token, TrackingToken::upperBound));
+        return new ShardedTrackingToken(bounds);
+    }
+
+    /**
+     * Tells whether this token has reached at least the position of the other
+     * one in the stream of every shard. Like the tokens of the shards, a token
+     * covers itself.
+     */
+    @Override
+    public boolean covers(TrackingToken other) {
+        ShardedTrackingToken otherToken = sharded(other);
+        return otherToken.tokens.entrySet().stream().allMatch(shard -> {
+            TrackingToken token = tokens.get(shard.getKey());
+            return token != null && (token.equals(shard.getValue()) || token.covers(shard.getValue()));
+        });
+    }
+
+    private static ShardedTrackingToken sharded(TrackingToken other) {
+        Assert.isTrue(other instanceof ShardedTrackingToken, () -> "Incompatible token type provided.");
+        return (ShardedTrackingToken) other;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return tokens.equals(((ShardedTrackingToken) o).tokens);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tokens);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedTrackingToken{tokens=" + tokens + '}';
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.archive;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseTemplate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+
+/**
+ * Background job archiving the histories of aggregates which got no events
+ * for a given period, so that only the working set of active aggregates stays
+ * resident in the event buckets.
+ * <p>
+ * Each run follows the global event stream from where the previous run
+ * stopped up to the events younger than the dormancy period. Every aggregate
+ * seen there is archived if its last event is still the last one seen for it,
+ * meaning it got no events since. Aggregates which did are seen again by a
+ * later run. The position reached is kept in the checkpoint document
+ * {@code cbes:ac}, with the tracking token serialized by the event serializer
+ * of the engine.
+ * <p>
+ * Runs are meant to be scheduled periodically, for example with a
+ * {@link java.util.concurrent.ScheduledExecutorService}. Only one archiver
+ * should run per event store at a time.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class DormantAggregateArchiver implements Runnable {
+
+    /**
+     * Default number of aggregates collected from the stream before they are
+     * archived and the checkpoint is moved.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final String CHECKPOINT_ID = "cbes:ac";
+    private static final String TOKEN_PROPERTY = "token";
+
+    private final CouchbaseEventStoreEngine engine;
+    private final CouchbaseTemplate template;
+    private final Duration dormancy;
+    private final int batchSize;
+    private final Clock clock;
+
+    public DormantAggregateArchiver(CouchbaseEventStoreEngine engine, CouchbaseTemplate template, Duration dormancy) {
+        this(engine, template, dormancy, DEFAULT_BATCH_SIZE);
+    }
+
+    public DormantAggregateArchiver(CouchbaseEventStoreEngine engine, CouchbaseTemplate template, Duration dormancy, int batchSize) {
+        this(engine, template, dormancy, batchSize, Clock.systemUTC());
+    }
+
+    public DormantAggregateArchiver(CouchbaseEventStoreEngine engine, CouchbaseTemplate template, Duration dormancy, int batchSize,
+            Clock clock) {
+        Assert.isFalse(dormancy.isNegative(), () -> "Dormancy may not be negative");
+        Assert.isTrue(batchSize > 0, () -> "Batch size must be positive");
+        this.engine = engine;
+        this.template = template;
+        this.dormancy = dormancy;
+        this.batchSize = batchSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Archives the dormant aggregates, logging instead of throwing failures so
+     * that periodic runs continue after one failed.
+     */
+    @Override
+    public void run() {
+        try {
+            archiveDormantAggregates();
+        } catch (RuntimeException e) {
+            log.warn("Failed to archive dormant aggregates", e);
+        }
+    }
+
+    /**
+     * Archives the aggregates which got their last event before the dormancy
+     * period, continuing where the previous run stopped.
+     *
+     * @return the number of aggregates archived
+     */
+    public int archiveDormantAggregates() {
+        Instant dormantBefore = clock.instant().minus(dormancy);
+        TrackingToken token = readCheckpoint();
+        int archived = 0;
+        try (Stream<? extends TrackedEventMessage<?>> events = engine.readEvents(token, false)) {
+            Iterator<? extends TrackedEventMessage<?>> iterator = events.iterator();
+            boolean dormant = true;
+            while (dormant && iterator.hasNext()) {
+                Map<String, Long> lastSequenceNumbers = new LinkedHashMap<>();
+                TrackingToken batchToken = null;
+                while (lastSequenceNumbers.size() < batchSize && iterator.hasNext()) {
+                    TrackedEventMessage<?> event = iterator.next();
+                    if (!event.getTimestamp().isBefore(dormantBefore)) {
+                        dormant = false;
+                        break;
+                    }
+                    if (event instanceof DomainEventMessage) {
+                        lastSequenceNumbers.put(((DomainEventMessage<?>) event).getAggregateIdentifier(),
+                                ((DomainEventMessage<?>) event).getSequenceNumber());
+                    }
+                    batchToken = event.trackingToken();
+                }
+                for (Map.Entry<String, Long> aggregate : lastSequenceNumbers.entrySet()) {
+                    if (engine.archiveEvents(aggregate.getKey(), aggregate.getValue())) {
+                        archived++;
+                    }
+                }
+                if (batchToken != null) {
+                    writeCheckpoint(batchToken);
+                }
+            }
+        }
+        log.info("Archived {} aggregates dormant since {}", archived, dormantBefore);
+        return archived;
+    }
+
+    private Bucket checkpointBucket() {
+        return template.getEventShards().values().iterator().next();
+    }
+
+    private TrackingToken readCheckpoint() {
+        JsonDocument document = checkpointBucket().get(CHECKPOINT_ID);
+        if (document == null) {
+            return null;
+        }
+        JsonObject token = document.content().getObject(TOKEN_PROPERTY);
+        return engine.getEventSerializer().deserialize(
+                new SimpleSerializedObject<>(token.getString("data"), String.class, token.getString("type"), token.getString("revision")));
+    }
+
+    private void writeCheckpoint(TrackingToken token) {
+        Serializer serializer = engine.getEventSerializer();
+        SerializedObject<String> serialized = serializer.serialize(token, String.class);
+        checkpointBucket().upsert(JsonDocument.create(CHECKPOINT_ID, JsonObject.create().put(TOKEN_PROPERTY, JsonObject.create()
+                .put("data", serialized.getData())
+                .put("type", serialized.getType().getName())
+                .put("revision", serialized.getType().getRevision()))));
+    }
+
+}
@@ -23,94 +23,536 @@
  */
 package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
 
-import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
-import com.couchbase.client.java.subdoc.DocumentFragment;
-import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseStoreStrategy;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ReadPolicy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.LongStream;
 import lombok.extern.slf4j.Slf4j;
-import org.axonframework.eventhandling.EventMessage;
-import org.axonframework.eventsourcing.DomainEventMessage;
-import org.axonframework.eventsourcing.eventstore.DomainEventData;
-import org.axonframework.eventsourcing.eventstore.EventUtils;
-import org.axonframework.eventsourcing.eventstore.TrackedEventData;
-import org.axonframework.eventsourcing.eventstore.TrackingToken;
-import org.axonframework.serialization.Serializer;
+import org.axonframework.common.Assert;
+import rx.Observable;
 
 /**
+ * Stores the events of an aggregate in a chain of segment documents
+ * ({@code cbes:ev:<aggregateIdentifier>:<n>}), where segment {@code n} holds
+ * the events with sequence numbers {@code n * segmentSize} up to
+ * {@code (n + 1) * segmentSize - 1}. Since the segment of an event follows
+ * from its sequence number, appending and loading only touch the segments at
+ * the tail of the stream, however long the history of the aggregate is.
+ * Every segment also keeps a {@code meta} object with the last sequence number
+ * and the number of events it holds, which locates a slice within it.
+ * <p>
+ * All events of a commit are written with a single sub-document mutation of
+ * the segment its first event falls in, which inserts a marker keyed by the
+ * first sequence number of the commit into the {@code commits} object of the
+ * segment. Concurrent writers of the same aggregate start at the same sequence
+ * number, so all but one of them fail on that insert before any of their
+ * events are stored, and a commit is never stored in part. A commit crossing
+ * the end of the range of its segment spills over into the next range, whose
+ * segment then starts with the commit that follows. An event is therefore
+ * held by the segment of its sequence number or by an earlier one.
+ * <p>
+ * Loading reads the segments of the requested range with one round of
+ * concurrent requests, together with the last sequence number of the segment
+ * before the range, or with the unsegmented document of the aggregate when
+ * reading from the start. A second round is only made for requested events
+ * before the first segment found which do exist: events spilled over by an
+ * earlier segment, archived events, or events written before segments were
+ * introduced. Those aggregates keep their history in a single
+ * {@code cbes:ev:<aggregateIdentifier>} document.
+ * <p>
+ * The history of a dormant aggregate can be moved into its archive, a chain of
+ * chunk documents ({@code cbes:ar:<aggregateIdentifier>:<n>}) each holding
+ * the deflated events of ten segments, possibly in another bucket. The
+ * archived segments are replaced by empty segments ending at the last
+ * archived event, so that reads find out about the archived events from the
+ * documents they read anyway. The empty segments keep the commit markers,
+ * which go on rejecting a commit conflicting with an archived one. An
+ * archived aggregate can be loaded and appended to as before.
+ * <p>
+ * Segments holding events up to the end of their range and archive chunks
+ * never change again, so loading an aggregate may take them from a replica
+ * under the {@link ReadPolicy} of {@link Operation#READ_EVENTS}. The segment
+ * at the tail is read from the active copy.
  *
  * @author Bj&ouml;rn Oscarsson
  */
 @Slf4j
-public class DocumentPerAggregateStorageStrategy implements CouchbaseStoreStrategy {
+public class DocumentPerAggregateStorageStrategy extends AbstractCouchbaseStoreStrategy {
+
+    /**
+     * Default number of events stored in one segment document.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 100;
 
     private final String EVENT_PREFIX = "cbes:ev:";
+    private static final String ARCHIVE_PREFIX = "cbes:ar:";
+    private static final int SEGMENTS_PER_ARCHIVE_CHUNK = 10;
+    private static final String EVENTS_PROPERTY = "events";
+    private static final String AGGREGATE_IDENTIFIER_PROPERTY = "aggregateIdentifier";
+    private static final String AGGREGATE_TYPE_PROPERTY = "type";
+    private static final String META_PROPERTY = "meta";
+    private static final String LAST_SEQUENCE_NUMBER_PROPERTY = "last";
+    private static final String COUNT_PROPERTY = "count";
+    private static final String COMMITS_PROPERTY = "commits";
+    private static final String FIRST_SEQUENCE_NUMBER_PROPERTY = "first";
+    private static final long NO_SEGMENT = Long.MIN_VALUE;
 
-    @Override
-    public void appendEvents(Bucket bucket, List<? extends EventMessage<?>> events, Serializer serializer) {
-        List<JsonObject> jsonObjects = createEventDocuments(events, serializer).collect(Collectors.toList());
-        jsonObjects.forEach((e) -> {
-            String docId = EVENT_PREFIX + e.getString("aggregateIdentifier");
-            if (!bucket.exists(docId)) {
-                JsonArray eventArray = JsonArray.empty()
-                        .add(e);
-                JsonObject data = JsonObject.empty()
-                        .put("events", eventArray);
-                JsonDocument doc = JsonDocument.create(docId, data);
-                bucket.insert(doc);
-            } else {
-                bucket.mutateIn(docId)
-                        .arrayAppend("events", e)
-                        .execute();
-            }
+    private final int segmentSize;
+    private final int archiveChunkSize;
 
-        });
+    public DocumentPerAggregateStorageStrategy() {
+        this(new GlobalEventLog());
     }
 
-    protected Stream<JsonObject> createEventDocuments(List<? extends EventMessage<?>> events, Serializer serializer) {
-        return events.stream()
-                .map(EventUtils::asDomainEventMessage)
-                .map(event -> new EventEntry(event, serializer))
-                .map(entry -> entry.asJsonObject());
+    public DocumentPerAggregateStorageStrategy(GlobalEventLog eventLog) {
+        this(eventLog, DEFAULT_SEGMENT_SIZE);
     }
 
-    @Override
-    public void appendSnapshot(Bucket bucket, DomainEventMessage<?> snapshot, Serializer serializer) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public DocumentPerAggregateStorageStrategy(GlobalEventLog eventLog, int segmentSize) {
+        this(eventLog, segmentSize, DEFAULT_MAX_CONCURRENT_WRITES);
     }
 
+    public DocumentPerAggregateStorageStrategy(GlobalEventLog eventLog, int segmentSize, int maxConcurrentWrites) {
+        this(eventLog, segmentSize, maxConcurrentWrites, EventEntryFormat.VERBOSE);
+    }
+
+    public DocumentPerAggregateStorageStrategy(GlobalEventLog eventLog, int segmentSize, int maxConcurrentWrites, EventEntryFormat format) {
+        super(eventLog, maxConcurrentWrites, format);
+        Assert.isTrue(segmentSize > 0, () -> "Segment size must be positive");
+        this.segmentSize = segmentSize;
+        this.archiveChunkSize = segmentSize * SEGMENTS_PER_ARCHIVE_CHUNK;
+    }
+
+    /**
+     * Writes all events of the commit with one mutation of the segment of its
+     * first event, so that a conflicting commit fails on the marker of that
+     * segment before any of its events are stored.
+     */
     @Override
-    public Optional<? extends DomainEventData<?>> findLastSnapshot(Bucket bucket, String aggregateIdentifier) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    protected Observable<?> appendAggregateEvents(AsyncBucket bucket, List<EventEntry> entries, OperationMeasurement measurement) {
+        EventEntry first = entries.get(0);
+        List<JsonObject> events = entries.stream().map(e -> getFormat().encode(e, true)).collect(Collectors.toList());
+        measurement.requests(1);
+        measurement.written(events);
+        return bucket.mutateIn(segmentId(first.getAggregateIdentifier(), first.getSequenceNumber()))
+                .upsertDocument(true)
+                .insert(COMMITS_PROPERTY + "." + first.getSequenceNumber(), first.getEventIdentifier(),
+                        new SubdocOptionsBuilder().createPath(true))
+                .upsert(AGGREGATE_IDENTIFIER_PROPERTY, first.getAggregateIdentifier())
+                .upsert(AGGREGATE_TYPE_PROPERTY, first.getType())
+                .upsert(META_PROPERTY + "." + LAST_SEQUENCE_NUMBER_PROPERTY,
+                        entries.get(entries.size() - 1).getSequenceNumber(), new SubdocOptionsBuilder().createPath(true))
+                .counter(META_PROPERTY + "." + COUNT_PROPERTY, entries.size(), new SubdocOptionsBuilder().createPath(true))
+                .arrayAppendAll(EVENTS_PROPERTY, events, new SubdocOptionsBuilder().createPath(true))
+                .execute();
     }
 
     @Override
-    public List<? extends DomainEventData<?>> findDomainEvents(Bucket bucket, String aggregateIdentifier, long firstSequenceNumber, int batchSize) {
-        String docId = EVENT_PREFIX + aggregateIdentifier;
-        JsonDocument doc = bucket.get(docId);
-        List<EventEntry> eventEntries = new ArrayList<>();
-        if (doc != null) {
-            DocumentFragment<Lookup> fragment = bucket.lookupIn(docId)
-                    .get("events")
-                    .execute();
-            JsonArray events = fragment.content("events", JsonArray.class);
-            events.forEach((event) -> {
-                eventEntries.add(new EventEntry((JsonObject) event));
-            });
+    protected Observable<List<EventEntry>> readAggregateEvents(AsyncBucket bucket, AsyncBucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, int batchSize, OperationMeasurement measurement) {
+        long endSequenceNumber = firstSequenceNumber + batchSize;
+        long firstSegment = firstSequenceNumber / segmentSize;
+        List<Long> segmentNumbers = LongStream.rangeClosed(firstSegment, (endSequenceNumber - 1) / segmentSize)
+                .boxed().collect(Collectors.toList());
+        measurement.requests(segmentNumbers.size() + 1);
+        ReadPolicy readPolicy = getReadPolicy(Operation.READ_EVENTS);
+        Observable<List<JsonDocument>> segments = Observable.from(segmentNumbers)
+                .flatMap(segment -> readPolicy.get(bucket, segmentDocumentId(aggregateIdentifier, segment),
+                        document -> isComplete(document, segment), measurement))
+                .toSortedList(this::compareSegments)
+                .map(this::afterLastGap);
+        if (firstSegment == 0) {
+            Observable<Optional<JsonDocument>> unsegmented = bucket.get(EVENT_PREFIX + aggregateIdentifier)
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty());
+            return Observable.zip(segments, unsegmented, (found, legacy) -> {
+                if (coversStart(found, firstSequenceNumber) || found.isEmpty() && !legacy.isPresent()) {
+                    return Observable.just(appendSegmentEvents(new ArrayList<>(), found, firstSequenceNumber, batchSize, measurement));
+                }
+                long end = endBefore(found, endSequenceNumber);
+                List<EventEntry> legacyEvents = legacy.map(document -> eventsBetween(decodeEvents(document, measurement),
+                        firstSequenceNumber, end)).orElse(Collections.emptyList());
+                if (!legacyEvents.isEmpty() && legacyEvents.get(0).getSequenceNumber() == firstSequenceNumber) {
+                    return Observable.just(appendSegmentEvents(new ArrayList<>(legacyEvents), found, firstSequenceNumber, batchSize,
+                            measurement));
+                }
+                return readEarlierEvents(bucket, archiveBucket, aggregateIdentifier, firstSequenceNumber, end, NO_SEGMENT, false, measurement)
+                        .map(earlier -> appendSegmentEvents(earlier, found, firstSequenceNumber, batchSize, measurement));
+            }).flatMap(events -> events);
+        }
+        Observable<Long> previousLast = bucket.lookupIn(segmentDocumentId(aggregateIdentifier, firstSegment - 1))
+                .get(META_PROPERTY + "." + LAST_SEQUENCE_NUMBER_PROPERTY)
+                .execute()
+                .map(fragment -> ((Number) fragment.content(0)).longValue())
+                .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException ? Observable.just(NO_SEGMENT) : Observable.<Long>error(e));
+        return Observable.zip(segments, previousLast, (found, previous) -> {
+            boolean endedBefore = previous != NO_SEGMENT && previous < firstSequenceNumber;
+            if (coversStart(found, firstSequenceNumber) || found.isEmpty() && endedBefore) {
+                return Observable.just(appendSegmentEvents(new ArrayList<>(), found, firstSequenceNumber, batchSize, measurement));
+            }
+            return readEarlierEvents(bucket, archiveBucket, aggregateIdentifier, firstSequenceNumber, endBefore(found, endSequenceNumber),
+                    previous >= firstSequenceNumber ? firstSegment - 1 : NO_SEGMENT, previous == NO_SEGMENT && firstSegment > 1, measurement)
+                    .map(earlier -> appendSegmentEvents(earlier, found, firstSequenceNumber, batchSize, measurement));
+        }).flatMap(events -> events);
+    }
+
+    private List<EventEntry> appendSegmentEvents(List<EventEntry> eventEntries, List<JsonDocument> segments, long firstSequenceNumber,
+            int batchSize, OperationMeasurement measurement) {
+        for (JsonDocument segment : segments) {
+            measurement.read(segment);
+            JsonObject content = segment.content();
+            JsonArray events = content.getArray(EVENTS_PROPERTY);
+            int from = (int) Math.max(0, firstSequenceNumber - firstSequenceNumber(segment));
+            for (int i = from; events != null && i < events.size() && eventEntries.size() < batchSize; i++) {
+                eventEntries.add(new EventEntry(events.getObject(i),
+                        content.getString(AGGREGATE_IDENTIFIER_PROPERTY), content.getString(AGGREGATE_TYPE_PROPERTY)));
+            }
         }
         return eventEntries;
     }
 
+    /**
+     * Reads the requested events before the first segment found, which are
+     * held by an earlier segment they spilled over from, by the archive or by
+     * the unsegmented document. The spilling segment is read first if known.
+     * When the segment before the range does not exist and the archive does
+     * not hold the events either, the segments before it are probed one by
+     * one for a commit spilling over more than a whole range.
+     *
+     * @param end sequence number of the first event not to read
+     * @param spillingSegment segment known to hold the first events, or
+     * {@code NO_SEGMENT}
+     * @param probe whether to probe the earlier segments
+     */
+    private Observable<List<EventEntry>> readEarlierEvents(AsyncBucket bucket, AsyncBucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, long end, long spillingSegment, boolean probe, OperationMeasurement measurement) {
+        Observable<List<EventEntry>> spilled = spillingSegment == NO_SEGMENT ? Observable.just(Collections.<EventEntry>emptyList())
+                : readSegmentEvents(bucket, aggregateIdentifier, spillingSegment, firstSequenceNumber, end, measurement);
+        return spilled.flatMap(spilledEvents -> {
+            if (startsAt(spilledEvents, firstSequenceNumber)) {
+                return Observable.just(spilledEvents);
+            }
+            long archivedEnd = spilledEvents.isEmpty() ? end : spilledEvents.get(0).getSequenceNumber();
+            return readArchivedEvents(bucket, archiveBucket, aggregateIdentifier, firstSequenceNumber, archivedEnd, measurement)
+                    .flatMap(archived -> {
+                        if (!probe || startsAt(archived, firstSequenceNumber)) {
+                            return Observable.just(merge(archived, spilledEvents));
+                        }
+                        return probeSegments(bucket, aggregateIdentifier, firstSequenceNumber / segmentSize - 2, firstSequenceNumber, end,
+                                measurement).map(probed -> merge(archived, probed));
+                    });
+        });
+    }
+
+    /**
+     * Reads the events of a single segment within the given range.
+     */
+    private Observable<List<EventEntry>> readSegmentEvents(AsyncBucket bucket, String aggregateIdentifier, long segment,
+            long firstSequenceNumber, long end, OperationMeasurement measurement) {
+        measurement.requests(1);
+        return getReadPolicy(Operation.READ_EVENTS)
+                .get(bucket, segmentDocumentId(aggregateIdentifier, segment), document -> isComplete(document, segment), measurement)
+                .map(document -> eventsBetween(decodeEvents(document, measurement), firstSequenceNumber, end))
+                .defaultIfEmpty(Collections.emptyList());
+    }
+
+    /**
+     * Reads the events within the given range of the first segment found at
+     * or before the given one.
+     */
+    private Observable<List<EventEntry>> probeSegments(AsyncBucket bucket, String aggregateIdentifier, long segment,
+            long firstSequenceNumber, long end, OperationMeasurement measurement) {
+        measurement.requests(1);
+        return bucket.get(segmentDocumentId(aggregateIdentifier, segment))
+                .map(document -> eventsBetween(decodeEvents(document, measurement), firstSequenceNumber, end))
+                .switchIfEmpty(segment > 0
+                        ? Observable.defer(() -> probeSegments(bucket, aggregateIdentifier, segment - 1, firstSequenceNumber, end, measurement))
+                        : Observable.just(Collections.<EventEntry>emptyList()));
+    }
+
+    /**
+     * Returns whether a segment holds its events up to the end of its range,
+     * after which no commit is written to it again.
+     */
+    private boolean isComplete(JsonDocument document, long segment) {
+        return document.content().getObject(META_PROPERTY).getLong(COUNT_PROPERTY) > 0
+                && lastSequenceNumber(document) >= (segment + 1) * segmentSize - 1;
+    }
+
+    /**
+     * Orders segments by the events they hold. An empty segment left by an
+     * archival sorts before the segment holding the events following it.
+     */
+    private int compareSegments(JsonDocument segment1, JsonDocument segment2) {
+        int result = Long.compare(firstSequenceNumber(segment1), firstSequenceNumber(segment2));
+        return result != 0 ? result : Long.compare(lastSequenceNumber(segment1), lastSequenceNumber(segment2));
+    }
+
+    private boolean coversStart(List<JsonDocument> segments, long firstSequenceNumber) {
+        return !segments.isEmpty() && firstSequenceNumber(segments.get(0)) <= firstSequenceNumber;
+    }
+
+    private static boolean startsAt(List<EventEntry> entries, long firstSequenceNumber) {
+        return !entries.isEmpty() && entries.get(0).getSequenceNumber() == firstSequenceNumber;
+    }
+
+    private long endBefore(List<JsonDocument> segments, long endSequenceNumber) {
+        return segments.isEmpty() ? endSequenceNumber : Math.min(endSequenceNumber, firstSequenceNumber(segments.get(0)));
+    }
+
+    private static List<EventEntry> eventsBetween(List<EventEntry> entries, long firstSequenceNumber, long end) {
+        return entries.stream()
+                .filter(entry -> entry.getSequenceNumber() >= firstSequenceNumber && entry.getSequenceNumber() < end)
+                .collect(Collectors.toList());
+    }
+
+    private static List<EventEntry> merge(List<EventEntry> earlier, List<EventEntry> later) {
+        Map<Long, EventEntry> merged = new TreeMap<>();
+        earlier.forEach(entry -> merged.putIfAbsent(entry.getSequenceNumber(), entry));
+        later.forEach(entry -> merged.putIfAbsent(entry.getSequenceNumber(), entry));
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Segments are removed in order when an aggregate is archived, so a read
+     * racing the archival may miss a segment and still see earlier ones. The
+     * events of those are archived already and read from the archive instead.
+     */
+    private List<JsonDocument> afterLastGap(List<JsonDocument> segments) {
+        for (int i = segments.size() - 1; i > 0; i--) {
+            if (firstSequenceNumber(segments.get(i)) != lastSequenceNumber(segments.get(i - 1)) + 1) {
+                return segments.subList(i, segments.size());
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the events before the first segment, from the archive and from the
+     * document of an aggregate written before segments were introduced.
+     */
+    private Observable<List<EventEntry>> readArchivedEvents(AsyncBucket bucket, AsyncBucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, long lastSequenceNumberExclusive, OperationMeasurement measurement) {
+        List<Long> chunkNumbers = LongStream.rangeClosed(firstSequenceNumber / archiveChunkSize,
+                (lastSequenceNumberExclusive - 1) / archiveChunkSize).boxed().collect(Collectors.toList());
+        measurement.requests(chunkNumbers.size() + 1);
+        ReadPolicy readPolicy = getReadPolicy(Operation.READ_EVENTS);
+        return Observable.from(chunkNumbers)
+                .flatMap(chunk -> readPolicy.get(archiveBucket, archiveChunkId(aggregateIdentifier, chunk),
+                        document -> document.content().getLong(LAST_SEQUENCE_NUMBER_PROPERTY) % archiveChunkSize == archiveChunkSize - 1,
+                        measurement))
+                .mergeWith(readPolicy.get(bucket, EVENT_PREFIX + aggregateIdentifier, document -> true, measurement))
+                .toList()
+                .map(documents -> {
+                    Map<Long, EventEntry> eventEntries = new TreeMap<>();
+                    for (JsonDocument document : documents) {
+                        for (EventEntry entry : decodeEvents(document, measurement)) {
+                            long sequenceNumber = entry.getSequenceNumber();
+                            if (sequenceNumber >= firstSequenceNumber && sequenceNumber < lastSequenceNumberExclusive) {
+                                eventEntries.putIfAbsent(entry.getSequenceNumber(), entry);
+                            }
+                        }
+                    }
+                    return new ArrayList<>(eventEntries.values());
+                });
+    }
+
+    /**
+     * Archives the segments of the aggregate, and its document from before
+     * segments were introduced, if they still end with the given event. The
+     * segment following the one of that event is read as well, to tell that it
+     * does not exist. The events are merged into the archive chunks they
+     * belong to first. Then the segment of the given event, followed by the
+     * others in order of sequence number, is replaced by an empty segment
+     * ending at it, which keeps the commit markers of the segment, and the
+     * document from before segments is removed. Each document is only
+     * replaced if it did not change since it was read. An append racing the
+     * archival thus either fails on a marker, or keeps the segment it appended
+     * to in place, holding events which are archived as well but only read
+     * from the segment.
+     */
     @Override
-    public List<? extends TrackedEventData<?>> findTrackedEvents(Bucket bucket, TrackingToken lastToken, int batchSize) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    protected boolean archiveEvents(Bucket bucket, Bucket archiveBucket, String aggregateIdentifier, long lastSequenceNumber,
+            OperationMeasurement measurement) {
+        int lastSegment = (int) (lastSequenceNumber / segmentSize);
+        measurement.requests(lastSegment + 3);
+        List<JsonDocument> documents = Observable.range(0, lastSegment + 2)
+                .concatMapEager(segment -> bucket.async().get(segmentDocumentId(aggregateIdentifier, segment)))
+                .startWith(bucket.async().get(EVENT_PREFIX + aggregateIdentifier))
+                .toList()
+                .toBlocking()
+                .single();
+        JsonDocument tail = documents.stream()
+                .filter(document -> !document.id().equals(EVENT_PREFIX + aggregateIdentifier))
+                .max(this::compareSegments)
+                .orElse(null);
+        if (tail == null || lastSequenceNumber(tail) != lastSequenceNumber) {
+            return false;
+        }
+        String aggregateType = tail.content().getString(AGGREGATE_TYPE_PROPERTY);
+        Map<Long, TreeMap<Long, Object>> eventsPerChunk = new TreeMap<>();
+        for (JsonDocument document : documents) {
+            measurement.read(document);
+            JsonArray events = document.content().getArray(EVENTS_PROPERTY);
+            for (int i = 0; events != null && i < events.size(); i++) {
+                EventEntry entry = new EventEntry(events.getObject(i), aggregateIdentifier, aggregateType);
+                eventsPerChunk.computeIfAbsent(entry.getSequenceNumber() / archiveChunkSize, chunk -> new TreeMap<>())
+                        .put(entry.getSequenceNumber(), events.getObject(i));
+            }
+        }
+        if (eventsPerChunk.isEmpty()) {
+            return false;
+        }
+        measurement.requests(eventsPerChunk.size());
+        Map<Long, JsonDocument> archivedChunks = Observable.from(eventsPerChunk.keySet())
+                .flatMap(chunk -> archiveBucket.async().get(archiveChunkId(aggregateIdentifier, chunk)))
+                .toMap(chunk -> Long.valueOf(chunk.id().substring(chunk.id().lastIndexOf(':') + 1)))
+                .toBlocking()
+                .single();
+        List<JsonDocument> chunks = new ArrayList<>();
+        for (Map.Entry<Long, TreeMap<Long, Object>> chunkEvents : eventsPerChunk.entrySet()) {
+            TreeMap<Long, Object> events = chunkEvents.getValue();
+            JsonDocument archived = archivedChunks.get(chunkEvents.getKey());
+            if (archived != null) {
+                measurement.read(archived);
+                JsonArray archivedEvents = JsonArray.fromJson(EventEntry.inflate(archived.content().getString(EVENTS_PROPERTY)));
+                long first = archived.content().getLong(FIRST_SEQUENCE_NUMBER_PROPERTY);
+                for (int i = 0; i < archivedEvents.size(); i++) {
+                    events.putIfAbsent(first + i, archivedEvents.get(i));
+                }
+            }
+            if (events.firstKey() != chunkEvents.getKey() * archiveChunkSize || events.lastKey() - events.firstKey() + 1 != events.size()) {
+                log.warn("Not archiving aggregate [{}], its events {} to {} are not contiguous",
+                        aggregateIdentifier, events.firstKey(), events.lastKey());
+                return false;
+            }
+            JsonObject content = JsonObject.create()
+                    .put(AGGREGATE_IDENTIFIER_PROPERTY, aggregateIdentifier)
+                    .put(AGGREGATE_TYPE_PROPERTY, aggregateType)
+                    .put(FIRST_SEQUENCE_NUMBER_PROPERTY, events.firstKey())
+                    .put(LAST_SEQUENCE_NUMBER_PROPERTY, events.lastKey())
+                    .put(EVENTS_PROPERTY, EventEntry.deflate(JsonArray.from(new ArrayList<>(events.values())).toString()));
+            chunks.add(JsonDocument.create(archiveChunkId(aggregateIdentifier, chunkEvents.getKey()), content,
+                    archived != null ? archived.cas() : 0));
+        }
+        Map<String, JsonDocument> emptySegments = new LinkedHashMap<>();
+        List<String> segmentIds = new ArrayList<>();
+        segmentIds.add(segmentDocumentId(aggregateIdentifier, lastSegment));
+        for (int segment = 0; segment < lastSegment; segment++) {
+            segmentIds.add(segmentDocumentId(aggregateIdentifier, segment));
+        }
+        for (String id : segmentIds) {
+            JsonDocument segment = documents.stream().filter(document -> document.id().equals(id)).findFirst().orElse(null);
+            JsonObject content = segment != null ? JsonObject.fromJson(segment.content().toString()) : JsonObject.create()
+                    .put(AGGREGATE_IDENTIFIER_PROPERTY, aggregateIdentifier)
+                    .put(AGGREGATE_TYPE_PROPERTY, aggregateType);
+            content.removeKey(EVENTS_PROPERTY);
+            content.put(META_PROPERTY, JsonObject.create()
+                    .put(LAST_SEQUENCE_NUMBER_PROPERTY, lastSequenceNumber)
+                    .put(COUNT_PROPERTY, 0));
+            if (segment != null || id.equals(segmentIds.get(0)) || id.equals(segmentDocumentId(aggregateIdentifier, 0))) {
+                emptySegments.put(id, JsonDocument.create(id, content, segment != null ? segment.cas() : 0));
+            }
+        }
+        try {
+            measurement.requests(chunks.size());
+            measurement.written(chunks.stream().map(JsonDocument::content).collect(Collectors.toList()));
+            Observable.from(chunks)
+                    .flatMap(chunk -> chunk.cas() == 0 ? archiveBucket.async().insert(chunk) : archiveBucket.async().replace(chunk))
+                    .toCompletable()
+                    .await();
+            for (JsonDocument segment : emptySegments.values()) {
+                measurement.requests(1);
+                measurement.written(segment.content());
+                if (segment.cas() == 0) {
+                    bucket.insert(segment);
+                } else {
+                    bucket.replace(segment);
+                }
+            }
+            for (JsonDocument document : documents) {
+                if (!emptySegments.containsKey(document.id())) {
+                    measurement.requests(1);
+                    bucket.remove(document);
+                }
+            }
+        } catch (DocumentAlreadyExistsException | CASMismatchException | DocumentDoesNotExistException e) {
+            log.debug("Aggregate [{}] changed while archiving it", aggregateIdentifier);
+            return false;
+        }
+        measurement.events((int) eventsPerChunk.values().stream().mapToLong(Map::size).sum());
+        return true;
+    }
+
+    private List<EventEntry> decodeEvents(JsonDocument document, OperationMeasurement measurement) {
+        measurement.read(document);
+        return decodeEvents(document);
+    }
+
+    /**
+     * Decodes the events of a segment, of an archive chunk or of an
+     * unsegmented document.
+     */
+    private List<EventEntry> decodeEvents(JsonDocument document) {
+        JsonObject content = document.content();
+        if (!content.containsKey(FIRST_SEQUENCE_NUMBER_PROPERTY)) {
+            JsonArray events = content.getArray(EVENTS_PROPERTY);
+            return events == null ? Collections.emptyList()
+                    : decodeEvents(events, content.getString(AGGREGATE_IDENTIFIER_PROPERTY), content.getString(AGGREGATE_TYPE_PROPERTY));
+        }
+        return decodeEvents(JsonArray.fromJson(EventEntry.inflate(content.getString(EVENTS_PROPERTY))),
+                content.getString(AGGREGATE_IDENTIFIER_PROPERTY), content.getString(AGGREGATE_TYPE_PROPERTY));
+    }
+
+    private static List<EventEntry> decodeEvents(JsonArray events, String aggregateIdentifier, String aggregateType) {
+        List<EventEntry> entries = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            entries.add(new EventEntry(events.getObject(i), aggregateIdentifier, aggregateType));
+        }
+        return entries;
+    }
+
+    /**
+     * Events within a segment are contiguous, so its first sequence number
+     * follows from the metadata kept up to date on every append.
+     */
+    private long firstSequenceNumber(JsonDocument segment) {
+        JsonObject meta = segment.content().getObject(META_PROPERTY);
+        return meta.getLong(LAST_SEQUENCE_NUMBER_PROPERTY) - meta.getLong(COUNT_PROPERTY) + 1;
+    }
+
+    private long lastSequenceNumber(JsonDocument segment) {
+        return segment.content().getObject(META_PROPERTY).getLong(LAST_SEQUENCE_NUMBER_PROPERTY);
+    }
+
+    private String segmentId(String aggregateIdentifier, long sequenceNumber) {
+        return segmentDocumentId(aggregateIdentifier, sequenceNumber / segmentSize);
+    }
+
+    private String segmentDocumentId(String aggregateIdentifier, long segment) {
+        return EVENT_PREFIX + aggregateIdentifier + ":" + segment;
+    }
+
+    private String archiveChunkId(String aggregateIdentifier, long chunk) {
+        return ARCHIVE_PREFIX + aggregateIdentifier + ":" + chunk;
     }
 
 }
@@ -24,9 +24,16 @@
 package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
 
 import com.couchbase.client.java.document.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import org.axonframework.eventsourcing.DomainEventMessage;
 import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.serialization.SerializationException;
 import org.axonframework.serialization.SerializedMetaData;
 import org.axonframework.serialization.SerializedObject;
 import org.axonframework.serialization.Serializer;
@@ -37,6 +44,17 @@ import static org.axonframework.serialization.MessageSerializer.serializePayload
 
 /**
  * Data needed by different types of event logs.
+ * <p>
+ * Entries are stored either in the verbose format, with descriptive property
+ * names and an ISO-8601 time stamp, or in the compact format, with short
+ * property names, the time stamp in epoch milliseconds and optionally
+ * deflated payload and meta data. Compact entries stored in a document which
+ * belongs to one aggregate may leave out the aggregate identifier and type.
+ * Both formats are always readable.
+ * <p>
+ * Entries read from Couchbase decode their time stamp, payload and meta data
+ * only when first asked for, and keep the result. Reading a stream of events
+ * thus only pays for what Axon actually uses of each of them.
  *
  * @author Bj&ouml;rn Oscarsson
  */
@@ -67,27 +85,74 @@ public class EventEntry implements DomainEventData<Object> {
     private static final String PAYLOAD_REVISION_PROPERTY = "payloadRevision";
     private static final String META_DATA_PROPERTY = "serializedMetaData";
     private static final String EVENT_IDENTIFIER_PROPERTY = "eventIdentifier";
+
+    /**
+     * Property name in Couchbase for the position of the event in the global
+     * event log.
+     */
+    private static final String GLOBAL_INDEX_PROPERTY = "globalIndex";
+
+    /**
+     * Property names of the compact format.
+     */
+    private static final String COMPACT_AGGREGATE_IDENTIFIER_PROPERTY = "a";
+    private static final String COMPACT_SEQUENCE_NUMBER_PROPERTY = "s";
+    private static final String COMPACT_AGGREGATE_TYPE_PROPERTY = "t";
+    private static final String COMPACT_TIME_STAMP_PROPERTY = "ts";
+    private static final String COMPACT_TIME_STAMP_NANOS_PROPERTY = "tn";
+    private static final String COMPACT_PAYLOAD_PROPERTY = "p";
+    private static final String COMPACT_PAYLOAD_TYPE_PROPERTY = "pt";
+    private static final String COMPACT_PAYLOAD_REVISION_PROPERTY = "pr";
+    private static final String COMPACT_META_DATA_PROPERTY = "m";
+    private static final String COMPACT_EVENT_IDENTIFIER_PROPERTY = "id";
+    private static final String COMPACT_GLOBAL_INDEX_PROPERTY = "gi";
+    private static final String COMPACT_DEFLATED_PROPERTY = "z";
+
+    /**
+     * Flags in the deflated property telling which fields are deflated.
+     */
+    private static final int DEFLATED_PAYLOAD = 1;
+    private static final int DEFLATED_META_DATA = 2;
+
+    /**
+     * Global index of entries stored before the global event log existed.
+     */
+    public static final long NO_GLOBAL_INDEX = -1L;
+
     /**
      * Charset used for the serialization is usually UTF-8, which is presented
      * by this constant.
      */
     private final String aggregateIdentifier;
     private final long sequenceNumber;
-    private final String timeStamp;
     private final String aggregateType;
-    private final Object serializedPayload;
     private final String payloadType;
     private final String payloadRevision;
-    private final Object serializedMetaData;
     private final String eventIdentifier;
+    private final long globalIndex;
+
+    /**
+     * Time stamp, payload and meta data as stored, which are decoded on first
+     * use. Decoding is idempotent and the results are immutable, so entries
+     * may be shared between threads without locking.
+     */
+    private final Object storedTimeStamp;
+    private final long storedTimeStampNanos;
+    private final Object storedPayload;
+    private final Object storedMetaData;
+    private final int deflatedFlags;
+    private Instant timeStamp;
+    private Object serializedPayload;
+    private Object serializedMetaData;
 
     /**
      * Constructor used to create a new event entry to store in Mongo.
      *
      * @param event The actual DomainEvent to store
      * @param serializer Serializer to use for the event to store
+     * @param globalIndex Position of the event in the global event log
      */
-    EventEntry(DomainEventMessage<?> event, Serializer serializer) {
+    public EventEntry(DomainEventMessage<?> event, Serializer serializer, long globalIndex) {
         this.aggregateType = event.getType();
         this.aggregateIdentifier = event.getAggregateIdentifier();
         this.sequenceNumber = event.getSequenceNumber();
@@ -100,10 +165,16 @@ public class EventEntry implements DomainEventData<Object> {
         SerializedObject<?> serializedMetaDataObject = serializeMetaData(event, serializer, serializationTarget);
 
         this.serializedPayload = serializedPayloadObject.getData();
+        this.storedPayload = serializedPayload;
         this.payloadType = serializedPayloadObject.getType().getName();
         this.payloadRevision = serializedPayloadObject.getType().getRevision();
         this.serializedMetaData = serializedMetaDataObject.getData();
-        this.timeStamp = event.getTimestamp().toString();
+        this.storedMetaData = serializedMetaData;
+        this.deflatedFlags = 0;
+        this.timeStamp = event.getTimestamp();
+        this.storedTimeStamp = timeStamp;
+        this.storedTimeStampNanos = 0;
+        this.globalIndex = globalIndex;
     }
 
     /**
@@ -112,21 +183,88 @@ public class EventEntry implements DomainEventData<Object> {
      * @param jsonObject Mongo object that contains data to represent an
      * EventEntry
      */
-    EventEntry(JsonObject jsonObject) {
-        this.aggregateIdentifier = (String) jsonObject.get(AGGREGATE_IDENTIFIER_PROPERTY);
-        this.sequenceNumber = ((Number) jsonObject.get(SEQUENCE_NUMBER_PROPERTY)).longValue();
-        this.serializedPayload = jsonObject.get(SERIALIZED_PAYLOAD_PROPERTY);
-        this.timeStamp = (String) jsonObject.get(TIME_STAMP_PROPERTY);
-        this.aggregateType = (String) jsonObject.get(AGGREGATE_TYPE_PROPERTY);
-        this.payloadType = (String) jsonObject.get(PAYLOAD_TYPE_PROPERTY);
-        this.payloadRevision = (String) jsonObject.get(PAYLOAD_REVISION_PROPERTY);
-        this.serializedMetaData = jsonObject.get(META_DATA_PROPERTY);
-        this.eventIdentifier = (String) jsonObject.get(EVENT_IDENTIFIER_PROPERTY);
+    public EventEntry(JsonObject jsonObject) {
+        this(jsonObject, null, null);
+    }
+
+    /**
+     * Creates a new EventEntry based on data provided by Couchbase, stored in
+     * a document belonging to one aggregate.
+     *
+     * @param jsonObject object that contains data to represent an EventEntry
+     * @param aggregateIdentifier identifier of the aggregate owning the
+     * document, used if the entry does not hold it
+     * @param aggregateType type of the aggregate owning the document, used if
+     * the entry does not hold it
+     */
+    public EventEntry(JsonObject jsonObject, String aggregateIdentifier, String aggregateType) {
+        if (jsonObject.containsKey(SEQUENCE_NUMBER_PROPERTY)) {
+            this.aggregateIdentifier = (String) jsonObject.get(AGGREGATE_IDENTIFIER_PROPERTY);
+            this.sequenceNumber = ((Number) jsonObject.get(SEQUENCE_NUMBER_PROPERTY)).longValue();
+            this.storedPayload = jsonObject.get(SERIALIZED_PAYLOAD_PROPERTY);
+            this.storedTimeStamp = jsonObject.get(TIME_STAMP_PROPERTY);
+            this.storedTimeStampNanos = 0;
+            this.aggregateType = (String) jsonObject.get(AGGREGATE_TYPE_PROPERTY);
+            this.payloadType = (String) jsonObject.get(PAYLOAD_TYPE_PROPERTY);
+            this.payloadRevision = (String) jsonObject.get(PAYLOAD_REVISION_PROPERTY);
+            this.storedMetaData = jsonObject.get(META_DATA_PROPERTY);
+            this.deflatedFlags = 0;
+            this.eventIdentifier = (String) jsonObject.get(EVENT_IDENTIFIER_PROPERTY);
+            Number index = (Number) jsonObject.get(GLOBAL_INDEX_PROPERTY);
+            this.globalIndex = index != null ? index.longValue() : NO_GLOBAL_INDEX;
+        } else {
+            String storedIdentifier = (String) jsonObject.get(COMPACT_AGGREGATE_IDENTIFIER_PROPERTY);
+            String storedType = (String) jsonObject.get(COMPACT_AGGREGATE_TYPE_PROPERTY);
+            Number deflated = (Number) jsonObject.get(COMPACT_DEFLATED_PROPERTY);
+            Number nanos = (Number) jsonObject.get(COMPACT_TIME_STAMP_NANOS_PROPERTY);
+            this.aggregateIdentifier = storedIdentifier != null ? storedIdentifier : aggregateIdentifier;
+            this.aggregateType = storedType != null ? storedType : aggregateType;
+            this.sequenceNumber = ((Number) jsonObject.get(COMPACT_SEQUENCE_NUMBER_PROPERTY)).longValue();
+            this.storedTimeStamp = jsonObject.get(COMPACT_TIME_STAMP_PROPERTY);
+            this.storedTimeStampNanos = nanos != null ? nanos.longValue() : 0;
+            this.storedPayload = jsonObject.get(COMPACT_PAYLOAD_PROPERTY);
+            this.payloadType = (String) jsonObject.get(COMPACT_PAYLOAD_TYPE_PROPERTY);
+            this.payloadRevision = (String) jsonObject.get(COMPACT_PAYLOAD_REVISION_PROPERTY);
+            this.storedMetaData = jsonObject.get(COMPACT_META_DATA_PROPERTY);
+            this.deflatedFlags = deflated != null ? deflated.intValue() : 0;
+            this.eventIdentifier = (String) jsonObject.get(COMPACT_EVENT_IDENTIFIER_PROPERTY);
+            Number index = (Number) jsonObject.get(COMPACT_GLOBAL_INDEX_PROPERTY);
+            this.globalIndex = index != null ? index.longValue() : NO_GLOBAL_INDEX;
+        }
+    }
+
+    private EventEntry(EventEntry entry, long globalIndex) {
+        this.aggregateIdentifier = entry.aggregateIdentifier;
+        this.sequenceNumber = entry.sequenceNumber;
+        this.aggregateType = entry.aggregateType;
+        this.payloadType = entry.payloadType;
+        this.payloadRevision = entry.payloadRevision;
+        this.eventIdentifier = entry.eventIdentifier;
+        this.storedTimeStamp = entry.storedTimeStamp;
+        this.storedTimeStampNanos = entry.storedTimeStampNanos;
+        this.storedPayload = entry.storedPayload;
+        this.storedMetaData = entry.storedMetaData;
+        this.deflatedFlags = entry.deflatedFlags;
+        this.timeStamp = entry.timeStamp;
+        this.serializedPayload = entry.serializedPayload;
+        this.serializedMetaData = entry.serializedMetaData;
+        this.globalIndex = globalIndex;
+    }
+
+    /**
+     * Returns a copy of this entry at another position in the global event
+     * log.
+     *
+     * @param globalIndex the new global index
+     * @return the copy
+     */
+    public EventEntry withGlobalIndex(long globalIndex) {
+        return new EventEntry(this, globalIndex);
     }
 
     private Class<?> getRepresentationType() {
         Class<?> representationType = String.class;
-        if (serializedPayload instanceof JsonObject) {
+        if (storedPayload instanceof JsonObject) {
             representationType = JsonObject.class;
         }
         return representationType;
@@ -141,13 +279,161 @@ public class EventEntry implements DomainEventData<Object> {
         return JsonObject.empty()
                 .put(AGGREGATE_IDENTIFIER_PROPERTY, aggregateIdentifier)
                 .put(SEQUENCE_NUMBER_PROPERTY, sequenceNumber)
-                .put(SERIALIZED_PAYLOAD_PROPERTY, serializedPayload)
-                .put(TIME_STAMP_PROPERTY, timeStamp)
+                .put(SERIALIZED_PAYLOAD_PROPERTY, serializedPayload())
+                .put(TIME_STAMP_PROPERTY, getTimestamp().toString())
                 .put(AGGREGATE_TYPE_PROPERTY, aggregateType)
                 .put(PAYLOAD_TYPE_PROPERTY, payloadType)
                 .put(PAYLOAD_REVISION_PROPERTY, payloadRevision)
-                .put(META_DATA_PROPERTY, serializedMetaData)
-                .put(EVENT_IDENTIFIER_PROPERTY, eventIdentifier);
+                .put(META_DATA_PROPERTY, serializedMetaData())
+                .put(EVENT_IDENTIFIER_PROPERTY, eventIdentifier)
+                .put(GLOBAL_INDEX_PROPERTY, globalIndex);
+    }
+
+    /**
+     * Returns the current EventEntry as a Couchbase JsonObject in the compact
+     * format.
+     *
+     * @param includeAggregate whether to store the aggregate identifier and
+     * type, which may be left out if the document holding the entry stores
+     * them
+     * @param deflateThreshold minimum length of a string payload or meta data
+     * to store it deflated
+     * @return JsonObject representing the EventEntry
+     */
+    public JsonObject asCompactJsonObject(boolean includeAggregate, int deflateThreshold) {
+        JsonObject jsonObject = JsonObject.empty();
+        if (includeAggregate) {
+            jsonObject.put(COMPACT_AGGREGATE_IDENTIFIER_PROPERTY, aggregateIdentifier)
+                    .put(COMPACT_AGGREGATE_TYPE_PROPERTY, aggregateType);
+        }
+        Instant timeStamp = getTimestamp();
+        Object serializedPayload = serializedPayload();
+        Object serializedMetaData = serializedMetaData();
+        jsonObject.put(COMPACT_SEQUENCE_NUMBER_PROPERTY, sequenceNumber)
+                .put(COMPACT_TIME_STAMP_PROPERTY, timeStamp.toEpochMilli())
+                .put(COMPACT_PAYLOAD_TYPE_PROPERTY, payloadType)
+                .put(COMPACT_EVENT_IDENTIFIER_PROPERTY, eventIdentifier);
+        if (timeStamp.getNano() % 1_000_000 != 0) {
+            jsonObject.put(COMPACT_TIME_STAMP_NANOS_PROPERTY, timeStamp.getNano() % 1_000_000);
+        }
+        if (payloadRevision != null) {
+            jsonObject.put(COMPACT_PAYLOAD_REVISION_PROPERTY, payloadRevision);
+        }
+        if (globalIndex != NO_GLOBAL_INDEX) {
+            jsonObject.put(COMPACT_GLOBAL_INDEX_PROPERTY, globalIndex);
+        }
+        int deflatedFlags = 0;
+        if (shouldDeflate(serializedPayload, deflateThreshold)) {
+            jsonObject.put(COMPACT_PAYLOAD_PROPERTY, deflate((String) serializedPayload));
+            deflatedFlags |= DEFLATED_PAYLOAD;
+        } else {
+            jsonObject.put(COMPACT_PAYLOAD_PROPERTY, serializedPayload);
+        }
+        if (shouldDeflate(serializedMetaData, deflateThreshold)) {
+            jsonObject.put(COMPACT_META_DATA_PROPERTY, deflate((String) serializedMetaData));
+            deflatedFlags |= DEFLATED_META_DATA;
+        } else {
+            jsonObject.put(COMPACT_META_DATA_PROPERTY, serializedMetaData);
+        }
+        if (deflatedFlags != 0) {
+            jsonObject.put(COMPACT_DEFLATED_PROPERTY, deflatedFlags);
+        }
+        return jsonObject;
+    }
+
+    private static boolean shouldDeflate(Object data, int deflateThreshold) {
+        return data instanceof String && ((String) data).length() >= deflateThreshold;
+    }
+
+    /**
+     * Deflates a string, encoding the result in Base64.
+     *
+     * @param data the string to deflate
+     * @return the deflated string
+     */
+    static String deflate(String data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private Object serializedPayload() {
+        if (serializedPayload == null) {
+            serializedPayload = inflateIf(storedPayload, DEFLATED_PAYLOAD);
+        }
+        return serializedPayload;
+    }
+
+    private Object serializedMetaData() {
+        if (serializedMetaData == null) {
+            serializedMetaData = inflateIf(storedMetaData, DEFLATED_META_DATA);
+        }
+        return serializedMetaData;
+    }
+
+    private Object inflateIf(Object data, int flag) {
+        return (deflatedFlags & flag) == 0 ? data : inflate((String) data);
+    }
+
+    /**
+     * Inflates a string deflated by {@link #deflate(String)}.
+     *
+     * @param data the deflated string
+     * @return the original string
+     */
+    static String inflate(String data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(data));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SerializationException("Deflated event data is truncated");
+                }
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new SerializationException("Deflated event data is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the position of this entry in the global event log.
+     *
+     * @return the global index, or {@code -1} for entries stored before the
+     * global event log was introduced
+     */
+    public long getGlobalIndex() {
+        return globalIndex;
+    }
+
+    /**
+     * Returns the length of the payload and meta data as stored, deflated
+     * ones in their deflated form. Neither is decoded for it.
+     *
+     * @return the number of characters stored
+     */
+    public int getStoredLength() {
+        return storedLength(storedPayload) + storedLength(storedMetaData);
+    }
+
+    private static int storedLength(Object data) {
+        return data instanceof String ? ((String) data).length() : String.valueOf(data).length();
     }
 
     @Override
@@ -172,18 +458,25 @@ public class EventEntry implements DomainEventData<Object> {
 
     @Override
     public Instant getTimestamp() {
-        return Instant.parse(timeStamp);
+        if (timeStamp == null) {
+            if (storedTimeStamp instanceof Number) {
+                timeStamp = Instant.ofEpochMilli(((Number) storedTimeStamp).longValue()).plusNanos(storedTimeStampNanos);
+            } else {
+                timeStamp = Instant.parse((String) storedTimeStamp);
+            }
+        }
+        return timeStamp;
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public SerializedObject<Object> getMetaData() {
-        return new SerializedMetaData(serializedMetaData, getRepresentationType());
+        return new SerializedMetaData<>(serializedMetaData(), (Class<Object>) getRepresentationType());
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public SerializedObject<Object> getPayload() {
-        return new SimpleSerializedObject(serializedPayload, getRepresentationType(), payloadType, payloadRevision);
+        return new SimpleSerializedObject<>(serializedPayload(), (Class<Object>) getRepresentationType(), payloadType, payloadRevision);
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.axonframework.common.Assert;
+
+/**
+ * Format in which event entries are written. Entries are read in whichever
+ * format they were written, so the format can be changed on a live store.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class EventEntryFormat {
+
+    /**
+     * Descriptive property names and ISO-8601 time stamps, as written by
+     * earlier versions.
+     */
+    public static final EventEntryFormat VERBOSE = new EventEntryFormat(false, Integer.MAX_VALUE);
+
+    /**
+     * Short property names, epoch time stamps and the aggregate identifier and
+     * type stored once per aggregate document.
+     */
+    public static final EventEntryFormat COMPACT = new EventEntryFormat(true, Integer.MAX_VALUE);
+
+    private final boolean compact;
+    private final int deflateThreshold;
+
+    private EventEntryFormat(boolean compact, int deflateThreshold) {
+        this.compact = compact;
+        this.deflateThreshold = deflateThreshold;
+    }
+
+    /**
+     * Returns the compact format, which in addition deflates string payloads
+     * and meta data of at least the given length.
+     *
+     * @param deflateThreshold minimum number of characters to deflate
+     * @return the compact format with deflation
+     */
+    public static EventEntryFormat compact(int deflateThreshold) {
+        Assert.isTrue(deflateThreshold >= 0, () -> "Deflate threshold may not be negative");
+        return new EventEntryFormat(true, deflateThreshold);
+    }
+
+    /**
+     * Encodes an entry.
+     *
+     * @param entry the entry to encode
+     * @param inAggregateDocument whether the entry is stored in a document
+     * holding the aggregate identifier and type itself
+     * @return the encoded entry
+     */
+    public JsonObject encode(EventEntry entry, boolean inAggregateDocument) {
+        return compact ? entry.asCompactJsonObject(!inAggregateDocument, deflateThreshold) : entry.asJsonObject();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import rx.Observable;
+
+/**
+ * Looks up a single event in the documents of its aggregate, which the
+ * {@link GlobalEventLog} uses to publish events it reserved an index for but
+ * which were never added to its pages.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@FunctionalInterface
+public interface EventLookup {
+
+    /**
+     * Finds the event an aggregate holds at the given sequence number. The
+     * copy read must hold every event stored so far, or the index of the
+     * event is voided.
+     *
+     * @param bucket bucket holding the aggregate
+     * @param aggregateIdentifier identifier of the aggregate
+     * @param sequenceNumber sequence number of the event
+     * @param measurement measurement of the calling operation
+     * @return an observable emitting the event, or completing empty if the
+     * aggregate does not hold it
+     */
+    Observable<EventEntry> find(AsyncBucket bucket, String aggregateIdentifier, long sequenceNumber, OperationMeasurement measurement);
+
+}
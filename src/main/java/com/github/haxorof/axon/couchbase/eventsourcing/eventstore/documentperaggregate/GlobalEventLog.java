@@ -0,0 +1,810 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ReadPolicy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ShardedTrackingToken;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventsourcing.eventstore.GapAwareTrackingToken;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.axonframework.eventsourcing.eventstore.TrackedDomainEventData;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+/**
+ * Global log of all appended events which feeds tracking event processors.
+ * <p>
+ * Every event is assigned a global index from an atomic counter document. The
+ * event entries are then copied into page documents, each covering a fixed
+ * range of global indexes, so that reading the next batch of the stream is a
+ * couple of key lookups no matter how large the store grows.
+ * <p>
+ * The log can be split into a power of two number of stripes, each with its
+ * own counter ({@code cbes:gi:<stripe>}) and pages
+ * ({@code cbes:gl:<stripe>:<page>}). An aggregate always lands in stripe
+ * {@code hashCode(aggregateIdentifier) & (stripes - 1)}, the same bits Axon
+ * uses to assign it to a {@link Segment} under the default sequencing policy.
+ * The threads of a tracking processor can therefore read their segment from
+ * the stripes it covers only, see
+ * {@link #read(Bucket, ReadPolicy, EventLookup, EventEntryFormat, Segment, TrackingToken, int, OperationMeasurement)}.
+ * With stripes, tokens are {@link ShardedTrackingToken}s holding the position
+ * in each stripe. The number of stripes can not be changed once events are
+ * stored.
+ * <p>
+ * Appends also maintain a {@link TimeIndex} of the global indexes per minute,
+ * hour and day, so that a token for a point in time can be created with a
+ * few rounds of key lookups, see
+ * {@link #createTokenAt(Bucket, Instant, OperationMeasurement)}.
+ * <p>
+ * The documents of the aggregates are the source of truth, the log only
+ * publishes what they hold. An append reserves its indexes in the pages
+ * ({@code reserved}: index, aggregate identifier and sequence number of each
+ * event) before it writes the aggregates, and adds the events of the
+ * aggregates it stored to the pages afterwards. Should the writer fail or
+ * crash in between, readers find the reservation without an event once it is
+ * older than the repair delay, look the event up in the documents of its
+ * aggregate through an {@link EventLookup} and publish it themselves. A
+ * reservation whose sequence number is not held by its event, because the
+ * append conflicted with another one or never got to store it, is voided
+ * ({@code void}) and no longer counts as a gap. A reader only voids an index
+ * if the page did not change since it read it, so a writer adding its event
+ * in the meantime prevents the void. A writer which still stores its events
+ * after they were voided finds the void once it added them to the pages,
+ * and publishes them late, at new indexes. The repair delay should
+ * therefore be longer than an append usually takes, and at most the gap
+ * timeout.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class GlobalEventLog {
+
+    /**
+     * Default number of global indexes covered by one page document.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Default number of stripes, a single log.
+     */
+    public static final int DEFAULT_STRIPES = 1;
+
+    /**
+     * Default maximum distance of a remembered gap to the index of the token.
+     */
+    public static final int DEFAULT_MAX_GAP_OFFSET = 10000;
+
+    /**
+     * Default time after which a gap is forgotten, in milliseconds.
+     */
+    public static final long DEFAULT_GAP_TIMEOUT = 60000;
+
+    /**
+     * Default time after which a reserved index without an event is looked
+     * up in the document of its aggregate, in milliseconds.
+     */
+    public static final long DEFAULT_REPAIR_DELAY = 10000;
+
+    private static final String COUNTER_ID = "cbes:gi";
+    private static final String PAGE_PREFIX = "cbes:gl:";
+    private static final String EVENTS_PROPERTY = "events";
+    private static final String RESERVED_PROPERTY = "reserved";
+    private static final String VOID_PROPERTY = "void";
+    private static final String INDEX_PROPERTY = "gi";
+    private static final String AGGREGATE_IDENTIFIER_PROPERTY = "a";
+    private static final String SEQUENCE_NUMBER_PROPERTY = "s";
+    private static final String RESERVED_AT_PROPERTY = "ts";
+
+    private final int pageSize;
+    private final int stripes;
+    private final int maxGapOffset;
+    private final long gapTimeout;
+    private final long repairDelay;
+    private final TimeIndex timeIndex;
+
+    public GlobalEventLog() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    public GlobalEventLog(int pageSize) {
+        this(pageSize, DEFAULT_STRIPES);
+    }
+
+    public GlobalEventLog(int pageSize, int stripes) {
+        this(pageSize, stripes, DEFAULT_MAX_GAP_OFFSET, DEFAULT_GAP_TIMEOUT);
+    }
+
+    public GlobalEventLog(int pageSize, int stripes, int maxGapOffset, long gapTimeout) {
+        this(pageSize, stripes, maxGapOffset, gapTimeout, Math.min(DEFAULT_REPAIR_DELAY, gapTimeout / 2));
+    }
+
+    public GlobalEventLog(int pageSize, int stripes, int maxGapOffset, long gapTimeout, long repairDelay) {
+        Assert.isTrue(pageSize > 0, () -> "Page size must be positive");
+        Assert.isTrue(stripes > 0 && (stripes & (stripes - 1)) == 0, () -> "Number of stripes must be a power of two");
+        Assert.isTrue(maxGapOffset >= 0, () -> "Max gap offset may not be negative");
+        Assert.isTrue(gapTimeout >= 0, () -> "Gap timeout may not be negative");
+        Assert.isTrue(repairDelay >= 0 && repairDelay <= gapTimeout, () -> "Repair delay must be between zero and the gap timeout");
+        this.pageSize = pageSize;
+        this.stripes = stripes;
+        this.maxGapOffset = maxGapOffset;
+        this.gapTimeout = gapTimeout;
+        this.repairDelay = repairDelay;
+        this.timeIndex = new TimeIndex(stripes);
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Returns the stripe holding the events of the given aggregate.
+     *
+     * @param aggregateIdentifier identifier of the aggregate
+     * @return the stripe of the aggregate
+     */
+    public int stripeOf(String aggregateIdentifier) {
+        return Objects.hashCode(aggregateIdentifier) & (stripes - 1);
+    }
+
+    /**
+     * Reserves a global index for each of the given events, in the stripe of
+     * its aggregate. The indexes handed out within a stripe follow the order
+     * of the events. The counters of the stripes are updated concurrently.
+     *
+     * @param bucket bucket holding the log
+     * @param aggregateIdentifiers aggregate identifier of each event
+     * @param measurement measurement of the calling operation
+     * @return the reserved index of each event
+     */
+    public long[] allocate(Bucket bucket, List<String> aggregateIdentifiers, OperationMeasurement measurement) {
+        Map<Integer, Integer> countPerStripe = new LinkedHashMap<>();
+        aggregateIdentifiers.forEach(id -> countPerStripe.merge(stripeOf(id), 1, Integer::sum));
+        measurement.requests(countPerStripe.size());
+        Map<Integer, Long> nextIndex = Observable.from(countPerStripe.entrySet())
+                .flatMap(stripe -> bucket.async().counter(counterId(stripe.getKey()), stripe.getValue(), stripe.getValue())
+                        .map(doc -> new SimpleEntry<>(stripe.getKey(), doc.content() - stripe.getValue())))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                .toBlocking()
+                .single();
+        long[] indexes = new long[aggregateIdentifiers.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            int stripe = stripeOf(aggregateIdentifiers.get(i));
+            indexes[i] = nextIndex.get(stripe);
+            nextIndex.put(stripe, indexes[i] + 1);
+        }
+        return indexes;
+    }
+
+    /**
+     * Records the indexes handed out by
+     * {@link #allocate(Bucket, List, OperationMeasurement)} in the pages
+     * covering them, together with the aggregate identifier and sequence
+     * number of their event, so that readers can look up the event if it is
+     * stored but never added to the log. Must be done before any of the
+     * events is stored. Pages are written concurrently.
+     *
+     * @param bucket bucket holding the log
+     * @param entries the event entries about to be stored
+     * @param measurement measurement of the calling operation
+     * @return the time of the reservation, in milliseconds, to pass to
+     * {@link #append(Bucket, List, EventEntryFormat, long, OperationMeasurement)}
+     */
+    public long reserve(Bucket bucket, List<EventEntry> entries, OperationMeasurement measurement) {
+        long now = System.currentTimeMillis();
+        Map<String, List<JsonObject>> reservationsPerPage = entries.stream()
+                .collect(Collectors.groupingBy(this::pageId, LinkedHashMap::new, Collectors.mapping(e -> JsonObject.create()
+                        .put(INDEX_PROPERTY, e.getGlobalIndex())
+                        .put(AGGREGATE_IDENTIFIER_PROPERTY, e.getAggregateIdentifier())
+                        .put(SEQUENCE_NUMBER_PROPERTY, e.getSequenceNumber())
+                        .put(RESERVED_AT_PROPERTY, now), Collectors.toList())));
+        measurement.requests(reservationsPerPage.size());
+        reservationsPerPage.values().forEach(measurement::written);
+        Observable.from(reservationsPerPage.entrySet())
+                .flatMap(page -> bucket.async().mutateIn(page.getKey())
+                        .upsertDocument(true)
+                        .arrayAppendAll(RESERVED_PROPERTY, page.getValue(), new SubdocOptionsBuilder().createPath(true))
+                        .execute())
+                .toCompletable()
+                .await();
+        return now;
+    }
+
+    /**
+     * Copies the given event entries into the pages covering their global
+     * index. Entries must already carry the index reserved by
+     * {@link #reserve(Bucket, List, OperationMeasurement)}. Pages are written
+     * concurrently, along with the updates of the time index.
+     * <p>
+     * When the append comes half the repair delay or more after the
+     * reservation, readers may have voided the indexes meanwhile. The pages
+     * are then read once more, and the entries whose index was voided are
+     * published again at newly allocated indexes.
+     *
+     * @param bucket bucket holding the log
+     * @param entries the event entries stored, to add
+     * @param format format to store the entries in
+     * @param reservedAt the time returned by the reservation
+     * @param measurement measurement of the calling operation
+     */
+    public void append(Bucket bucket, List<EventEntry> entries, EventEntryFormat format, long reservedAt,
+            OperationMeasurement measurement) {
+        addToPages(bucket, entries, format, measurement);
+        if (System.currentTimeMillis() - reservedAt >= repairDelay / 2) {
+            publishLate(bucket, entries, format, measurement);
+        }
+    }
+
+    private void addToPages(Bucket bucket, List<EventEntry> entries, EventEntryFormat format, OperationMeasurement measurement) {
+        Map<String, List<JsonObject>> entriesPerPage = entries.stream()
+                .collect(Collectors.groupingBy(this::pageId, LinkedHashMap::new,
+                        Collectors.mapping(e -> format.encode(e, false), Collectors.toList())));
+        measurement.requests(entriesPerPage.size());
+        entriesPerPage.values().forEach(measurement::written);
+        Map<Integer, List<EventEntry>> entriesPerStripe = entries.stream()
+                .collect(Collectors.groupingBy(e -> stripeOf(e.getAggregateIdentifier())));
+        Observable.from(entriesPerPage.entrySet())
+                .flatMap(page -> bucket.async().mutateIn(page.getKey())
+                        .upsertDocument(true)
+                        .arrayAppendAll(EVENTS_PROPERTY, page.getValue(), new SubdocOptionsBuilder().createPath(true))
+                        .execute())
+                .toCompletable()
+                .mergeWith(timeIndex.record(bucket.async(), entriesPerStripe, measurement).toCompletable())
+                .await();
+    }
+
+    /**
+     * Publishes the entries whose index was voided before they were added
+     * again, at new indexes. Since a reader voids an index only if the page
+     * is unchanged since it found no event there, a void not seen here was
+     * not written before the entry was added, and readers find the entry
+     * along with it.
+     */
+    private void publishLate(Bucket bucket, List<EventEntry> entries, EventEntryFormat format, OperationMeasurement measurement) {
+        Set<String> pages = entries.stream().map(this::pageId).collect(Collectors.toCollection(TreeSet::new));
+        measurement.requests(pages.size());
+        Set<Long> voided = Observable.from(pages)
+                .flatMap(page -> bucket.async().get(page))
+                .doOnNext(measurement::read)
+                .flatMapIterable(page -> array(page.content(), VOID_PROPERTY).toList())
+                .map(index -> ((Number) index).longValue())
+                .toList()
+                .map(HashSet::new)
+                .toBlocking()
+                .single();
+        List<EventEntry> late = entries.stream()
+                .filter(entry -> voided.contains(entry.getGlobalIndex()))
+                .collect(Collectors.toList());
+        if (late.isEmpty()) {
+            return;
+        }
+        long[] indexes = allocate(bucket, late.stream().map(EventEntry::getAggregateIdentifier).collect(Collectors.toList()),
+                measurement);
+        addToPages(bucket, IntStream.range(0, late.size()).mapToObj(i -> late.get(i).withGlobalIndex(indexes[i]))
+                .collect(Collectors.toList()), format, measurement);
+    }
+
+    /**
+     * Reads the events following the given token, including those filling its
+     * gaps. A single stripe is read in global index order, several stripes
+     * are read concurrently and merged in timestamp order, returning up to a
+     * batch per stripe.
+     *
+     * @param bucket bucket holding the log
+     * @param readPolicy policy deciding where the pages are read from
+     * @param lookup lookup of reserved events which were not added
+     * @param format format to add the events looked up in
+     * @param lastToken token of the last event read, or {@code null} to read
+     * from the start of the log
+     * @param batchSize number of events to read per stripe
+     * @param measurement measurement of the calling operation
+     * @return the next events of the log, empty when the reader caught up
+     */
+    public List<? extends TrackedEventData<?>> read(Bucket bucket, ReadPolicy readPolicy, EventLookup lookup, EventEntryFormat format,
+            TrackingToken lastToken, int batchSize, OperationMeasurement measurement) {
+        if (stripes == 1) {
+            return readSingleStripe(bucket, readPolicy, lookup, format, lastToken, batchSize, id -> true, measurement);
+        }
+        return readStripes(bucket, readPolicy, lookup, format, IntStream.range(0, stripes), lastToken, batchSize, id -> true, measurement);
+    }
+
+    /**
+     * Reads the events of the given segment following the given token. When
+     * the segment covers whole stripes only those stripes are read, a segment
+     * finer than a stripe is filtered out of the stripe holding it. With
+     * several stripes the returned events carry a {@link ShardedTrackingToken}
+     * over the stripes read, which is only valid for reading the same
+     * segment. A log of a single stripe is read as by
+     * {@link #read(Bucket, ReadPolicy, EventLookup, EventEntryFormat, TrackingToken, int, OperationMeasurement)},
+     * filtered by the segment.
+     *
+     * @param bucket bucket holding the log
+     * @param readPolicy policy deciding where the pages are read from
+     * @param lookup lookup of reserved events which were not added
+     * @param format format to add the events looked up in
+     * @param segment segment of the log to read
+     * @param lastToken token of the last event of the segment read, or
+     * {@code null} to read from the start of the log
+     * @param batchSize number of events to read per stripe
+     * @param measurement measurement of the calling operation
+     * @return the next events of the segment, empty when the reader caught up
+     */
+    public List<? extends TrackedEventData<?>> read(Bucket bucket, ReadPolicy readPolicy, EventLookup lookup, EventEntryFormat format,
+            Segment segment, TrackingToken lastToken, int batchSize, OperationMeasurement measurement) {
+        if (stripes == 1) {
+            return readSingleStripe(bucket, readPolicy, lookup, format, lastToken, batchSize, segment::matches, measurement);
+        }
+        if (segment.getMask() < stripes) {
+            return readStripes(bucket, readPolicy, lookup, format, IntStream.range(0, stripes).filter(segment::matches), lastToken, batchSize,
+                    id -> true, measurement);
+        }
+        return readStripes(bucket, readPolicy, lookup, format, IntStream.of(segment.getSegmentId() & (stripes - 1)), lastToken, batchSize,
+                segment::matches, measurement);
+    }
+
+    private List<? extends TrackedEventData<?>> readSingleStripe(Bucket bucket, ReadPolicy readPolicy, EventLookup lookup,
+            EventEntryFormat format, TrackingToken lastToken, int batchSize, Predicate<String> filter, OperationMeasurement measurement) {
+        Assert.isTrue(lastToken == null || lastToken instanceof GapAwareTrackingToken || lastToken instanceof GlobalSequenceTrackingToken,
+                () -> String.format("Token [%s] is of the wrong type", lastToken));
+        return readStripe(bucket, readPolicy, lookup, format, 0, lastToken, batchSize, filter, measurement);
+    }
+
+    private List<? extends TrackedEventData<?>> readStripes(Bucket bucket, ReadPolicy readPolicy, EventLookup lookup,
+            EventEntryFormat format, IntStream stripesToRead, TrackingToken lastToken, int batchSize, Predicate<String> filter, OperationMeasurement measurement) {
+        Assert.isTrue(lastToken == null || lastToken instanceof ShardedTrackingToken,
+                () -> String.format("Token [%s] is of the wrong type", lastToken));
+        ShardedTrackingToken start = lastToken == null ? new ShardedTrackingToken(Collections.emptyMap()) : (ShardedTrackingToken) lastToken;
+        List<Integer> stripeList = stripesToRead.boxed().collect(Collectors.toList());
+        Map<String, List<? extends TrackedEventData<?>>> batches = new TreeMap<>(Comparator.comparingInt(Integer::parseInt));
+        if (stripeList.size() == 1) {
+            int stripe = stripeList.get(0);
+            batches.put(String.valueOf(stripe),
+                    readStripe(bucket, readPolicy, lookup, format, stripe, start.getToken(String.valueOf(stripe)), batchSize, filter, measurement));
+        } else {
+            batches.putAll(Observable.from(stripeList)
+                    .flatMap(stripe -> Observable.fromCallable(() -> new SimpleEntry<String, List<? extends TrackedEventData<?>>>(
+                            String.valueOf(stripe),
+                            readStripe(bucket, readPolicy, lookup, format, stripe, start.getToken(String.valueOf(stripe)), batchSize, filter,
+                                    measurement)))
+                            .subscribeOn(Schedulers.io()))
+                    .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                    .toBlocking()
+                    .single());
+        }
+        return ShardedTrackingToken.merge(start, batches, batchSize);
+    }
+
+    /**
+     * Reads the events of one stripe following the given token, in global
+     * index order, preceded by the events filling gaps of the token. The range
+     * read is rounded up to the end of its last page, since the whole page is
+     * fetched anyway. Ranges of indexes without any matching event are
+     * skipped until an event is found or the reader caught up with the
+     * counter. A page is only taken from a replica once it holds all events
+     * of its range, the counter is always read from the active copy.
+     */
+    private List<? extends TrackedEventData<?>> readStripe(Bucket bucket, ReadPolicy readPolicy, EventLookup lookup,
+            EventEntryFormat format, int stripe, TrackingToken lastToken, int batchSize, Predicate<String> filter, OperationMeasurement measurement) {
+        GapAwareTrackingToken start = gapAware(lastToken);
+        Set<Long> gaps = start == null ? Collections.emptySet() : start.getGaps();
+        Set<Long> gapPages = gaps.stream().map(gap -> gap / pageSize).collect(Collectors.toCollection(TreeSet::new));
+        NavigableMap<Long, EventEntry> entries = new TreeMap<>();
+        Set<Long> voided = new HashSet<>();
+        long next = start == null ? 0 : start.getIndex() + 1;
+        while (true) {
+            long end = (next + batchSize + pageSize - 1) / pageSize * pageSize;
+            long first = next;
+            Predicate<Long> inRange = index -> index >= first && index < end || gaps.contains(index);
+            Set<Long> pages = LongStream.rangeClosed(next / pageSize, (end - 1) / pageSize).boxed()
+                    .collect(Collectors.toCollection(() -> new TreeSet<>(gapPages)));
+            gapPages.clear();
+            measurement.requests(1 + pages.size());
+            List<Object> result = Observable.merge(
+                    bucket.async().counter(counterId(stripe), 0, 0).map(doc -> (Object) doc.content()),
+                    Observable.from(pages).flatMap(page -> readPolicy.get(bucket.async(), pageId(stripe, page), this::isFull, measurement)))
+                    .toList()
+                    .toBlocking()
+                    .single();
+            long allocated = 0;
+            boolean matched = false;
+            List<JsonObject> reservations = new ArrayList<>();
+            Map<String, Long> casPerPage = new HashMap<>();
+            for (Object item : result) {
+                if (item instanceof Long) {
+                    allocated = (Long) item;
+                } else {
+                    measurement.read((JsonDocument) item);
+                    casPerPage.put(((JsonDocument) item).id(), ((JsonDocument) item).cas());
+                    JsonObject content = ((JsonDocument) item).content();
+                    for (Object event : array(content, EVENTS_PROPERTY)) {
+                        EventEntry entry = new EventEntry((JsonObject) event);
+                        if (inRange.test(entry.getGlobalIndex())) {
+                            entries.put(entry.getGlobalIndex(), entry);
+                            matched |= filter.test(entry.getAggregateIdentifier());
+                        }
+                    }
+                    array(content, VOID_PROPERTY).forEach(index -> voided.add(((Number) index).longValue()));
+                    array(content, RESERVED_PROPERTY).forEach(reservation -> reservations.add((JsonObject) reservation));
+                }
+            }
+            List<JsonObject> pending = reservations.stream()
+                    .filter(reservation -> inRange.test(longValue(reservation, INDEX_PROPERTY)))
+                    .filter(reservation -> !entries.containsKey(longValue(reservation, INDEX_PROPERTY)))
+                    .filter(reservation -> !voided.contains(longValue(reservation, INDEX_PROPERTY)))
+                    .collect(Collectors.toList());
+            for (Map.Entry<Long, Optional<EventEntry>> repaired : repair(bucket, stripe, lookup, format, pending, casPerPage,
+                    measurement).entrySet()) {
+                if (repaired.getValue().isPresent()) {
+                    entries.put(repaired.getKey(), repaired.getValue().get());
+                    matched |= filter.test(repaired.getValue().get().getAggregateIdentifier());
+                } else {
+                    voided.add(repaired.getKey());
+                }
+            }
+            if (matched || end >= allocated) {
+                return tracked(start, entries, voided, filter);
+            }
+            next = end;
+        }
+    }
+
+    /**
+     * Looks up the events of the given reservations which are older than the
+     * repair delay in the documents of their aggregate. Events found are
+     * added to the pages in the given format, as by an append, the indexes
+     * of the others are voided, with one round of concurrent writes. A page
+     * voiding indexes is only written if it is unchanged since it was read,
+     * otherwise its indexes stay reserved until the next read.
+     *
+     * @param casPerPage CAS of each page as read
+     * @return the event found for each index looked up, empty if voided
+     */
+    private Map<Long, Optional<EventEntry>> repair(Bucket bucket, int stripe, EventLookup lookup, EventEntryFormat format,
+            List<JsonObject> reservations, Map<String, Long> casPerPage, OperationMeasurement measurement) {
+        long threshold = System.currentTimeMillis() - repairDelay;
+        List<JsonObject> expired = reservations.stream()
+                .filter(reservation -> longValue(reservation, RESERVED_AT_PROPERTY) < threshold)
+                .collect(Collectors.toList());
+        if (expired.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Long, Optional<EventEntry>> found = Observable.from(expired)
+                .flatMap(reservation -> lookup.find(bucket.async(), reservation.getString(AGGREGATE_IDENTIFIER_PROPERTY),
+                        longValue(reservation, SEQUENCE_NUMBER_PROPERTY), measurement)
+                        .filter(entry -> entry.getGlobalIndex() == longValue(reservation, INDEX_PROPERTY))
+                        .map(Optional::of)
+                        .firstOrDefault(Optional.empty())
+                        .map(entry -> new SimpleEntry<>(longValue(reservation, INDEX_PROPERTY), entry)))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                .toBlocking()
+                .single();
+        Map<String, List<JsonObject>> publishedPerPage = found.values().stream()
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.groupingBy(this::pageId, LinkedHashMap::new,
+                        Collectors.mapping(e -> format.encode(e, false), Collectors.toList())));
+        Map<String, List<Long>> voidedPerPage = found.entrySet().stream()
+                .filter(entry -> !entry.getValue().isPresent())
+                .collect(Collectors.groupingBy(entry -> pageId(stripe, entry.getKey() / pageSize), LinkedHashMap::new,
+                        Collectors.mapping(entry -> entry.getKey(), Collectors.toList())));
+        Set<String> pages = new TreeSet<>(publishedPerPage.keySet());
+        pages.addAll(voidedPerPage.keySet());
+        measurement.requests(pages.size());
+        publishedPerPage.values().forEach(measurement::written);
+        List<String> changed = Observable.from(pages)
+                .flatMap(page -> {
+                    AsyncMutateInBuilder mutation = voidedPerPage.containsKey(page)
+                            ? bucket.async().mutateIn(page).withCas(casPerPage.get(page))
+                                    .arrayAppendAll(VOID_PROPERTY, voidedPerPage.get(page), new SubdocOptionsBuilder().createPath(true))
+                            : bucket.async().mutateIn(page).upsertDocument(true);
+                    if (publishedPerPage.containsKey(page)) {
+                        mutation.arrayAppendAll(EVENTS_PROPERTY, publishedPerPage.get(page), new SubdocOptionsBuilder().createPath(true));
+                    }
+                    return mutation.execute()
+                            .map(fragment -> "")
+                            .onErrorResumeNext(e -> e instanceof CASMismatchException ? Observable.just(page) : Observable.error(e));
+                })
+                .filter(page -> !page.isEmpty())
+                .toList()
+                .toBlocking()
+                .single();
+        changed.forEach(page -> voidedPerPage.get(page).forEach(found::remove));
+        return found;
+    }
+
+    /**
+     * Returns whether a page holds an event or a void for each index of its
+     * range, so that it never changes again.
+     */
+    private boolean isFull(JsonDocument page) {
+        Set<Long> indexes = new HashSet<>();
+        array(page.content(), EVENTS_PROPERTY).forEach(event -> indexes.add(new EventEntry((JsonObject) event).getGlobalIndex()));
+        array(page.content(), VOID_PROPERTY).forEach(index -> indexes.add(((Number) index).longValue()));
+        return indexes.size() >= pageSize;
+    }
+
+    private static JsonArray array(JsonObject content, String property) {
+        JsonArray array = content.getArray(property);
+        return array != null ? array : JsonArray.empty();
+    }
+
+    private static long longValue(JsonObject object, String property) {
+        return ((Number) object.get(property)).longValue();
+    }
+
+    /**
+     * Assigns the tokens to the events read after the given one. Indexes
+     * missing between the events read become gaps, unless they are void,
+     * indexes of events read fill them again, whether the event matches the
+     * filter or not.
+     */
+    private List<? extends TrackedEventData<?>> tracked(GapAwareTrackingToken start, NavigableMap<Long, EventEntry> entries,
+            Set<Long> voided, Predicate<String> filter) {
+        long expiredBefore = expiredBefore(entries);
+        long index = start == null ? -1 : start.getIndex();
+        SortedSet<Long> gaps = start == null ? new TreeSet<>() : new TreeSet<>(start.getGaps());
+        gaps.removeAll(voided);
+        List<TrackedEventData<?>> tracked = new ArrayList<>();
+        for (Map.Entry<Long, EventEntry> entry : entries.entrySet()) {
+            if (!gaps.remove(entry.getKey())) {
+                LongStream.range(index + 1, entry.getKey()).filter(gap -> !voided.contains(gap)).forEach(gaps::add);
+                index = entry.getKey();
+            }
+            gaps.headSet(Math.max(index - maxGapOffset, expiredBefore)).clear();
+            if (filter.test(entry.getValue().getAggregateIdentifier())) {
+                tracked.add(new TrackedDomainEventData<>(GapAwareTrackingToken.newInstance(index, gaps), entry.getValue()));
+            }
+        }
+        return tracked;
+    }
+
+    /**
+     * Returns the highest index of the events read which are older than the
+     * gap timeout, below which any gap is forgotten.
+     */
+    private long expiredBefore(NavigableMap<Long, EventEntry> entries) {
+        Instant threshold = Instant.now().minusMillis(gapTimeout);
+        return entries.descendingMap().values().stream()
+                .filter(entry -> entry.getTimestamp().isBefore(threshold))
+                .mapToLong(EventEntry::getGlobalIndex)
+                .findFirst()
+                .orElse(Long.MIN_VALUE);
+    }
+
+    private static GapAwareTrackingToken gapAware(TrackingToken token) {
+        if (token instanceof GlobalSequenceTrackingToken) {
+            return GapAwareTrackingToken.newInstance(((GlobalSequenceTrackingToken) token).getGlobalIndex(), Collections.emptySet());
+        }
+        return (GapAwareTrackingToken) token;
+    }
+
+    /**
+     * Creates a token positioned after the last event of the log, from which
+     * a reader only receives events appended later. Indexes below it which
+     * are allocated or reserved but hold no event yet are gaps of the token,
+     * so that the events still being appended there are not skipped. The
+     * pages are read backwards from the counter until one is full or holds an
+     * event older than the gap timeout, within the maximum gap offset.
+     *
+     * @param bucket bucket holding the log
+     * @param measurement measurement of the calling operation
+     * @return the token, {@code null} if the log is empty
+     */
+    public TrackingToken createHeadToken(Bucket bucket, OperationMeasurement measurement) {
+        Map<Integer, Optional<GapAwareTrackingToken>> heads = Observable.range(0, stripes)
+                .flatMap(stripe -> Observable.fromCallable(
+                        () -> new SimpleEntry<>(stripe, Optional.ofNullable(headOf(bucket, stripe, new TreeMap<>(), measurement))))
+                        .subscribeOn(Schedulers.io()))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                .toBlocking()
+                .single();
+        return token(stripe -> heads.get(stripe).orElse(null));
+    }
+
+    /**
+     * Returns the token of the last event or void of a stripe, with the
+     * indexes below it holding neither as gaps.
+     *
+     * @param entries receives the events of the pages read
+     * @return the token, {@code null} if nothing was read
+     */
+    private GapAwareTrackingToken headOf(Bucket bucket, int stripe, NavigableMap<Long, EventEntry> entries,
+            OperationMeasurement measurement) {
+        measurement.requests(1);
+        long last = bucket.counter(counterId(stripe), 0, 0).content() - 1;
+        long lowest = Math.max(0, last - maxGapOffset);
+        Instant threshold = Instant.now().minusMillis(gapTimeout);
+        SortedSet<Long> settled = new TreeSet<>();
+        long firstRead = last + 1;
+        for (long page = last / pageSize; last >= 0 && page >= lowest / pageSize; page--) {
+            measurement.requests(1);
+            JsonDocument document = bucket.get(pageId(stripe, page));
+            measurement.read(document);
+            firstRead = page * pageSize;
+            if (document == null) {
+                continue;
+            }
+            boolean expired = false;
+            for (Object event : array(document.content(), EVENTS_PROPERTY)) {
+                EventEntry entry = new EventEntry((JsonObject) event);
+                entries.put(entry.getGlobalIndex(), entry);
+                settled.add(entry.getGlobalIndex());
+                expired |= entry.getTimestamp().isBefore(threshold);
+            }
+            array(document.content(), VOID_PROPERTY).forEach(index -> settled.add(((Number) index).longValue()));
+            if (expired || isFull(document)) {
+                break;
+            }
+        }
+        if (settled.isEmpty()) {
+            return firstRead > 0 ? GapAwareTrackingToken.newInstance(firstRead - 1, Collections.emptySet()) : null;
+        }
+        long index = settled.last();
+        long from = Math.max(Math.max(firstRead, index - maxGapOffset), expiredBefore(entries));
+        Set<Long> gaps = LongStream.range(from, index)
+                .filter(gap -> !settled.contains(gap))
+                .boxed()
+                .collect(Collectors.toSet());
+        return GapAwareTrackingToken.newInstance(index, gaps);
+    }
+
+    /**
+     * Creates a token from which a reader receives the events stamped at or
+     * after the given time, and possibly some stamped in the minute before.
+     * The position in each stripe is looked up in the {@link TimeIndex}. If
+     * no event was stamped within a year after the given time, the token is
+     * positioned at the head of the stripe when its last event is older than
+     * the given time, and at the start of the stripe otherwise.
+     *
+     * @param bucket bucket holding the log
+     * @param dateTime the point in time
+     * @param measurement measurement of the calling operation
+     * @return the token, {@code null} to read from the start of the log
+     */
+    public TrackingToken createTokenAt(Bucket bucket, Instant dateTime, OperationMeasurement measurement) {
+        Map<Integer, Optional<GapAwareTrackingToken>> positions = Observable.range(0, stripes)
+                .flatMap(stripe -> Observable.fromCallable(
+                        () -> new SimpleEntry<>(stripe, Optional.ofNullable(positionAt(bucket, stripe, dateTime, measurement))))
+                        .subscribeOn(Schedulers.io()))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                .toBlocking()
+                .single();
+        return token(stripe -> positions.get(stripe).orElse(null));
+    }
+
+    private GapAwareTrackingToken positionAt(Bucket bucket, int stripe, Instant dateTime, OperationMeasurement measurement) {
+        Optional<Long> first = timeIndex.find(bucket.async(), stripe, dateTime, measurement);
+        if (first.isPresent()) {
+            return first.get() > 0 ? GapAwareTrackingToken.newInstance(first.get() - 1, Collections.emptySet()) : null;
+        }
+        NavigableMap<Long, EventEntry> entries = new TreeMap<>();
+        GapAwareTrackingToken head = headOf(bucket, stripe, entries, measurement);
+        if (entries.isEmpty() || entries.values().stream().anyMatch(entry -> !entry.getTimestamp().isBefore(dateTime))) {
+            return null;
+        }
+        return head;
+    }
+
+    /**
+     * Creates the token of the log from the token reached in each stripe,
+     * {@code null} for none.
+     */
+    private TrackingToken token(Function<Integer, GapAwareTrackingToken> positions) {
+        Map<String, TrackingToken> tokens = new TreeMap<>(Comparator.comparingInt(Integer::parseInt));
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            GapAwareTrackingToken position = positions.apply(stripe);
+            if (position != null) {
+                tokens.put(String.valueOf(stripe), position);
+            }
+        }
+        if (stripes == 1) {
+            return tokens.get("0");
+        }
+        return new ShardedTrackingToken(tokens);
+    }
+
+    /**
+     * Returns whether a document is a page of the log.
+     *
+     * @param documentId identifier of the document
+     * @return {@code true} for pages of any stripe
+     */
+    public boolean isPage(String documentId) {
+        return documentId.startsWith(PAGE_PREFIX);
+    }
+
+    /**
+     * Decodes the events held by the content of a page, as delivered by a
+     * mutation feed, in global index order. The tokens of the events do not
+     * hold any gaps, they are only valid if the events directly follow the
+     * position of the reader. Only pages of a log with a single
+     * stripe can be decoded, since the token of an event in a striped log
+     * depends on the position reached in the other stripes.
+     *
+     * @param content content of the page document
+     * @return the events of the page, none if it only holds reservations, or
+     * nothing if they can not be decoded
+     */
+    public Optional<List<? extends TrackedEventData<?>>> readPage(JsonObject content) {
+        if (stripes != 1) {
+            return Optional.empty();
+        }
+        JsonArray events = array(content, EVENTS_PROPERTY);
+        List<EventEntry> entries = new ArrayList<>(events.size());
+        events.forEach(event -> entries.add(new EventEntry((JsonObject) event)));
+        return Optional.of(tracked(entries));
+    }
+
+    private static List<? extends TrackedEventData<?>> tracked(List<EventEntry> entries) {
+        return entries.stream()
+                .collect(Collectors.toMap(EventEntry::getGlobalIndex, Function.identity(), (e1, e2) -> e1, TreeMap::new))
+                .values().stream()
+                .map(e -> new TrackedDomainEventData<>(GapAwareTrackingToken.newInstance(e.getGlobalIndex(), Collections.emptySet()), e))
+                .collect(Collectors.toList());
+    }
+
+    private String counterId(int stripe) {
+        return stripes == 1 ? COUNTER_ID : COUNTER_ID + ":" + stripe;
+    }
+
+    private String pageId(int stripe, long page) {
+        return stripes == 1 ? PAGE_PREFIX + page : PAGE_PREFIX + stripe + ":" + page;
+    }
+
+    private String pageId(EventEntry entry) {
+        return pageId(stripeOf(entry.getAggregateIdentifier()), entry.getGlobalIndex() / pageSize);
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+
+/**
+ * Coarse index from time to the global event log, kept in three levels of
+ * documents ({@code cbes:ti:<h|d|b>:<slot>}, with the stripe inserted after
+ * the prefix in a striped log): one per hour holding the lowest global index
+ * of the events stamped in each of its minutes, one per day holding it for
+ * each of its hours, and one per block of 32 days holding it for each of its
+ * days. Each document also holds the lowest index of all its entries. The
+ * documents are written along with the pages, only when a commit reaches a
+ * minute, hour or day this log did not record yet or has an event with a
+ * lower index, so an append rarely costs more than the pages.
+ * <p>
+ * A lookup reads the documents of the hour and of the day of a point in
+ * time in one round of two requests. The lowest index of the minutes of that
+ * hour from the one of the point in time on is taken, or else that of the
+ * following hours of the day. Only if the rest of
+ * the day has no events, the blocks covering the following year are read in
+ * a second round. Since the minute of the point in time is included, the
+ * index found may also cover events stamped up to a minute earlier. It
+ * assumes that events are appended roughly in order of their time stamps, as
+ * they are by live applications and by the bulk importer.
+ * <p>
+ * Hour documents expire a month after their hour and day documents a year
+ * after their day, so the index does not grow with the age of the log beyond
+ * a document per stripe and block. Lookups of older points in time fall back
+ * to the coarser levels, and may then also cover events stamped up to an
+ * hour or a day earlier.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+class TimeIndex {
+
+    private static final String PREFIX = "cbes:ti:";
+    private static final String FIRST_PROPERTY = "first";
+    private static final String ENTRIES_PROPERTY = "entries";
+    private static final int BLOCKS_PER_LOOKUP = 12;
+
+    private enum Level {
+        HOUR("h", TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(31)),
+        DAY("d", TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(366)),
+        BLOCK("b", TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(32), 0);
+
+        private final String code;
+        private final long entryMillis;
+        private final long slotMillis;
+        private final long retentionMillis;
+
+        Level(String code, long entryMillis, long slotMillis, long retentionMillis) {
+            this.code = code;
+            this.entryMillis = entryMillis;
+            this.slotMillis = slotMillis;
+            this.retentionMillis = retentionMillis;
+        }
+
+        long slotOf(long millis) {
+            return Math.floorDiv(millis, slotMillis);
+        }
+
+        long entryOf(long millis) {
+            return Math.floorMod(millis, slotMillis) / entryMillis;
+        }
+
+        /**
+         * Expiry of the document of a slot, as a Unix time since retentions
+         * exceed the 30 days up to which Couchbase takes it as relative.
+         */
+        int expiry(long slot) {
+            return retentionMillis == 0 ? 0 : (int) TimeUnit.MILLISECONDS.toSeconds((slot + 1) * slotMillis + retentionMillis);
+        }
+    }
+
+    private final int stripes;
+    private final Map<AsyncBucket, Map<String, long[]>> lastRecorded = Collections.synchronizedMap(new WeakHashMap<>());
+
+    TimeIndex(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * Records the lowest global index of the given events in the entries
+     * their time stamps fall in. Entries which this log already recorded in
+     * the bucket with a lower or equal index are skipped.
+     *
+     * @param bucket bucket holding the log
+     * @param entriesPerStripe the events appended, per stripe
+     * @param measurement measurement of the calling operation
+     * @return an observable completing once the index is updated
+     */
+    Observable<?> record(AsyncBucket bucket, Map<Integer, List<EventEntry>> entriesPerStripe, OperationMeasurement measurement) {
+        Map<String, long[]> recorded = lastRecorded.computeIfAbsent(bucket, b -> new ConcurrentHashMap<>());
+        Map<String, Level> levels = new TreeMap<>();
+        Map<String, Map<Long, TreeMap<Long, Long>>> firstIndexes = new TreeMap<>();
+        entriesPerStripe.forEach((stripe, entries) -> {
+            for (Level level : Level.values()) {
+                levels.put(slotPrefix(stripe, level), level);
+                Map<Long, TreeMap<Long, Long>> slots = firstIndexes.computeIfAbsent(slotPrefix(stripe, level), prefix -> new TreeMap<>());
+                entries.forEach(entry -> {
+                    long millis = entry.getTimestamp().toEpochMilli();
+                    slots.computeIfAbsent(level.slotOf(millis), slot -> new TreeMap<>())
+                            .merge(level.entryOf(millis), entry.getGlobalIndex(), Math::min);
+                });
+            }
+        });
+        return Observable.from(firstIndexes.entrySet())
+                .flatMap(slots -> Observable.from(slots.getValue().entrySet())
+                        .map(slot -> new SimpleEntry<>(slot.getKey(), unrecorded(recorded.get(slots.getKey()), slot.getKey(), slot.getValue())))
+                        .filter(slot -> !slot.getValue().isEmpty())
+                        .flatMap(slot -> lowerTo(bucket, levels.get(slots.getKey()), slots.getKey(), slot.getKey(), slot.getValue(), measurement)
+                                .doOnCompleted(() -> {
+                                    Map.Entry<Long, Long> last = slot.getValue().lastEntry();
+                                    recorded.put(slots.getKey(), new long[]{slot.getKey(), last.getKey(), last.getValue()});
+                                })));
+    }
+
+    /**
+     * Leaves out the entry recorded last with a lower or equal index.
+     */
+    private TreeMap<Long, Long> unrecorded(long[] recorded, long slot, TreeMap<Long, Long> entries) {
+        if (recorded == null || recorded[0] != slot || !entries.containsKey(recorded[1]) || entries.get(recorded[1]) < recorded[2]) {
+            return entries;
+        }
+        TreeMap<Long, Long> unrecorded = new TreeMap<>(entries);
+        unrecorded.remove(recorded[1]);
+        return unrecorded;
+    }
+
+    /**
+     * Stores the indexes in the entries of the document of a slot, unless it
+     * holds lower ones.
+     */
+    private Observable<JsonDocument> lowerTo(AsyncBucket bucket, Level level, String prefix, long slot, Map<Long, Long> entries,
+            OperationMeasurement measurement) {
+        String documentId = prefix + slot;
+        measurement.requests(1);
+        JsonObject created = JsonObject.create();
+        lower(created, entries);
+        return bucket.insert(JsonDocument.create(documentId, level.expiry(slot), created))
+                .onErrorResumeNext(e -> e instanceof DocumentAlreadyExistsException
+                        ? Observable.defer(() -> {
+                            measurement.requests(1);
+                            return bucket.get(documentId);
+                        })
+                                .filter(current -> lower(current.content(), entries))
+                                .flatMap(current -> {
+                                    measurement.requests(1);
+                                    return bucket.replace(JsonDocument.create(documentId, level.expiry(slot), current.content(), current.cas()));
+                                })
+                                .retry((attempt, failure) -> failure instanceof CASMismatchException)
+                        : Observable.error(e));
+    }
+
+    /**
+     * Lowers the entries of the content to the given indexes.
+     *
+     * @return {@code true} if the content changed
+     */
+    private static boolean lower(JsonObject content, Map<Long, Long> entries) {
+        JsonObject recorded = content.getObject(ENTRIES_PROPERTY);
+        if (recorded == null) {
+            recorded = JsonObject.create();
+            content.put(ENTRIES_PROPERTY, recorded);
+        }
+        boolean changed = false;
+        for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+            Long current = recorded.getLong(String.valueOf(entry.getKey()));
+            if (current == null || current > entry.getValue()) {
+                recorded.put(String.valueOf(entry.getKey()), entry.getValue());
+                changed = true;
+            }
+            Long first = content.getLong(FIRST_PROPERTY);
+            if (first == null || first > entry.getValue()) {
+                content.put(FIRST_PROPERTY, entry.getValue());
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Finds the lowest global index of the events of a stripe stamped at or
+     * after the given time, give or take a minute.
+     *
+     * @param bucket bucket holding the log
+     * @param stripe stripe of the log
+     * @param dateTime the point in time
+     * @param measurement measurement of the calling operation
+     * @return the index, empty if no event was stamped within about a year
+     * after the given time
+     */
+    Optional<Long> find(AsyncBucket bucket, int stripe, Instant dateTime, OperationMeasurement measurement) {
+        long millis = dateTime.toEpochMilli();
+        measurement.requests(2);
+        Map<Level, JsonObject> documents = Observable.just(Level.HOUR, Level.DAY)
+                .flatMap(level -> bucket.get(slotPrefix(stripe, level) + level.slotOf(millis))
+                        .doOnNext(measurement::read)
+                        .map(document -> new SimpleEntry<>(level, document.content())))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue)
+                .toBlocking()
+                .single();
+        Optional<Long> index = firstFrom(documents.get(Level.HOUR), Level.HOUR.entryOf(millis), true);
+        if (!index.isPresent()) {
+            index = firstFrom(documents.get(Level.DAY), Level.DAY.entryOf(millis), !documents.containsKey(Level.HOUR));
+        }
+        if (index.isPresent()) {
+            return index;
+        }
+        long block = Level.BLOCK.slotOf(millis);
+        measurement.requests(BLOCKS_PER_LOOKUP);
+        Map<Long, JsonObject> blocks = Observable.range(0, BLOCKS_PER_LOOKUP)
+                .flatMap(offset -> bucket.get(slotPrefix(stripe, Level.BLOCK) + (block + offset))
+                        .doOnNext(measurement::read)
+                        .map(document -> new SimpleEntry<>(block + offset, document.content())))
+                .toMap(SimpleEntry::getKey, SimpleEntry::getValue, TreeMap::new)
+                .toBlocking()
+                .single();
+        index = firstFrom(blocks.remove(block), Level.BLOCK.entryOf(millis), !documents.containsKey(Level.DAY));
+        if (index.isPresent()) {
+            return index;
+        }
+        return blocks.values().stream().findFirst().map(content -> content.getLong(FIRST_PROPERTY));
+    }
+
+    /**
+     * Returns the lowest index of the entries of a document from the given
+     * one on, including it or not.
+     */
+    private static Optional<Long> firstFrom(JsonObject content, long entry, boolean inclusive) {
+        JsonObject entries = content == null ? null : content.getObject(ENTRIES_PROPERTY);
+        if (entries == null) {
+            return Optional.empty();
+        }
+        return entries.getNames().stream()
+                .filter(name -> inclusive ? Long.parseLong(name) >= entry : Long.parseLong(name) > entry)
+                .map(entries::getLong)
+                .min(Long::compare);
+    }
+
+    private String slotPrefix(int stripe, Level level) {
+        return stripes == 1 ? PREFIX + level.code + ":" : PREFIX + stripe + ":" + level.code + ":";
+    }
+
+}
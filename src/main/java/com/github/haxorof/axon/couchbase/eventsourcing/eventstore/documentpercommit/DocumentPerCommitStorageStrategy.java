@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentpercommit;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ReadPolicy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntry;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntryFormat;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import lombok.extern.slf4j.Slf4j;
+import rx.Observable;
+
+/**
+ * Stores the events an aggregate got in one commit in an immutable document
+ * {@code cbes:cm:<aggregateIdentifier>:<firstSequenceNumber>}, which is only
+ * ever inserted. Concurrent writers of the same aggregate start at the same
+ * sequence number, so all but one of them fail on that insert.
+ * <p>
+ * Since the commits of an aggregate cover contiguous sequence numbers, each
+ * one starting right after the last event of the previous one, readers probe
+ * the keys of the commits from the sequence number they start at, see
+ * {@link #readAggregateEvents(AsyncBucket, AsyncBucket, String, long, int, OperationMeasurement)}.
+ * Once a commit is stored, its range is written to the head document
+ * {@code cbes:ch:<aggregateIdentifier>}, which lets readers starting past the
+ * commits found tell where the aggregate ends without probing all the way
+ * down. The head is only a hint: it may lag behind, or even fall back when
+ * two writers update it out of order, but it never points past a stored
+ * commit.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class DocumentPerCommitStorageStrategy extends AbstractCouchbaseStoreStrategy {
+
+    private final String COMMIT_PREFIX = "cbes:cm:";
+    private final String HEAD_PREFIX = "cbes:ch:";
+    private static final String EVENTS_PROPERTY = "events";
+    private static final String AGGREGATE_IDENTIFIER_PROPERTY = "aggregateIdentifier";
+    private static final String AGGREGATE_TYPE_PROPERTY = "type";
+    private static final String FIRST_SEQUENCE_NUMBER_PROPERTY = "firstSequenceNumber";
+    private static final String LAST_SEQUENCE_NUMBER_PROPERTY = "lastSequenceNumber";
+    private static final int FIRST_PROBES = 8;
+
+    public DocumentPerCommitStorageStrategy() {
+        this(new GlobalEventLog());
+    }
+
+    public DocumentPerCommitStorageStrategy(GlobalEventLog eventLog) {
+        this(eventLog, DEFAULT_MAX_CONCURRENT_WRITES);
+    }
+
+    public DocumentPerCommitStorageStrategy(GlobalEventLog eventLog, int maxConcurrentWrites) {
+        this(eventLog, maxConcurrentWrites, EventEntryFormat.VERBOSE);
+    }
+
+    public DocumentPerCommitStorageStrategy(GlobalEventLog eventLog, int maxConcurrentWrites, EventEntryFormat format) {
+        super(eventLog, maxConcurrentWrites, format);
+    }
+
+    @Override
+    protected Observable<?> appendAggregateEvents(AsyncBucket bucket, List<EventEntry> entries, OperationMeasurement measurement) {
+        EventEntry first = entries.get(0);
+        String aggregateIdentifier = first.getAggregateIdentifier();
+        long firstSequenceNumber = first.getSequenceNumber();
+        JsonObject commit = JsonObject.create()
+                .put(AGGREGATE_IDENTIFIER_PROPERTY, aggregateIdentifier)
+                .put(AGGREGATE_TYPE_PROPERTY, first.getType())
+                .put(FIRST_SEQUENCE_NUMBER_PROPERTY, firstSequenceNumber)
+                .put(LAST_SEQUENCE_NUMBER_PROPERTY, entries.get(entries.size() - 1).getSequenceNumber())
+                .put(EVENTS_PROPERTY, JsonArray.from(entries.stream().map(e -> getFormat().encode(e, true)).collect(Collectors.toList())));
+        JsonObject head = JsonObject.create()
+                .put(FIRST_SEQUENCE_NUMBER_PROPERTY, firstSequenceNumber)
+                .put(LAST_SEQUENCE_NUMBER_PROPERTY, commit.getLong(LAST_SEQUENCE_NUMBER_PROPERTY));
+        measurement.requests(2);
+        measurement.written(commit);
+        measurement.written(head);
+        return bucket.insert(JsonDocument.create(commitId(aggregateIdentifier, firstSequenceNumber), commit))
+                .flatMap(stored -> bucket.upsert(JsonDocument.create(HEAD_PREFIX + aggregateIdentifier, head))
+                        .onErrorResumeNext(e -> {
+                            log.warn("Head of aggregate [{}] could not be updated, readers will probe for its commits",
+                                    aggregateIdentifier, e);
+                            return Observable.just(stored);
+                        }));
+    }
+
+    /**
+     * Fetches the commits holding the requested events by probing their keys
+     * in rounds of parallel gets. The first round probes the
+     * {@value #FIRST_PROBES} sequence numbers from {@code firstSequenceNumber}
+     * on, each further round twice as many from where the commits found end,
+     * until a sequence number without commit or the end of the batch is
+     * reached. An aggregate with a few events is thus read in one round.
+     * <p>
+     * Should {@code firstSequenceNumber} lie inside a commit, the commit
+     * holding it is then probed for downwards, continuing with the commits
+     * the first round already found. If the first round found none, the head
+     * of the aggregate tells whether it ends before {@code firstSequenceNumber}
+     * and bounds the probes to the sequence numbers after its last commit, or
+     * directly names the commit holding {@code firstSequenceNumber}. The
+     * commits are immutable and read under the {@link ReadPolicy} of the
+     * operation.
+     */
+    @Override
+    protected Observable<List<EventEntry>> readAggregateEvents(AsyncBucket bucket, AsyncBucket archiveBucket, String aggregateIdentifier,
+            long firstSequenceNumber, int batchSize, OperationMeasurement measurement) {
+        long end = firstSequenceNumber + batchSize;
+        long probed = Math.min(end, firstSequenceNumber + FIRST_PROBES);
+        ReadPolicy readPolicy = getReadPolicy(Operation.READ_EVENTS);
+        return probe(bucket, readPolicy, aggregateIdentifier, firstSequenceNumber, probed, measurement)
+                .flatMap(found -> {
+                    if (found.containsKey(firstSequenceNumber) || firstSequenceNumber == 0) {
+                        return following(bucket, readPolicy, aggregateIdentifier, firstSequenceNumber, end, probed, FIRST_PROBES, found,
+                                measurement);
+                    } else if (!found.isEmpty()) {
+                        return holding(bucket, readPolicy, aggregateIdentifier, firstSequenceNumber, end, firstSequenceNumber, 0,
+                                FIRST_PROBES, probed, found, measurement);
+                    }
+                    return afterHead(bucket, readPolicy, aggregateIdentifier, firstSequenceNumber, end, probed, measurement);
+                })
+                .flatMap(commit -> Observable.from(commit.content().getArray(EVENTS_PROPERTY))
+                        .map(event -> new EventEntry((JsonObject) event, commit.content().getString(AGGREGATE_IDENTIFIER_PROPERTY),
+                                commit.content().getString(AGGREGATE_TYPE_PROPERTY))))
+                .filter(entry -> entry.getSequenceNumber() >= firstSequenceNumber && entry.getSequenceNumber() < end)
+                .toSortedList((e1, e2) -> Long.compare(e1.getSequenceNumber(), e2.getSequenceNumber()));
+    }
+
+    /**
+     * Emits the commits chained from the one starting at {@code next} among
+     * those found by probing up to {@code probed}, probing twice as many
+     * sequence numbers in a further round while the chain leaves the probed
+     * range before {@code end}.
+     */
+    private Observable<JsonDocument> following(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier, long next, long end,
+            long probed, int probes, NavigableMap<Long, JsonDocument> found, OperationMeasurement measurement) {
+        List<JsonDocument> chained = new ArrayList<>();
+        JsonDocument commit;
+        while ((commit = found.get(next)) != null) {
+            chained.add(commit);
+            next = lastSequenceNumber(commit) + 1;
+        }
+        if (next < probed || next >= end) {
+            return Observable.from(chained);
+        }
+        long from = next;
+        long to = Math.min(end, from + 2L * probes);
+        return Observable.from(chained)
+                .concatWith(probe(bucket, readPolicy, aggregateIdentifier, from, to, measurement)
+                        .flatMap(more -> following(bucket, readPolicy, aggregateIdentifier, from, end, to, 2 * probes, more, measurement)));
+    }
+
+    /**
+     * Emits the commit holding {@code first}, which starts before it, and the
+     * commits following it, probing the {@code probes} sequence numbers below
+     * {@code below} and twice as many further down while none is found, but
+     * never below {@code floor}. The commits from {@code first} up to
+     * {@code probed} are already known to be those in {@code found}.
+     */
+    private Observable<JsonDocument> holding(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier, long first, long end,
+            long below, long floor, int probes, long probed, NavigableMap<Long, JsonDocument> found, OperationMeasurement measurement) {
+        long from = Math.max(floor, below - probes);
+        if (from >= below) {
+            return Observable.empty();
+        }
+        return probe(bucket, readPolicy, aggregateIdentifier, from, below, measurement)
+                .flatMap(holders -> {
+                    if (holders.isEmpty()) {
+                        return holding(bucket, readPolicy, aggregateIdentifier, first, end, from, floor, 2 * probes, probed, found,
+                                measurement);
+                    }
+                    JsonDocument commit = holders.lastEntry().getValue();
+                    long next = lastSequenceNumber(commit) + 1;
+                    return next <= first ? Observable.<JsonDocument>empty()
+                            : Observable.just(commit).concatWith(
+                                    after(bucket, readPolicy, aggregateIdentifier, next, end, probed, found, measurement));
+                });
+    }
+
+    /**
+     * Emits the commits from {@code first} on, which the first round did not
+     * find, using the head of the aggregate to skip the probes below it. A
+     * head ending before {@code first} is either current, or lags behind and
+     * the commits following it lead up to the one holding {@code first}.
+     */
+    private Observable<JsonDocument> afterHead(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier, long first,
+            long end, long probed, OperationMeasurement measurement) {
+        NavigableMap<Long, JsonDocument> none = new TreeMap<>();
+        measurement.requests(1);
+        return bucket.get(HEAD_PREFIX + aggregateIdentifier)
+                .flatMap(head -> {
+                    long headFirst = head.content().getLong(FIRST_SEQUENCE_NUMBER_PROPERTY);
+                    long headLast = head.content().getLong(LAST_SEQUENCE_NUMBER_PROPERTY);
+                    if (headLast < first) {
+                        return chain(bucket, readPolicy, aggregateIdentifier, headLast + 1, end, measurement);
+                    } else if (headFirst > first) {
+                        return holding(bucket, readPolicy, aggregateIdentifier, first, end, first, 0, FIRST_PROBES, probed, none,
+                                measurement);
+                    }
+                    measurement.requests(1);
+                    return readPolicy.get(bucket, commitId(aggregateIdentifier, headFirst), commit -> true, measurement)
+                            .doOnNext(measurement::read)
+                            .concatWith(after(bucket, readPolicy, aggregateIdentifier, headLast + 1, end, probed, none, measurement));
+                });
+    }
+
+    /**
+     * Emits the commits chained from {@code next}, which follows a commit
+     * holding an earlier sequence number, taking those already probed from
+     * {@code found}.
+     */
+    private Observable<JsonDocument> after(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier, long next, long end,
+            long probed, NavigableMap<Long, JsonDocument> found, OperationMeasurement measurement) {
+        if (next >= end) {
+            return Observable.empty();
+        } else if (next < probed) {
+            return following(bucket, readPolicy, aggregateIdentifier, next, end, probed, FIRST_PROBES, found, measurement);
+        }
+        return chain(bucket, readPolicy, aggregateIdentifier, next, end, measurement);
+    }
+
+    /**
+     * Emits the commits chained from {@code next} on, none of which has been
+     * probed yet.
+     */
+    private Observable<JsonDocument> chain(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier, long next, long end,
+            OperationMeasurement measurement) {
+        long to = Math.min(end, next + FIRST_PROBES);
+        return probe(bucket, readPolicy, aggregateIdentifier, next, to, measurement)
+                .flatMap(more -> following(bucket, readPolicy, aggregateIdentifier, next, end, to, FIRST_PROBES, more, measurement));
+    }
+
+    /**
+     * Gets the commits starting at the sequence numbers from {@code from} up
+     * to {@code to}, in one round of parallel gets.
+     */
+    private Observable<NavigableMap<Long, JsonDocument>> probe(AsyncBucket bucket, ReadPolicy readPolicy, String aggregateIdentifier,
+            long from, long to, OperationMeasurement measurement) {
+        measurement.requests((int) (to - from));
+        return Observable.from(LongStream.range(from, to).boxed().collect(Collectors.toList()))
+                .flatMap(sequenceNumber -> readPolicy.get(bucket, commitId(aggregateIdentifier, sequenceNumber), commit -> true,
+                        measurement))
+                .doOnNext(measurement::read)
+                .toMap(commit -> commit.content().getLong(FIRST_SEQUENCE_NUMBER_PROPERTY), commit -> commit,
+                        () -> new TreeMap<Long, JsonDocument>())
+                .map(found -> (NavigableMap<Long, JsonDocument>) found);
+    }
+
+    private static long lastSequenceNumber(JsonDocument commit) {
+        return commit.content().getLong(LAST_SEQUENCE_NUMBER_PROPERTY);
+    }
+
+    private String commitId(String aggregateIdentifier, long firstSequenceNumber) {
+        return COMMIT_PREFIX + aggregateIdentifier + ":" + firstSequenceNumber;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Change of a document as delivered by a {@link MutationFeed}, holding the
+ * content the document has after the change.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class DocumentMutation {
+
+    private final String key;
+    private final long cas;
+    private final byte[] content;
+
+    public DocumentMutation(String key, long cas, byte[] content) {
+        this.key = key;
+        this.cas = cas;
+        this.content = content;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getCas() {
+        return cas;
+    }
+
+    /**
+     * Returns the raw content of the document.
+     *
+     * @return the content, or {@code null} if the document was removed
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    public boolean isRemoval() {
+        return content == null;
+    }
+
+    /**
+     * Parses the content of the document as JSON.
+     *
+     * @return the JSON content, or {@code null} if the document was removed
+     */
+    public JsonObject getJsonContent() {
+        return content == null ? null : JsonObject.fromJson(new String(content, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentMutation{key=" + key + ", cas=" + cas + (content == null ? ", removed" : "") + '}';
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed;
+
+import rx.Observable;
+
+/**
+ * Source of the changes made to the documents of a bucket, such as a DCP
+ * stream of the cluster. Feeds may skip intermediate states of a document,
+ * but always deliver its latest state eventually. The feeds of several
+ * buckets are combined by merging their observables.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@FunctionalInterface
+public interface MutationFeed {
+
+    /**
+     * Returns the changes made to documents from the moment of subscription.
+     * The observable fails when the connection to the feed is lost and may be
+     * subscribed to again to reconnect.
+     *
+     * @return the document mutations
+     */
+    Observable<DocumentMutation> mutations();
+
+}
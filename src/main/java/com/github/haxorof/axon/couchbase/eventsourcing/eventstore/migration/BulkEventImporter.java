@@ -0,0 +1,440 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.migration;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseTemplate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.EventStoreException;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+
+/**
+ * Copies the events of another event store into Couchbase at the write speed
+ * of the cluster, for migrations.
+ * <p>
+ * Events are read in batches and spread over a number of lanes by aggregate,
+ * so that every aggregate is written by one lane in source order. The lanes
+ * write their part of a batch in parallel, each with one append of the
+ * storage strategy per bucket, which builds the documents of all aggregates
+ * in the part in memory and writes them concurrently. Only a few batches are
+ * queued per lane, which bounds the memory used.
+ * <p>
+ * Progress is kept in the checkpoint document {@code cbes:im:<name>}. It
+ * records the number of events read from the source that are written
+ * completely, the tracking token of the last of them, and the number of
+ * events handed to the lanes. An import which failed or was stopped resumes
+ * after the written events and skips events of the aggregates which were
+ * stored by the lanes before they stopped. Events are added to the global
+ * event log in the order the lanes write them, which keeps the order of the
+ * events of every aggregate but may interleave aggregates differently than
+ * the source.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class BulkEventImporter {
+
+    /**
+     * Default number of events read from the source at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Default number of lanes writing in parallel.
+     */
+    public static final int DEFAULT_LANES = 8;
+
+    private static final int QUEUED_BATCHES_PER_LANE = 2;
+    private static final String CHECKPOINT_PREFIX = "cbes:im:";
+    private static final String POSITION_PROPERTY = "position";
+    private static final String HIGH_WATER_PROPERTY = "highWater";
+    private static final String TOKEN_PROPERTY = "token";
+
+    private final CouchbaseTemplate template;
+    private final CouchbaseStoreStrategy storageStrategy;
+    private final Serializer serializer;
+    private final int batchSize;
+    private final int lanes;
+
+    public BulkEventImporter(CouchbaseTemplate template, CouchbaseStoreStrategy storageStrategy, Serializer serializer) {
+        this(template, storageStrategy, serializer, DEFAULT_BATCH_SIZE, DEFAULT_LANES);
+    }
+
+    public BulkEventImporter(CouchbaseTemplate template, CouchbaseStoreStrategy storageStrategy, Serializer serializer,
+            int batchSize, int lanes) {
+        Assert.isTrue(batchSize > 0, () -> "Batch size must be positive");
+        Assert.isTrue(lanes > 0, () -> "Number of lanes must be positive");
+        this.template = template;
+        this.storageStrategy = storageStrategy;
+        this.serializer = serializer;
+        this.batchSize = batchSize;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Imports all events of another storage engine, in the order of its
+     * global event stream, continuing after the checkpoint of an earlier run.
+     *
+     * @param name name of the import, identifying its checkpoint
+     * @param source the engine to read the events from
+     * @return the number of events written by this run
+     */
+    public long importEvents(String name, EventStorageEngine source) {
+        Checkpoint checkpoint = readCheckpoint(name);
+        try (Stream<? extends TrackedEventMessage<?>> events = source.readEvents(checkpoint.token, false)) {
+            return importEvents(name, checkpoint, events.iterator());
+        }
+    }
+
+    /**
+     * Imports the events of a stream, for example read from an export file.
+     * The stream must deliver the same events in the same order on every run,
+     * since an import continuing after the checkpoint of an earlier run skips
+     * the events which were already written.
+     *
+     * @param name name of the import, identifying its checkpoint
+     * @param events the events to import
+     * @return the number of events written by this run
+     */
+    public long importEvents(String name, Stream<? extends EventMessage<?>> events) {
+        Checkpoint checkpoint = readCheckpoint(name);
+        return importEvents(name, checkpoint, events.skip(checkpoint.position).iterator());
+    }
+
+    /**
+     * Returns the number of source events an import wrote completely.
+     *
+     * @param name name of the import
+     * @return the position of the checkpoint, 0 if the import never ran
+     */
+    public long getPosition(String name) {
+        return readCheckpoint(name).position;
+    }
+
+    private long importEvents(String name, Checkpoint start, Iterator<? extends EventMessage<?>> events) {
+        String checkpointId = CHECKPOINT_PREFIX + name;
+        Progress progress = new Progress(checkpointId, start);
+        List<Lane> laneList = new ArrayList<>(lanes);
+        ExecutorService executor = Executors.newFixedThreadPool(lanes);
+        for (int i = 0; i < lanes; i++) {
+            Lane lane = new Lane(progress, start.highWater);
+            laneList.add(lane);
+            executor.execute(lane);
+        }
+        long position = start.position;
+        long batchNumber = 0;
+        try {
+            while (events.hasNext() && progress.getFailure() == null) {
+                List<List<SourceEvent>> parts = new ArrayList<>(lanes);
+                for (int i = 0; i < lanes; i++) {
+                    parts.add(new ArrayList<>());
+                }
+                TrackingToken token = null;
+                for (int i = 0; i < batchSize && events.hasNext(); i++) {
+                    SourceEvent event = new SourceEvent(events.next(), position++);
+                    parts.get((Objects.hashCode(event.aggregateIdentifier) & Integer.MAX_VALUE) % lanes).add(event);
+                    token = event.message instanceof TrackedEventMessage ? ((TrackedEventMessage<?>) event.message).trackingToken() : null;
+                }
+                if (position > start.highWater) {
+                    checkpointBucket().mutateIn(checkpointId).upsertDocument(true).upsert(HIGH_WATER_PROPERTY, position).execute();
+                }
+                List<Integer> usedLanes = new ArrayList<>();
+                for (int i = 0; i < lanes; i++) {
+                    if (!parts.get(i).isEmpty()) {
+                        usedLanes.add(i);
+                    }
+                }
+                progress.dispatched(batchNumber, usedLanes.size(), position, token);
+                for (int i : usedLanes) {
+                    laneList.get(i).put(new Part(batchNumber, parts.get(i)));
+                }
+                batchNumber++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.failed(e);
+        } catch (RuntimeException e) {
+            progress.failed(e);
+        } finally {
+            laneList.forEach(Lane::stop);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (progress.getFailure() != null) {
+            throw new EventStoreException(String.format("Import [%s] failed after %d events", name, progress.getPosition()),
+                    progress.getFailure());
+        }
+        log.info("Import [{}] wrote {} events, {} in total", name, progress.getWritten(), progress.getPosition());
+        return progress.getWritten();
+    }
+
+    private Bucket checkpointBucket() {
+        return template.getEventShards().values().iterator().next();
+    }
+
+    private Checkpoint readCheckpoint(String name) {
+        JsonDocument document = checkpointBucket().get(CHECKPOINT_PREFIX + name);
+        if (document == null) {
+            return new Checkpoint(0, 0, null);
+        }
+        JsonObject content = document.content();
+        long position = content.containsKey(POSITION_PROPERTY) ? content.getLong(POSITION_PROPERTY) : 0;
+        long highWater = content.containsKey(HIGH_WATER_PROPERTY) ? content.getLong(HIGH_WATER_PROPERTY) : position;
+        JsonObject token = content.getObject(TOKEN_PROPERTY);
+        return new Checkpoint(position, highWater, token == null ? null : serializer.deserialize(
+                new SimpleSerializedObject<>(token.getString("data"), String.class, token.getString("type"), token.getString("revision"))));
+    }
+
+    private JsonObject serializeToken(TrackingToken token) {
+        SerializedObject<String> serialized = serializer.serialize(token, String.class);
+        return JsonObject.create()
+                .put("data", serialized.getData())
+                .put("type", serialized.getType().getName())
+                .put("revision", serialized.getType().getRevision());
+    }
+
+    private static final class Checkpoint {
+
+        private final long position;
+        private final long highWater;
+        private final TrackingToken token;
+
+        private Checkpoint(long position, long highWater, TrackingToken token) {
+            this.position = position;
+            this.highWater = highWater;
+            this.token = token;
+        }
+    }
+
+    private static final class SourceEvent {
+
+        private final EventMessage<?> message;
+        private final long position;
+        private final String aggregateIdentifier;
+        private final long sequenceNumber;
+
+        private SourceEvent(EventMessage<?> message, long position) {
+            this.message = message;
+            this.position = position;
+            if (message instanceof DomainEventMessage) {
+                this.aggregateIdentifier = ((DomainEventMessage<?>) message).getAggregateIdentifier();
+                this.sequenceNumber = ((DomainEventMessage<?>) message).getSequenceNumber();
+            } else {
+                this.aggregateIdentifier = message.getIdentifier();
+                this.sequenceNumber = 0;
+            }
+        }
+    }
+
+    private static final class Part {
+
+        private final long batchNumber;
+        private final List<SourceEvent> events;
+
+        private Part(long batchNumber, List<SourceEvent> events) {
+            this.batchNumber = batchNumber;
+            this.events = events;
+        }
+    }
+
+    /**
+     * Tracks the batches in flight and moves the checkpoint past every batch
+     * whose parts were all written, in batch order.
+     */
+    private class Progress {
+
+        private final String checkpointId;
+        private final Map<Long, Integer> remainingParts = new HashMap<>();
+        private final TreeMap<Long, Checkpoint> ends = new TreeMap<>();
+        private final AtomicLong written = new AtomicLong();
+        private long position;
+        private volatile Throwable failure;
+
+        private Progress(String checkpointId, Checkpoint start) {
+            this.checkpointId = checkpointId;
+            this.position = start.position;
+        }
+
+        private synchronized void dispatched(long batchNumber, int parts, long end, TrackingToken token) {
+            remainingParts.put(batchNumber, parts);
+            ends.put(batchNumber, new Checkpoint(end, end, token));
+        }
+
+        private synchronized void completed(long batchNumber, int count) {
+            written.addAndGet(count);
+            remainingParts.merge(batchNumber, -1, Integer::sum);
+            Checkpoint last = null;
+            while (!ends.isEmpty() && remainingParts.get(ends.firstKey()) == 0) {
+                remainingParts.remove(ends.firstKey());
+                last = ends.pollFirstEntry().getValue();
+            }
+            if (last != null && failure == null) {
+                position = last.position;
+                if (last.token == null) {
+                    checkpointBucket().mutateIn(checkpointId).upsertDocument(true).upsert(POSITION_PROPERTY, position).execute();
+                } else {
+                    checkpointBucket().mutateIn(checkpointId).upsertDocument(true)
+                            .upsert(POSITION_PROPERTY, position)
+                            .upsert(TOKEN_PROPERTY, serializeToken(last.token))
+                            .execute();
+                }
+            }
+        }
+
+        private void failed(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private Throwable getFailure() {
+            return failure;
+        }
+
+        private synchronized long getPosition() {
+            return position;
+        }
+
+        private long getWritten() {
+            return written.get();
+        }
+    }
+
+    /**
+     * Writes the parts of the batches for its share of the aggregates, one
+     * part at a time. After a failure, parts are only drained.
+     */
+    private class Lane implements Runnable {
+
+        private final BlockingQueue<Part> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_LANE);
+        private final Progress progress;
+        private final long resumeEnd;
+        private volatile boolean stopped;
+
+        private Lane(Progress progress, long resumeEnd) {
+            this.progress = progress;
+            this.resumeEnd = resumeEnd;
+        }
+
+        private void put(Part part) throws InterruptedException {
+            while (!queue.offer(part, 100, TimeUnit.MILLISECONDS)) {
+                if (progress.getFailure() != null) {
+                    return;
+                }
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped || !queue.isEmpty()) {
+                    Part part = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (part != null && progress.getFailure() == null) {
+                        write(part);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                progress.failed(e);
+            }
+        }
+
+        private void write(Part part) {
+            try {
+                List<SourceEvent> events = part.events.get(0).position < resumeEnd ? unstored(part.events) : part.events;
+                Map<Bucket, List<EventMessage<?>>> eventsPerBucket = new LinkedHashMap<>();
+                for (SourceEvent event : events) {
+                    eventsPerBucket.computeIfAbsent(template.getEventBucket(event.aggregateIdentifier), bucket -> new ArrayList<>())
+                            .add(event.message);
+                }
+                eventsPerBucket.forEach((bucket, bucketEvents) -> storageStrategy.appendEvents(bucket, bucketEvents, serializer));
+                progress.completed(part.batchNumber, events.size());
+            } catch (RuntimeException e) {
+                log.warn("Failed to write a batch of {} events", part.events.size(), e);
+                progress.failed(e);
+            }
+        }
+
+        /**
+         * Drops the events which the lanes of an earlier run stored before
+         * it stopped, looking up the stored sequence numbers of every
+         * aggregate once.
+         */
+        private List<SourceEvent> unstored(List<SourceEvent> events) {
+            Map<String, List<SourceEvent>> eventsPerAggregate = events.stream()
+                    .filter(event -> event.position < resumeEnd)
+                    .collect(Collectors.groupingBy(event -> event.aggregateIdentifier, LinkedHashMap::new, Collectors.toList()));
+            Set<SourceEvent> stored = new HashSet<>();
+            eventsPerAggregate.forEach((aggregateIdentifier, aggregateEvents) -> {
+                long first = aggregateEvents.get(0).sequenceNumber;
+                Set<Long> storedSequenceNumbers = storageStrategy.findDomainEvents(template.getEventBucket(aggregateIdentifier),
+                        aggregateIdentifier, first, aggregateEvents.size()).stream()
+                        .map(event -> event.getSequenceNumber())
+                        .collect(Collectors.toSet());
+                aggregateEvents.stream()
+                        .filter(event -> storedSequenceNumbers.contains(event.sequenceNumber))
+                        .forEach(stored::add);
+            });
+            return events.stream().filter(event -> !stored.contains(event)).collect(Collectors.toList());
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring;
+
+/**
+ * Receives measurements of the operations of a storage strategy. Monitors are
+ * called concurrently and should return quickly.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public interface CouchbaseStoreMonitor {
+
+    /**
+     * Operations of a storage strategy, one for each of its methods.
+     */
+    enum Operation {
+        APPEND_EVENTS, STORE_SNAPSHOT, READ_SNAPSHOT, READ_EVENTS, READ_TRACKED_EVENTS, ARCHIVE_EVENTS
+    }
+
+    /**
+     * Tells whether the sizes of the documents read and written should be
+     * measured. Sizes are measured as the length of the JSON encoding of a
+     * document, which costs encoding every document read once more, so they
+     * are not measured unless a monitor asks for it.
+     *
+     * @return {@code true} to measure sizes
+     */
+    default boolean isMeasuringSizes() {
+        return false;
+    }
+
+    /**
+     * Called for every document read while measuring sizes.
+     *
+     * @param operation the operation reading the document
+     * @param size the size of the document
+     */
+    default void onDocumentRead(Operation operation, int size) {
+    }
+
+    /**
+     * Called once an operation completed or failed.
+     *
+     * @param measurement the measurement of the operation
+     */
+    void onCompleted(OperationMeasurement measurement);
+
+}
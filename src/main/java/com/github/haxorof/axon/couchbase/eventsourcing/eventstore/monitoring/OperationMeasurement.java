@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring;
+
+import com.couchbase.client.java.document.JsonDocument;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurement of one call of a storage strategy: its duration, the part of it
+ * spent serializing events, the number of round trips to Couchbase and how
+ * many of them went to a replica, the bytes read and written and the number
+ * of events stored or returned. Round trips and sizes may be recorded from
+ * any thread.
+ * <p>
+ * Measurements started for the {@link NoOpCouchbaseStoreMonitor} record
+ * nothing.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class OperationMeasurement {
+
+    private static final OperationMeasurement NONE = new OperationMeasurement(null, null);
+
+    private final CouchbaseStoreMonitor monitor;
+    private final Operation operation;
+    private final boolean measuringSizes;
+    private final long startNanos;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger hedgedRequests = new AtomicInteger();
+    private final AtomicInteger replicaReads = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong serializationNanos = new AtomicLong();
+    private final AtomicInteger events = new AtomicInteger();
+    private long durationNanos;
+    private Throwable failure;
+
+    private OperationMeasurement(CouchbaseStoreMonitor monitor, Operation operation) {
+        this.monitor = monitor;
+        this.operation = operation;
+        this.measuringSizes = monitor != null && monitor.isMeasuringSizes();
+        this.startNanos = monitor != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Starts measuring an operation.
+     *
+     * @param monitor monitor to report the measurement to
+     * @param operation the operation
+     * @return the measurement
+     */
+    public static OperationMeasurement start(CouchbaseStoreMonitor monitor, Operation operation) {
+        return monitor == NoOpCouchbaseStoreMonitor.INSTANCE ? NONE : new OperationMeasurement(monitor, operation);
+    }
+
+    /**
+     * Returns a measurement which records nothing.
+     *
+     * @return the measurement
+     */
+    public static OperationMeasurement none() {
+        return NONE;
+    }
+
+    /**
+     * Records round trips to Couchbase, whether they succeeded or not.
+     *
+     * @param count number of round trips
+     */
+    public void requests(int count) {
+        if (monitor != null) {
+            requests.addAndGet(count);
+        }
+    }
+
+    /**
+     * Records a request sent to a replica because the active copy did not
+     * answer in time. The request counts as a round trip as well.
+     */
+    public void hedged() {
+        if (monitor != null) {
+            requests.incrementAndGet();
+            hedgedRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a document used as read from a replica.
+     */
+    public void replicaRead() {
+        if (monitor != null) {
+            replicaReads.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the size of a document read.
+     *
+     * @param document the document, or {@code null} if it did not exist
+     */
+    public void read(JsonDocument document) {
+        if (measuringSizes && document != null) {
+            int size = String.valueOf(document.content()).length();
+            bytesRead.addAndGet(size);
+            monitor.onDocumentRead(operation, size);
+        }
+    }
+
+    /**
+     * Records the size of a document or fragments written.
+     *
+     * @param content content whose string form is its JSON encoding
+     */
+    public void written(Object content) {
+        if (measuringSizes) {
+            bytesWritten.addAndGet(String.valueOf(content).length());
+        }
+    }
+
+    /**
+     * Records the number of events stored or returned.
+     *
+     * @param count number of events
+     */
+    public void events(int count) {
+        if (monitor != null) {
+            events.addAndGet(count);
+        }
+    }
+
+    /**
+     * Returns the time to pass to {@link #serialized(long)} once serializing
+     * is done.
+     *
+     * @return the current time, in nanoseconds
+     */
+    public long startSerialization() {
+        return monitor != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time spent serializing events.
+     *
+     * @param startNanos the time returned by {@link #startSerialization()}
+     */
+    public void serialized(long startNanos) {
+        if (monitor != null) {
+            serializationNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Reports the operation as completed.
+     */
+    public void completed() {
+        failed(null);
+    }
+
+    /**
+     * Reports the operation as failed.
+     *
+     * @param failure the cause of the failure
+     */
+    public void failed(Throwable failure) {
+        if (monitor != null) {
+            this.durationNanos = System.nanoTime() - startNanos;
+            this.failure = failure;
+            monitor.onCompleted(this);
+        }
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getSerializationNanos() {
+        return serializationNanos.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    public int getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public int getEvents() {
+        return events.get();
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monitor keeping histograms of the measurements of every operation in
+ * memory, to be inspected or exported periodically. Recording a measurement
+ * takes no locks.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class StatisticsCouchbaseStoreMonitor implements CouchbaseStoreMonitor {
+
+    private final boolean measuringSizes;
+    private final Map<Operation, OperationStatistics> statistics = new EnumMap<>(Operation.class);
+
+    public StatisticsCouchbaseStoreMonitor() {
+        this(false);
+    }
+
+    public StatisticsCouchbaseStoreMonitor(boolean measuringSizes) {
+        this.measuringSizes = measuringSizes;
+        for (Operation operation : Operation.values()) {
+            statistics.put(operation, new OperationStatistics());
+        }
+    }
+
+    @Override
+    public boolean isMeasuringSizes() {
+        return measuringSizes;
+    }
+
+    @Override
+    public void onDocumentRead(Operation operation, int size) {
+        statistics.get(operation).documentSizes.record(size);
+    }
+
+    @Override
+    public void onCompleted(OperationMeasurement measurement) {
+        OperationStatistics operationStatistics = statistics.get(measurement.getOperation());
+        if (!measurement.isSuccessful()) {
+            operationStatistics.failures.increment();
+        }
+        operationStatistics.latencies.record(measurement.getDurationNanos());
+        operationStatistics.serializationNanos.add(measurement.getSerializationNanos());
+        operationStatistics.requests.record(measurement.getRequests());
+        operationStatistics.hedgedRequests.add(measurement.getHedgedRequests());
+        operationStatistics.replicaReads.add(measurement.getReplicaReads());
+        operationStatistics.events.record(measurement.getEvents());
+        operationStatistics.bytesRead.add(measurement.getBytesRead());
+        operationStatistics.bytesWritten.add(measurement.getBytesWritten());
+    }
+
+    /**
+     * Returns the statistics of an operation.
+     *
+     * @param operation the operation
+     * @return its statistics
+     */
+    public OperationStatistics getStatistics(Operation operation) {
+        return statistics.get(operation);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        statistics.forEach((operation, operationStatistics) -> {
+            if (operationStatistics.getCount() > 0) {
+                builder.append(operation).append(": ").append(operationStatistics).append(System.lineSeparator());
+            }
+        });
+        return builder.toString();
+    }
+
+    /**
+     * Statistics of the calls of one operation.
+     */
+    public static class OperationStatistics {
+
+        private final Histogram latencies = new Histogram();
+        private final Histogram requests = new Histogram();
+        private final Histogram events = new Histogram();
+        private final Histogram documentSizes = new Histogram();
+        private final LongAdder serializationNanos = new LongAdder();
+        private final LongAdder hedgedRequests = new LongAdder();
+        private final LongAdder replicaReads = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * Returns the durations of the calls, in nanoseconds.
+         *
+         * @return the latency histogram
+         */
+        public Histogram getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * Returns the total time spent serializing events, in nanoseconds.
+         *
+         * @return the serialization time
+         */
+        public long getSerializationNanos() {
+            return serializationNanos.sum();
+        }
+
+        /**
+         * Returns the number of round trips to Couchbase per call.
+         *
+         * @return the round trip histogram
+         */
+        public Histogram getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the number of requests sent to a replica because the active
+         * copy did not answer in time.
+         *
+         * @return the number of hedged requests
+         */
+        public long getHedgedRequests() {
+            return hedgedRequests.sum();
+        }
+
+        /**
+         * Returns the number of documents used as read from a replica.
+         *
+         * @return the number of replica reads
+         */
+        public long getReplicaReads() {
+            return replicaReads.sum();
+        }
+
+        /**
+         * Returns the number of events stored or returned per call.
+         *
+         * @return the batch size histogram
+         */
+        public Histogram getEvents() {
+            return events;
+        }
+
+        /**
+         * Returns the sizes of the documents read, in bytes.
+         *
+         * @return the document size histogram
+         */
+        public Histogram getDocumentSizes() {
+            return documentSizes;
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, failures=%d, latency p50=%.3fms p99=%.3fms max=%.3fms, serialization=%.3fms, "
+                    + "requests p50=%d max=%d, hedged=%d, replica reads=%d, events p50=%d max=%d, "
+                    + "document size p50=%d p99=%d max=%d, read=%d, written=%d",
+                    getCount(), getFailures(), latencies.getPercentile(0.5) / 1e6, latencies.getPercentile(0.99) / 1e6,
+                    latencies.getMax() / 1e6, getSerializationNanos() / 1e6, requests.getPercentile(0.5), requests.getMax(),
+                    getHedgedRequests(), getReplicaReads(), events.getPercentile(0.5), events.getMax(), documentSizes.getPercentile(0.5),
+                    documentSizes.getPercentile(0.99), documentSizes.getMax(), getBytesRead(), getBytesWritten());
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with buckets growing exponentially,
+     * each covering an eighth of a power of two. Percentiles are thus
+     * accurate to within 12.5%.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            long recorded = Math.max(0, value);
+            counts.incrementAndGet(bucket(recorded));
+            count.increment();
+            sum.add(recorded);
+            max.accumulate(recorded);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long total = getCount();
+            return total == 0 ? 0 : (double) getSum() / total;
+        }
+
+        /**
+         * Returns the value below or at which the given fraction of the
+         * recorded values lie, rounded up to the end of its bucket.
+         *
+         * @param quantile the fraction, between 0 and 1
+         * @return the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double quantile) {
+            long total = getCount();
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length() && total > 0; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.couchbase.client.java.Bucket;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.EventEntryFormat;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class CachingCouchbaseStoreStrategyTest {
+
+    private static final String AGGREGATE = "aggregate";
+
+    private final Serializer serializer = new XStreamSerializer();
+    private CachingCouchbaseStoreStrategy strategy;
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        strategy = new CachingCouchbaseStoreStrategy(new DocumentPerAggregateStorageStrategy(new GlobalEventLog()));
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+    }
+
+    @Test
+    public void appendedEventsAreCachedByTheNextRead() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        assertThat(strategy.getCachedStreamCount(), equalTo(0));
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 3)));
+        assertThat(strategy.getMissCount(), equalTo(1L));
+        assertThat(strategy.getCachedStreamCount(), equalTo(1));
+
+        strategy.appendEvents(bucket, events("second", 3, 2), serializer);
+        long cachedBytes = strategy.getCachedBytes();
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 5)));
+        assertThat(sequenceNumbers(4), equalTo(range(4, 5)));
+        assertThat(strategy.getHitCount(), equalTo(2L));
+        assertThat(strategy.getCachedBytes() > cachedBytes, equalTo(true));
+    }
+
+    @Test
+    public void failedAppendDropsTheCachedStream() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        sequenceNumbers(0);
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("loser", 0, 1), serializer));
+
+        assertThat(strategy.getCachedStreamCount(), equalTo(0));
+        assertThat(sequenceNumbers(0), equalTo(range(0, 3)));
+    }
+
+    @Test
+    public void deflatedEventsAreEstimatedWithoutInflatingThem() {
+        strategy = new CachingCouchbaseStoreStrategy(new DocumentPerAggregateStorageStrategy(new GlobalEventLog(),
+                DocumentPerAggregateStorageStrategy.DEFAULT_SEGMENT_SIZE, AbstractCouchbaseStoreStrategy.DEFAULT_MAX_CONCURRENT_WRITES,
+                EventEntryFormat.compact(16)));
+        String payload = String.join("", Collections.nCopies(10_000, "a"));
+        strategy.appendEvents(bucket, Collections.singletonList(new GenericDomainEventMessage<>("type", AGGREGATE, 0, payload,
+                MetaData.emptyInstance(), "large", Instant.now())), serializer);
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 1)));
+        assertThat(strategy.getCachedBytes() < payload.length(), equalTo(true));
+    }
+
+    @Test
+    public void streamExtendedBeyondItsSpareRoomKeepsAllEvents() {
+        strategy.appendEvents(bucket, events("first", 0, 1), serializer);
+        sequenceNumbers(0);
+        for (long sequenceNumber = 1; sequenceNumber < 40; sequenceNumber++) {
+            strategy.appendEvents(bucket, events("next", sequenceNumber, 1), serializer);
+            assertThat(sequenceNumbers(sequenceNumber), equalTo(range(sequenceNumber, sequenceNumber + 1)));
+        }
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 40)));
+        assertThat(strategy.getMissCount(), equalTo(1L));
+    }
+
+    private List<DomainEventMessage<?>> events(String commit, long first, int count) {
+        return LongStream.range(first, first + count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", AGGREGATE, sequenceNumber,
+                        "payload-" + sequenceNumber, MetaData.emptyInstance(), commit + "-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> sequenceNumbers(long firstSequenceNumber) {
+        return strategy.findDomainEvents(bucket, AGGREGATE, firstSequenceNumber, 100).stream()
+                .map(DomainEventData::getSequenceNumber)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Long> range(long first, long end) {
+        return LongStream.range(first, end).boxed().collect(Collectors.toList());
+    }
+
+}
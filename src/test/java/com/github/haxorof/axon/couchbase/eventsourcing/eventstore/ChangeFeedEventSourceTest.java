@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.DocumentMutation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.TrackingEventStream;
+import org.axonframework.messaging.MetaData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ChangeFeedEventSourceTest {
+
+    private InMemoryCouchbaseTemplate template;
+    private CouchbaseEventStoreEngine engine;
+
+    @BeforeEach
+    public void setUp() {
+        template = new InMemoryCouchbaseTemplate();
+        engine = new CouchbaseEventStoreEngine(template);
+    }
+
+    @Test
+    public void pageOnlyHoldingReservationsDecodesToNoEvents() {
+        JsonObject page = JsonObject.create().put("reserved", JsonArray.from(JsonObject.create().put("gi", 0L)));
+
+        Optional<List<? extends TrackedEventMessage<?>>> events = engine.decodeEvents(mutation("cbes:gl:0", page), null);
+
+        assertThat(events.isPresent(), is(true));
+        assertThat(events.get().isEmpty(), is(true));
+    }
+
+    @Test
+    public void pageDecodesToEventsAfterToken() {
+        engine.appendEvents(event("aggregate", 0), event("aggregate", 1), event("aggregate", 2));
+        JsonDocument page = template.getEventBucket().get("cbes:gl:0");
+
+        List<? extends TrackedEventMessage<?>> events = engine.decodeEvents(mutation(page.id(), page.content()), null).get();
+
+        assertThat(events.size(), equalTo(3));
+        assertThat(engine.decodeEvents(mutation(page.id(), page.content()), events.get(2).trackingToken()).get().isEmpty(), is(true));
+    }
+
+    @Test
+    public void removalCanNotBeDecoded() {
+        assertThat(engine.decodeEvents(new DocumentMutation("cbes:gl:0", 1, null), null).isPresent(), is(false));
+    }
+
+    @Test
+    public void streamDeliversAppendedEventsInOrder() throws InterruptedException {
+        ChangeFeedEventSource source = new ChangeFeedEventSource(engine, template.getCore(), 16, 200);
+        List<Long> sequenceNumbers = new ArrayList<>();
+        try (TrackingEventStream stream = source.openStream(null)) {
+            for (long sequenceNumber = 0; sequenceNumber < 5; sequenceNumber++) {
+                engine.appendEvents(event("aggregate", sequenceNumber));
+            }
+            while (sequenceNumbers.size() < 5 && stream.hasNextAvailable(5, TimeUnit.SECONDS)) {
+                sequenceNumbers.add(((DomainEventMessage<?>) stream.nextAvailable()).getSequenceNumber());
+            }
+        }
+        assertThat(sequenceNumbers.size(), equalTo(5));
+        for (int i = 0; i < sequenceNumbers.size(); i++) {
+            assertThat(sequenceNumbers.get(i), equalTo((long) i));
+        }
+    }
+
+    private static DocumentMutation mutation(String id, JsonObject content) {
+        return new DocumentMutation(id, 1, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static GenericDomainEventMessage<String> event(String aggregateIdentifier, long sequenceNumber) {
+        return new GenericDomainEventMessage<>("type", aggregateIdentifier, sequenceNumber, "payload", MetaData.emptyInstance(),
+                aggregateIdentifier + "-" + sequenceNumber, Instant.now());
+    }
+
+}
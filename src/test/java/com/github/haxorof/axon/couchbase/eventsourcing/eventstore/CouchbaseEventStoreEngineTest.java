@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.StatisticsCouchbaseStoreMonitor;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventStream;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class CouchbaseEventStoreEngineTest {
+
+    private static final int BATCH_SIZE = 3;
+
+    private StatisticsCouchbaseStoreMonitor monitor;
+    private CouchbaseEventStoreEngine engine;
+
+    @BeforeEach
+    public void setUp() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy();
+        engine = new CouchbaseEventStoreEngine(new XStreamSerializer(), null, BATCH_SIZE, strategy, new InMemoryCouchbaseTemplate());
+        engine.appendEvents(event("a", 0), event("a", 1), event("a", 2), event("a", 3), event("b", 0), event("b", 1));
+        engine.storeSnapshot(event("a", 1));
+        monitor = new StatisticsCouchbaseStoreMonitor();
+        strategy.setMonitor(monitor);
+    }
+
+    @Test
+    public void aggregatesAreReadInOneRoundStartingAtTheirSnapshots() {
+        Map<String, DomainEventStream> streams = engine.readEvents(Arrays.asList("a", "b", "unknown"));
+
+        assertThat(streams.keySet(), equalTo(new LinkedHashSet<>(Arrays.asList("a", "b", "unknown"))));
+        assertThat(monitor.getStatistics(Operation.READ_SNAPSHOT).getCount(), equalTo(1L));
+        assertThat(monitor.getStatistics(Operation.READ_EVENTS).getCount(), equalTo(1L));
+        assertThat(sequenceNumbers(streams.get("a")), equalTo(Arrays.asList(1L, 2L, 3L)));
+        assertThat(sequenceNumbers(streams.get("b")), equalTo(Arrays.asList(0L, 1L)));
+        assertThat(sequenceNumbers(streams.get("unknown")), equalTo(Collections.<Long>emptyList()));
+    }
+
+    @Test
+    public void historyLongerThanABatchIsReadOnceConsumed() {
+        engine.appendEvents(event("b", 2), event("b", 3), event("b", 4));
+
+        Map<String, DomainEventStream> streams = engine.readEvents(Collections.singletonList("b"));
+
+        assertThat(monitor.getStatistics(Operation.READ_EVENTS).getCount(), equalTo(1L));
+        assertThat(sequenceNumbers(streams.get("b")), equalTo(Arrays.asList(0L, 1L, 2L, 3L, 4L)));
+        assertThat(monitor.getStatistics(Operation.READ_EVENTS).getCount(), equalTo(2L));
+    }
+
+    private static List<Long> sequenceNumbers(DomainEventStream stream) {
+        return stream.asStream().map(DomainEventMessage::getSequenceNumber).collect(Collectors.toList());
+    }
+
+    private static DomainEventMessage<?> event(String aggregateIdentifier, long sequenceNumber) {
+        return new GenericDomainEventMessage<>("type", aggregateIdentifier, sequenceNumber, "payload", MetaData.emptyInstance(),
+                aggregateIdentifier + "-" + sequenceNumber, Instant.now());
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.LatencyDistribution;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.SimulatedClusterFacade;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.StatisticsCouchbaseStoreMonitor;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ReadPolicyTest {
+
+    private InMemoryCouchbaseTemplate template;
+    private AsyncBucket bucket;
+    private StatisticsCouchbaseStoreMonitor monitor;
+    private OperationMeasurement measurement;
+
+    @BeforeEach
+    public void setUp() {
+        template = new InMemoryCouchbaseTemplate();
+        bucket = template.getEventBucket().async();
+        template.getEventBucket().upsert(JsonDocument.create("key", JsonObject.create().put("value", 1)));
+        monitor = new StatisticsCouchbaseStoreMonitor();
+        measurement = OperationMeasurement.start(monitor, Operation.READ_EVENTS);
+    }
+
+    @Test
+    public void completeReplicaCopyIsUsed() {
+        JsonDocument document = ReadPolicy.REPLICA.get(bucket, "key", copy -> true, measurement).toBlocking().single();
+
+        assertThat(document.content().getInt("value"), equalTo(1));
+        assertThat(measurement.getReplicaReads(), equalTo(1));
+    }
+
+    @Test
+    public void incompleteReplicaCopyIsReadFromTheActiveCopy() {
+        JsonDocument document = ReadPolicy.REPLICA.get(bucket, "key", copy -> false, measurement).toBlocking().single();
+
+        assertThat(document.content().getInt("value"), equalTo(1));
+        assertThat(measurement.getReplicaReads(), equalTo(0));
+    }
+
+    @Test
+    public void missingDocumentIsEmpty() {
+        assertThat(ReadPolicy.REPLICA.get(bucket, "missing", copy -> true, measurement).toList().toBlocking().single().size(), equalTo(0));
+        assertThat(ReadPolicy.ACTIVE.get(bucket, "missing", copy -> true, measurement).toList().toBlocking().single().size(), equalTo(0));
+    }
+
+    @Test
+    public void hedgedReadAsksTheReplicaOnlyIfTheActiveCopyIsSlow() {
+        SimulatedClusterFacade facade = new SimulatedClusterFacade()
+                .latency(SimulatedClusterFacade.OperationType.GET, LatencyDistribution.constant(200, TimeUnit.MILLISECONDS));
+        try {
+            AsyncBucket slowBucket = new InMemoryCouchbaseTemplate(facade).getEventBucket().async();
+            slowBucket.upsert(JsonDocument.create("key", JsonObject.create().put("value", 1))).toBlocking().single();
+            ReadPolicy fast = ReadPolicy.hedged(1, TimeUnit.SECONDS);
+            ReadPolicy slow = ReadPolicy.hedged(10, TimeUnit.MILLISECONDS);
+
+            OperationMeasurement fastMeasurement = OperationMeasurement.start(monitor, Operation.READ_EVENTS);
+            OperationMeasurement slowMeasurement = OperationMeasurement.start(monitor, Operation.READ_EVENTS);
+
+            assertThat(fast.get(slowBucket, "key", copy -> true, fastMeasurement).toBlocking().single().content().getInt("value"),
+                    equalTo(1));
+            assertThat(slow.get(slowBucket, "key", copy -> true, slowMeasurement).toBlocking().single().content().getInt("value"),
+                    equalTo(1));
+
+            assertThat(fastMeasurement.getHedgedRequests(), equalTo(0));
+            assertThat(slowMeasurement.getHedgedRequests(), equalTo(1));
+        } finally {
+            facade.shutdown();
+        }
+    }
+
+    @Test
+    public void negativeHedgeDelayIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ReadPolicy.hedged(-1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void strategyReadsFullSegmentsFromTheReplica() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(), 2);
+        ReadPolicy policy = ReadPolicy.REPLICA;
+        strategy.setReadPolicy(Operation.READ_EVENTS, policy);
+        strategy.appendEvents(template.getEventBucket(), events(5), new XStreamSerializer());
+        strategy.setMonitor(monitor);
+
+        List<Long> sequenceNumbers = strategy.findDomainEvents(template.getEventBucket(), "aggregate", 0, 100).stream()
+                .map(event -> event.getSequenceNumber())
+                .collect(Collectors.toList());
+
+        assertThat(sequenceNumbers, equalTo(LongStream.range(0, 5).boxed().collect(Collectors.toList())));
+        assertTrue(monitor.getStatistics(Operation.READ_EVENTS).getReplicaReads() > 0);
+        assertThat(monitor.getStatistics(Operation.APPEND_EVENTS).getReplicaReads(), equalTo(0L));
+        assertThrows(IllegalArgumentException.class, () -> strategy.setReadPolicy(Operation.APPEND_EVENTS, policy));
+    }
+
+    private static List<DomainEventMessage<?>> events(int count) {
+        return LongStream.range(0, count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", "aggregate", sequenceNumber, "payload",
+                        MetaData.emptyInstance(), "aggregate-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+}
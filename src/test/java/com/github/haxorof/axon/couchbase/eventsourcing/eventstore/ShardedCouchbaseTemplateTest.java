@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.messaging.MetaData;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ShardedCouchbaseTemplateTest {
+
+    private final InMemoryCouchbaseTemplate shardA = new InMemoryCouchbaseTemplate();
+    private final InMemoryCouchbaseTemplate shardB = new InMemoryCouchbaseTemplate();
+
+    @Test
+    public void assignmentDoesNotDependOnOrderOfShards() {
+        Map<String, CouchbaseTemplate> shards = new LinkedHashMap<>();
+        shards.put("a", shardA);
+        shards.put("b", shardB);
+        Map<String, CouchbaseTemplate> reversed = new LinkedHashMap<>();
+        reversed.put("b", shardB);
+        reversed.put("a", shardA);
+        ShardedCouchbaseTemplate template = new ShardedCouchbaseTemplate(shards);
+        ShardedCouchbaseTemplate other = new ShardedCouchbaseTemplate(reversed);
+
+        IntStream.range(0, 100).mapToObj(i -> "aggregate-" + i)
+                .forEach(id -> assertThat(other.getShard(id), equalTo(template.getShard(id))));
+    }
+
+    @Test
+    public void bucketsWithoutAggregateAreThoseOfFirstShard() {
+        Map<String, CouchbaseTemplate> shards = new LinkedHashMap<>();
+        shards.put("b", shardB);
+        shards.put("a", shardA);
+        ShardedCouchbaseTemplate template = new ShardedCouchbaseTemplate(shards);
+
+        assertThat(template.getEventBucket(), sameInstance(shardA.getEventBucket()));
+        assertThat(template.getSnapshotBucket(), sameInstance(shardA.getSnapshotBucket()));
+    }
+
+    @Test
+    public void commitFailingInOneShardIsReportedAsPartiallyStored() {
+        Map<String, CouchbaseTemplate> shards = new LinkedHashMap<>();
+        shards.put("a", shardA);
+        shards.put("b", shardB);
+        ShardedCouchbaseTemplate template = new ShardedCouchbaseTemplate(shards);
+        String inA = aggregateIn(template, "a");
+        String inB = aggregateIn(template, "b");
+        CouchbaseEventStoreEngine engine = new CouchbaseEventStoreEngine(template);
+        engine.appendEvents(event(inB, 0));
+
+        PartialCommitException exception = assertThrows(PartialCommitException.class,
+                () -> engine.appendEvents(event(inA, 0), event(inB, 0)));
+
+        assertThat(exception.getStoredAggregateIdentifiers().contains(inA), is(true));
+        assertThat(exception.getFailedAggregateIdentifiers().contains(inB), is(true));
+        assertThat(engine.readEvents(inA).asStream().count(), equalTo(1L));
+    }
+
+    private static String aggregateIn(ShardedCouchbaseTemplate template, String shard) {
+        return IntStream.range(0, 1000).mapToObj(i -> "aggregate-" + i)
+                .filter(id -> template.getShard(id).equals(shard))
+                .findFirst()
+                .get();
+    }
+
+    private static GenericDomainEventMessage<String> event(String aggregateIdentifier, long sequenceNumber) {
+        return new GenericDomainEventMessage<>("type", aggregateIdentifier, sequenceNumber, "payload", MetaData.emptyInstance(),
+                aggregateIdentifier + "-" + sequenceNumber + "-" + Instant.now().toEpochMilli(), Instant.now());
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.axonframework.eventsourcing.eventstore.GapAwareTrackingToken;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class ShardedTrackingTokenTest {
+
+    @Test
+    public void coversItself() {
+        ShardedTrackingToken token = token(5, 7);
+
+        assertThat(token.covers(token), is(true));
+        assertThat(token.covers(token(5, 7)), is(true));
+    }
+
+    @Test
+    public void coversTokenBehindInSomeShards() {
+        assertThat(token(5, 7).covers(token(5, 6)), is(true));
+        assertThat(token(5, 7).covers(token(6, 6)), is(false));
+        assertThat(token(5, 7).covers(new ShardedTrackingToken(Collections.singletonMap("a", new GlobalSequenceTrackingToken(5)))),
+                is(true));
+    }
+
+    @Test
+    public void doesNotCoverGapsOfOtherToken() {
+        ShardedTrackingToken withGap = new ShardedTrackingToken(Collections.singletonMap("a",
+                GapAwareTrackingToken.newInstance(5, Collections.singleton(3L))));
+        ShardedTrackingToken withoutGap = new ShardedTrackingToken(Collections.singletonMap("a",
+                GapAwareTrackingToken.newInstance(5, Collections.emptySet())));
+
+        assertThat(withoutGap.covers(withGap), is(true));
+        assertThat(withGap.covers(withoutGap), is(false));
+    }
+
+    @Test
+    public void boundsArePerShard() {
+        assertThat(token(5, 7).upperBound(token(6, 6)), equalTo(token(6, 7)));
+        assertThat(token(5, 7).lowerBound(token(6, 6)), equalTo(token(5, 6)));
+    }
+
+    private static ShardedTrackingToken token(long a, long b) {
+        Map<String, TrackingToken> tokens = new HashMap<>();
+        tokens.put("a", new GlobalSequenceTrackingToken(a));
+        tokens.put("b", new GlobalSequenceTrackingToken(b));
+        return new ShardedTrackingToken(tokens);
+    }
+
+}
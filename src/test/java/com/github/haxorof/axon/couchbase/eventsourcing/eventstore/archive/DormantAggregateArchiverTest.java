@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.archive;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.couchbase.client.java.Bucket;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseEventStoreEngine;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.messaging.MetaData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class DormantAggregateArchiverTest {
+
+    private static final Instant NOW = Instant.parse("2018-06-01T00:00:00Z");
+    private static final Duration DORMANCY = Duration.ofDays(30);
+
+    private InMemoryCouchbaseTemplate template;
+    private Bucket bucket;
+    private CouchbaseEventStoreEngine engine;
+
+    @BeforeEach
+    public void setUp() {
+        template = new InMemoryCouchbaseTemplate();
+        bucket = template.getEventBucket();
+        engine = new CouchbaseEventStoreEngine(template);
+    }
+
+    @Test
+    public void dormantAggregatesAreArchivedAndStillRead() {
+        engine.appendEvents(event("a", 0, 40), event("a", 1, 40), event("b", 0, 35));
+
+        assertThat(archiver(NOW).archiveDormantAggregates(), equalTo(2));
+
+        assertThat(bucket.exists("cbes:ar:a:0"), equalTo(true));
+        assertThat(bucket.exists("cbes:ar:b:0"), equalTo(true));
+        assertThat(sequenceNumbers("a"), equalTo(Arrays.asList(0L, 1L)));
+        assertThat(sequenceNumbers("b"), equalTo(Arrays.asList(0L)));
+    }
+
+    @Test
+    public void aggregateWithRecentEventsIsNotArchived() {
+        engine.appendEvents(event("a", 0, 40), event("b", 0, 35), event("a", 1, 1));
+
+        assertThat(archiver(NOW).archiveDormantAggregates(), equalTo(1));
+
+        assertThat(bucket.exists("cbes:ar:a:0"), equalTo(false));
+        assertThat(bucket.exists("cbes:ar:b:0"), equalTo(true));
+        assertThat(sequenceNumbers("a"), equalTo(Arrays.asList(0L, 1L)));
+    }
+
+    @Test
+    public void laterRunContinuesWhereTheEarlierStopped() {
+        engine.appendEvents(event("a", 0, 40), event("b", 0, 10));
+
+        assertThat(archiver(NOW).archiveDormantAggregates(), equalTo(1));
+        assertThat(archiver(NOW.plus(Duration.ofDays(30))).archiveDormantAggregates(), equalTo(1));
+
+        assertThat(bucket.exists("cbes:ar:b:0"), equalTo(true));
+        assertThat(archiver(NOW.plus(Duration.ofDays(30))).archiveDormantAggregates(), equalTo(0));
+    }
+
+    private DormantAggregateArchiver archiver(Instant now) {
+        return new DormantAggregateArchiver(engine, template, DORMANCY, DormantAggregateArchiver.DEFAULT_BATCH_SIZE,
+                Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private List<Long> sequenceNumbers(String aggregateIdentifier) {
+        return engine.readEvents(aggregateIdentifier).asStream()
+                .map(DomainEventMessage::getSequenceNumber)
+                .collect(Collectors.toList());
+    }
+
+    private static DomainEventMessage<?> event(String aggregateIdentifier, long sequenceNumber, int daysAgo) {
+        return new GenericDomainEventMessage<>("type", aggregateIdentifier, sequenceNumber, "payload", MetaData.emptyInstance(),
+                aggregateIdentifier + "-" + sequenceNumber, NOW.minus(Duration.ofDays(daysAgo)));
+    }
+
+}
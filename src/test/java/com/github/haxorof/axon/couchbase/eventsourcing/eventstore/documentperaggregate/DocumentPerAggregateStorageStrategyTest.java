@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.kv.InsertRequest;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.PartialCommitException;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryClusterFacade;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import rx.Observable;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class DocumentPerAggregateStorageStrategyTest {
+    private static final String AGGREGATE = "aggregate";
+    private static final int SEGMENT_SIZE = 4;
+
+    private final Serializer serializer = new XStreamSerializer();
+    private DocumentPerAggregateStorageStrategy strategy;
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(), SEGMENT_SIZE);
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+    }
+
+    @Test
+    public void eventsAreSpreadOverSegmentsOfTheirSequenceNumber() {
+        for (int first = 0; first < 10; first++) {
+            strategy.appendEvents(bucket, events("commit" + first, first, 1), serializer);
+        }
+
+        assertThat(bucket.get("cbes:ev:" + AGGREGATE + ":0").content().getArray("events").size(), equalTo(SEGMENT_SIZE));
+        assertThat(bucket.get("cbes:ev:" + AGGREGATE + ":1").content().getArray("events").size(), equalTo(SEGMENT_SIZE));
+        assertThat(bucket.get("cbes:ev:" + AGGREGATE + ":2").content().getArray("events").size(), equalTo(2));
+        assertThat(bucket.get("cbes:ev:" + AGGREGATE), nullValue());
+        assertThat(sequenceNumbers(0), equalTo(range(0, 10)));
+        assertThat(sequenceNumbers(5), equalTo(range(5, 10)));
+    }
+
+    @Test
+    public void unsegmentedHistoryIsReadAndAppendedTo() {
+        JsonArray legacy = JsonArray.create();
+        events("legacy", 0, 3).forEach(event -> legacy.add(new EventEntry(event, serializer, EventEntry.NO_GLOBAL_INDEX).asJsonObject()));
+        bucket.insert(JsonDocument.create("cbes:ev:" + AGGREGATE, JsonObject.create().put("events", legacy)));
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 3)));
+
+        strategy.appendEvents(bucket, events("after", 3, 2), serializer);
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 5)));
+        assertThat(sequenceNumbers(4), equalTo(range(4, 5)));
+    }
+
+    @Test
+    public void commitCrossingSegmentEndIsReadFromEverySequenceNumber() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        strategy.appendEvents(bucket, events("second", 3, 6), serializer);
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 9)));
+        assertThat(sequenceNumbers(4), equalTo(range(4, 9)));
+        assertThat(sequenceNumbers(8), equalTo(range(8, 9)));
+        assertThat(sequenceNumbers(9).isEmpty(), is(true));
+    }
+
+    @Test
+    public void conflictingCommitAcrossSegmentEndStoresNothing() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        strategy.appendEvents(bucket, events("winner", 3, 1), serializer);
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("loser", 3, 2), serializer));
+
+        List<? extends DomainEventData<?>> events = strategy.findDomainEvents(bucket, AGGREGATE, 0, 100);
+        assertThat(sequenceNumbers(events), equalTo(range(0, 4)));
+        assertThat(events.get(3).getEventIdentifier(), equalTo("winner-3"));
+        assertThat(sequenceNumbers(4).isEmpty(), is(true));
+
+        strategy.appendEvents(bucket, events("next", 4, 1), serializer);
+        assertThat(sequenceNumbers(0), equalTo(range(0, 5)));
+    }
+
+    @Test
+    public void conflictingCommitFailsOnTheSegmentOfItsFirstEvent() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        strategy.appendEvents(bucket, events("winner", 3, 2), serializer);
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("loser", 3, 1), serializer));
+
+        List<? extends DomainEventData<?>> events = strategy.findDomainEvents(bucket, AGGREGATE, 0, 100);
+        assertThat(sequenceNumbers(events), equalTo(range(0, 5)));
+        assertThat(events.get(3).getEventIdentifier(), equalTo("winner-3"));
+    }
+
+    @Test
+    public void readsOnlyTheRequestedSliceOfTheHistory() {
+        strategy.appendEvents(bucket, events("commit", 0, 10), serializer);
+
+        List<? extends DomainEventData<?>> events = strategy.findDomainEvents(bucket, AGGREGATE, 2, 5);
+        assertThat(sequenceNumbers(events), equalTo(range(2, 7)));
+    }
+
+    @Test
+    public void readsNothingForUnknownAggregate() {
+        assertThat(sequenceNumbers(0).isEmpty(), is(true));
+        assertThat(sequenceNumbers(40).isEmpty(), is(true));
+    }
+
+    @Test
+    public void readsOfNewAggregateAndPastLastEventMakeOneRound() {
+        List<OperationMeasurement> reads = new CopyOnWriteArrayList<>();
+        strategy.setMonitor(measurement -> {
+            if (measurement.getOperation() == Operation.READ_EVENTS) {
+                reads.add(measurement);
+            }
+        });
+
+        strategy.findDomainEvents(bucket, AGGREGATE, 0, 2 * SEGMENT_SIZE);
+        strategy.appendEvents(bucket, events("first", 0, 6), serializer);
+        strategy.findDomainEvents(bucket, AGGREGATE, 6, 2 * SEGMENT_SIZE);
+
+        assertThat(reads.get(0).getRequests(), equalTo(3));
+        assertThat(reads.get(1).getRequests(), equalTo(4));
+    }
+
+    @Test
+    public void archivedAggregateIsLoadedAndAppendedTo() {
+        for (int first = 0; first < 10; first += 3) {
+            strategy.appendEvents(bucket, events("commit" + first, first, Math.min(3, 10 - first)), serializer);
+        }
+
+        assertThat(strategy.archiveEvents(bucket, bucket, AGGREGATE, 9), is(true));
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 10)));
+        assertThat(sequenceNumbers(5), equalTo(range(5, 10)));
+        assertThat(sequenceNumbers(10).isEmpty(), is(true));
+
+        strategy.appendEvents(bucket, events("after", 10, 3), serializer);
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 13)));
+        assertThat(sequenceNumbers(11), equalTo(range(11, 13)));
+    }
+
+    @Test
+    public void commitConflictingWithArchivedOneIsRejected() {
+        for (int first = 0; first < 10; first += 3) {
+            strategy.appendEvents(bucket, events("commit" + first, first, Math.min(3, 10 - first)), serializer);
+        }
+        assertThat(strategy.archiveEvents(bucket, bucket, AGGREGATE, 9), is(true));
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("stale", 6, 2), serializer));
+
+        List<? extends DomainEventData<?>> events = strategy.findDomainEvents(bucket, AGGREGATE, 0, 100);
+        assertThat(sequenceNumbers(events), equalTo(range(0, 10)));
+        assertThat(events.get(6).getEventIdentifier(), equalTo("commit6-6"));
+    }
+
+    @Test
+    public void appendRacingArchivalIsKept() {
+        List<Runnable> race = new ArrayList<>();
+        bucket = new InMemoryCouchbaseTemplate(new InMemoryClusterFacade() {
+            @Override
+            public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+                if (request instanceof InsertRequest && ((InsertRequest) request).key().startsWith("cbes:ar:") && !race.isEmpty()) {
+                    race.remove(0).run();
+                }
+                return super.send(request);
+            }
+        }).getEventBucket();
+        for (int first = 0; first < 10; first += 3) {
+            strategy.appendEvents(bucket, events("commit" + first, first, Math.min(3, 10 - first)), serializer);
+        }
+        race.add(() -> strategy.appendEvents(bucket, events("racer", 10, 2), serializer));
+
+        assertThat(strategy.archiveEvents(bucket, bucket, AGGREGATE, 9), is(false));
+
+        assertThat(race.isEmpty(), is(true));
+        assertThat(sequenceNumbers(0), equalTo(range(0, 12)));
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("stale", 6, 1), serializer));
+        assertThat(sequenceNumbers(0), equalTo(range(0, 12)));
+    }
+
+    @Test
+    public void archivalIsRefusedWhenAggregateGotNewerEvents() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        strategy.appendEvents(bucket, events("second", 3, 3), serializer);
+
+        assertThat(strategy.archiveEvents(bucket, bucket, AGGREGATE, 2), is(false));
+        assertThat(sequenceNumbers(0), equalTo(range(0, 6)));
+    }
+
+    @Test
+    public void commitOfSeveralAggregatesIsReportedAsPartialWhenOneConflicts() {
+        strategy.appendEvents(bucket, GlobalEventLogTest.events("b", 0, 1), serializer);
+        List<DomainEventMessage<?>> commit = new ArrayList<>(GlobalEventLogTest.events("a", 0, 2));
+        commit.addAll(GlobalEventLogTest.events("b", 0, 1));
+        commit.addAll(GlobalEventLogTest.events("c", 0, 1));
+
+        PartialCommitException e = assertThrows(PartialCommitException.class, () -> strategy.appendEvents(bucket, commit, serializer));
+
+        assertThat(e.getStoredAggregateIdentifiers(), equalTo(Arrays.asList("a", "c")));
+        assertThat(e.getFailedAggregateIdentifiers(), equalTo(Arrays.asList("b")));
+        List<String> tracked = strategy.findTrackedEvents(bucket, null, 100).stream()
+                .map(TrackedEventData::getEventIdentifier)
+                .collect(Collectors.toList());
+        assertThat(tracked, equalTo(Arrays.asList("b-0", "a-0", "a-1", "c-0")));
+    }
+
+    @Test
+    public void onlyMoreRecentSnapshotReplacesTheStoredOne() {
+        strategy.appendSnapshot(bucket, snapshot(5), serializer);
+        strategy.appendSnapshot(bucket, snapshot(3), serializer);
+
+        assertThat(strategy.findLastSnapshot(bucket, AGGREGATE).get().getSequenceNumber(), equalTo(5L));
+
+        strategy.appendSnapshot(bucket, snapshot(8), serializer);
+
+        DomainEventData<?> snapshot = strategy.findLastSnapshot(bucket, AGGREGATE).get();
+        assertThat(snapshot.getSequenceNumber(), equalTo(8L));
+        assertThat(serializer.deserialize(snapshot.getPayload()), equalTo("state-8"));
+        assertThat(strategy.findLastSnapshot(bucket, "other").isPresent(), is(false));
+    }
+
+    private static DomainEventMessage<?> snapshot(long sequenceNumber) {
+        return new GenericDomainEventMessage<>("type", AGGREGATE, sequenceNumber, "state-" + sequenceNumber, MetaData.emptyInstance(),
+                "snapshot-" + sequenceNumber, Instant.now());
+    }
+
+    private List<DomainEventMessage<?>> events(String commit, long first, int count) {
+        return LongStream.range(first, first + count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", AGGREGATE, sequenceNumber,
+                        "payload-" + sequenceNumber, MetaData.emptyInstance(), commit + "-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> sequenceNumbers(long firstSequenceNumber) {
+        return sequenceNumbers(strategy.findDomainEvents(bucket, AGGREGATE, firstSequenceNumber, 100));
+    }
+
+    private static List<Long> sequenceNumbers(List<? extends DomainEventData<?>> events) {
+        return events.stream().map(DomainEventData::getSequenceNumber).collect(Collectors.toList());
+    }
+
+    private static List<Long> range(long first, long end) {
+        return LongStream.range(first, end).boxed().collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.SerializationException;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class EventEntryTest {
+
+    private static final Instant TIME_STAMP = Instant.parse("2017-06-01T12:34:56.789123456Z");
+
+    private final Serializer serializer = new XStreamSerializer();
+
+    @Test
+    public void compactEntryInAggregateDocumentTakesTheAggregateFromTheDocument() {
+        EventEntry entry = new EventEntry(event(3), serializer, 42);
+
+        JsonObject encoded = EventEntryFormat.COMPACT.encode(entry, true);
+        EventEntry decoded = new EventEntry(encoded, "aggregate", "type");
+
+        assertThat(encoded.containsKey("a"), is(false));
+        assertEqual(decoded, entry);
+    }
+
+    @Test
+    public void compactEntryInLogCarriesItsAggregate() {
+        EventEntry entry = new EventEntry(event(3), serializer, 42);
+
+        assertEqual(new EventEntry(EventEntryFormat.COMPACT.encode(entry, false)), entry);
+    }
+
+    @Test
+    public void deflatedEntryIsInflatedOnRead() {
+        EventEntry entry = new EventEntry(event(3), serializer, 42);
+
+        JsonObject encoded = EventEntryFormat.compact(0).encode(entry, false);
+
+        assertThat(encoded.getInt("z"), equalTo(3));
+        assertEqual(new EventEntry(encoded), entry);
+    }
+
+    @Test
+    public void verboseEntryIsReadAsBefore() {
+        EventEntry entry = new EventEntry(event(3), serializer, EventEntry.NO_GLOBAL_INDEX);
+
+        assertEqual(new EventEntry(EventEntryFormat.VERBOSE.encode(entry, true)), entry);
+    }
+
+    @Test
+    public void aggregateWrittenInBothFormatsIsRead() {
+        Bucket bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+        GlobalEventLog log = new GlobalEventLog();
+        new DocumentPerAggregateStorageStrategy(log).appendEvents(bucket, GlobalEventLogTest.events("aggregate", 0, 2), serializer);
+        DocumentPerAggregateStorageStrategy compact = new DocumentPerAggregateStorageStrategy(log,
+                DocumentPerAggregateStorageStrategy.DEFAULT_SEGMENT_SIZE, AbstractCouchbaseStoreStrategy.DEFAULT_MAX_CONCURRENT_WRITES,
+                EventEntryFormat.compact(16));
+        compact.appendEvents(bucket, GlobalEventLogTest.events("aggregate", 2, 2), serializer);
+
+        List<? extends DomainEventData<?>> events = compact.findDomainEvents(bucket, "aggregate", 0, 100);
+
+        assertThat(events.stream().map(DomainEventData::getSequenceNumber).collect(Collectors.toList()),
+                equalTo(Arrays.asList(0L, 1L, 2L, 3L)));
+        assertThat(events.stream().map(event -> serializer.deserialize(event.getPayload())).collect(Collectors.toList()),
+                equalTo(Arrays.<Object>asList("payload-0", "payload-1", "payload-2", "payload-3")));
+        assertThat(compact.findTrackedEvents(bucket, null, 100).size(), equalTo(4));
+    }
+
+    @Test
+    public void corruptPayloadFailsOnlyWhenItIsRead() {
+        JsonObject encoded = EventEntryFormat.compact(0).encode(new EventEntry(event(3), serializer, 42), false)
+                .put("p", "bm90IGRlZmxhdGVk");
+
+        EventEntry decoded = new EventEntry(encoded);
+
+        assertThat(decoded.getSequenceNumber(), equalTo(3L));
+        assertThat(decoded.getEventIdentifier(), equalTo("event-3"));
+        assertThat(serializer.deserialize(decoded.getMetaData()), equalTo(MetaData.with("key", "value")));
+        assertThrows(SerializationException.class, decoded::getPayload);
+    }
+
+    @Test
+    public void compactTimeStampKeepsItsNanos() {
+        JsonObject encoded = EventEntryFormat.COMPACT.encode(new EventEntry(event(3), serializer, 42), true);
+
+        assertThat(encoded.getLong("ts"), equalTo(TIME_STAMP.toEpochMilli()));
+        assertThat(new EventEntry(encoded, "aggregate", "type").getTimestamp(), equalTo(TIME_STAMP));
+    }
+
+    private void assertEqual(EventEntry actual, EventEntry expected) {
+        assertThat(actual.getAggregateIdentifier(), equalTo(expected.getAggregateIdentifier()));
+        assertThat(actual.getType(), equalTo(expected.getType()));
+        assertThat(actual.getSequenceNumber(), equalTo(expected.getSequenceNumber()));
+        assertThat(actual.getEventIdentifier(), equalTo(expected.getEventIdentifier()));
+        assertThat(actual.getGlobalIndex(), equalTo(expected.getGlobalIndex()));
+        assertThat(actual.getTimestamp(), equalTo(expected.getTimestamp()));
+        assertThat(actual.getPayload().getType(), equalTo(expected.getPayload().getType()));
+        assertThat(serializer.deserialize(actual.getPayload()), equalTo(serializer.deserialize(expected.getPayload())));
+        assertThat(serializer.deserialize(actual.getMetaData()), equalTo(serializer.deserialize(expected.getMetaData())));
+    }
+
+    private static DomainEventMessage<?> event(long sequenceNumber) {
+        return new GenericDomainEventMessage<>("type", "aggregate", sequenceNumber, "payload-" + sequenceNumber,
+                MetaData.with("key", "value"), "event-" + sequenceNumber, TIME_STAMP);
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.AbstractCouchbaseStoreStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.ShardedTrackingToken;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryClusterFacade;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import org.axonframework.eventhandling.Segment;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.GapAwareTrackingToken;
+import org.axonframework.eventsourcing.eventstore.TrackedEventData;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import rx.Observable;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class GlobalEventLogTest {
+
+    private final Serializer serializer = new XStreamSerializer();
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+    }
+
+    @Test
+    public void eventsOfSeveralAggregatesAreTrackedInOrderOfAppendInBatches() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(4, 1));
+        for (int i = 0; i < 10; i++) {
+            strategy.appendEvents(bucket, events("aggregate-" + i % 3, i / 3, 1), serializer);
+        }
+
+        List<String> tracked = new ArrayList<>();
+        TrackingToken token = null;
+        List<? extends TrackedEventData<?>> batch;
+        while (!(batch = strategy.findTrackedEvents(bucket, token, 3)).isEmpty()) {
+            batch.forEach(event -> tracked.add(event.getEventIdentifier()));
+            token = batch.get(batch.size() - 1).trackingToken();
+        }
+
+        assertThat(tracked, equalTo(IntStream.range(0, 10).mapToObj(i -> "aggregate-" + i % 3 + "-" + i / 3)
+                .collect(Collectors.toList())));
+        assertThat(((GapAwareTrackingToken) token).getIndex(), equalTo(9L));
+    }
+
+    @Test
+    public void segmentOfSingleStripeIsReadWithGapAwareTokens() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(10, 1));
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+
+        List<? extends TrackedEventData<?>> events = strategy.findTrackedEvents(bucket, Segment.ROOT_SEGMENT, null, 10);
+
+        assertThat(events.size(), equalTo(3));
+        events.forEach(event -> assertThat(event.trackingToken(), instanceOf(GapAwareTrackingToken.class)));
+        assertThat(strategy.findTrackedEvents(bucket, Segment.ROOT_SEGMENT, events.get(2).trackingToken(), 10).size(), equalTo(0));
+    }
+
+    @Test
+    public void segmentsOfSingleStripeSplitTheEvents() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(10, 1));
+        for (int i = 0; i < 20; i++) {
+            strategy.appendEvents(bucket, events("aggregate-" + i, 0, 1), serializer);
+        }
+        Segment[] segments = Segment.ROOT_SEGMENT.split();
+
+        int read = 0;
+        for (Segment segment : segments) {
+            List<? extends TrackedEventData<?>> events = strategy.findTrackedEvents(bucket, segment, null, 100);
+            events.forEach(event -> assertThat(event.trackingToken(), instanceOf(GapAwareTrackingToken.class)));
+            read += events.size();
+        }
+        assertThat(read, equalTo(20));
+    }
+
+    @Test
+    public void segmentOfSeveralStripesIsReadWithShardedTokens() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(10, 2));
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+
+        List<? extends TrackedEventData<?>> events = strategy.findTrackedEvents(bucket, Segment.ROOT_SEGMENT, null, 10);
+
+        assertThat(events.size(), equalTo(3));
+        events.forEach(event -> assertThat(event.trackingToken(), instanceOf(ShardedTrackingToken.class)));
+    }
+
+    @Test
+    public void headTokenKeepsIndexesReservedWithoutEventAsGaps() {
+        GlobalEventLog log = new GlobalEventLog(10, 1);
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(log);
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+        log.allocate(bucket, Collections.singletonList("pending"), OperationMeasurement.none());
+        strategy.appendEvents(bucket, events("aggregate", 3, 2), serializer);
+
+        GapAwareTrackingToken token = (GapAwareTrackingToken) strategy.createHeadToken(bucket);
+
+        assertThat(token.getIndex(), equalTo(5L));
+        assertThat(token.getGaps(), equalTo(Collections.singleton(3L)));
+    }
+
+    @Test
+    public void tokenAtTimeBeforeTheEventsReadsThemAll() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(10, 1));
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+
+        TrackingToken token = strategy.createTokenAt(bucket, Instant.now().minus(1, ChronoUnit.HOURS));
+
+        assertThat(strategy.findTrackedEvents(bucket, Segment.ROOT_SEGMENT, token, 10).size(), equalTo(3));
+    }
+
+    @Test
+    public void tokenAtTimeAfterTheEventsIsTheHead() {
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(new GlobalEventLog(10, 1));
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+
+        TrackingToken token = strategy.createTokenAt(bucket, Instant.now().plus(1, ChronoUnit.MINUTES));
+
+        assertThat(token, equalTo(strategy.createHeadToken(bucket)));
+        assertThat(strategy.findTrackedEvents(bucket, Segment.ROOT_SEGMENT, token, 10).size(), equalTo(0));
+    }
+
+    @Test
+    public void reservedEventOfArchivedAggregateIsRepairedFromItsArchiveInTheStoreFormat() throws InterruptedException {
+        Bucket archiveBucket = new InMemoryCouchbaseTemplate().getEventBucket();
+        GlobalEventLog log = new GlobalEventLog(10, 1, GlobalEventLog.DEFAULT_MAX_GAP_OFFSET, GlobalEventLog.DEFAULT_GAP_TIMEOUT, 0);
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(log,
+                DocumentPerAggregateStorageStrategy.DEFAULT_SEGMENT_SIZE, AbstractCouchbaseStoreStrategy.DEFAULT_MAX_CONCURRENT_WRITES,
+                EventEntryFormat.COMPACT);
+        strategy.appendEvents(bucket, events("aggregate", 0, 3), serializer);
+        JsonDocument page = bucket.get("cbes:gl:0");
+        page.content().removeKey("events");
+        bucket.replace(page);
+        assertThat(strategy.archiveEvents(bucket, archiveBucket, "aggregate", 2), equalTo(true));
+        Thread.sleep(5);
+
+        List<? extends TrackedEventData<?>> events = strategy.findTrackedEvents(bucket, aggregateIdentifier -> archiveBucket, null, 10);
+
+        assertThat(events.size(), equalTo(3));
+        JsonArray published = bucket.get("cbes:gl:0").content().getArray("events");
+        assertThat(published.size(), equalTo(3));
+        assertThat(published.getObject(0).getString("a"), equalTo("aggregate"));
+        assertThat(published.getObject(0).containsKey("aggregateIdentifier"), equalTo(false));
+    }
+
+    @Test
+    public void eventStoredAfterItsIndexWasVoidedIsPublishedLate() {
+        List<Runnable> race = new ArrayList<>();
+        bucket = racingBucket("cbes:ev:slow", race);
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(
+                new GlobalEventLog(10, 1, GlobalEventLog.DEFAULT_MAX_GAP_OFFSET, GlobalEventLog.DEFAULT_GAP_TIMEOUT, 0));
+        strategy.appendEvents(bucket, events("before", 0, 1), serializer);
+        List<TrackedEventData<?>> tracked = new ArrayList<>();
+        race.add(() -> {
+            strategy.appendEvents(bucket, events("other", 0, 1), serializer);
+            sleep();
+            tracked.addAll(strategy.findTrackedEvents(bucket, null, 10));
+        });
+
+        strategy.appendEvents(bucket, events("slow", 0, 1), serializer);
+
+        assertThat(identifiers(tracked), equalTo(Arrays.asList("before-0", "other-0")));
+        GapAwareTrackingToken token = (GapAwareTrackingToken) tracked.get(1).trackingToken();
+        assertThat(token.getGaps().isEmpty(), equalTo(true));
+        List<? extends TrackedEventData<?>> late = strategy.findTrackedEvents(bucket, token, 10);
+        assertThat(identifiers(late), equalTo(Collections.singletonList("slow-0")));
+        assertThat(((GapAwareTrackingToken) late.get(0).trackingToken()).getIndex(), equalTo(3L));
+    }
+
+    @Test
+    public void indexIsNotVoidedWhenItsPageChangedSinceItWasRead() {
+        List<Runnable> race = new ArrayList<>();
+        InMemoryClusterFacade facade = racingFacade("cbes:ev:crashed", race);
+        bucket = new InMemoryCouchbaseTemplate(facade).getEventBucket();
+        GlobalEventLog log = new GlobalEventLog(10, 1, GlobalEventLog.DEFAULT_MAX_GAP_OFFSET, GlobalEventLog.DEFAULT_GAP_TIMEOUT, 0);
+        DocumentPerAggregateStorageStrategy strategy = new DocumentPerAggregateStorageStrategy(log);
+        long index = log.allocate(bucket, Collections.singletonList("crashed"), OperationMeasurement.none())[0];
+        log.reserve(bucket, Collections.singletonList(new EventEntry(events("crashed", 0, 1).get(0), serializer, index)),
+                OperationMeasurement.none());
+        sleep();
+        race.add(() -> strategy.appendEvents(bucket, events("concurrent", 0, 1), serializer));
+
+        assertThat(strategy.findTrackedEvents(bucket, null, 10).isEmpty(), equalTo(true));
+        assertThat(bucket.get("cbes:gl:0").content().containsKey("void"), equalTo(false));
+
+        assertThat(identifiers(strategy.findTrackedEvents(bucket, null, 10)), equalTo(Collections.singletonList("concurrent-0")));
+        assertThat(bucket.get("cbes:gl:0").content().getArray("void").toList(), equalTo(Collections.<Object>singletonList(0)));
+    }
+
+    private static Bucket racingBucket(String keyPrefix, List<Runnable> race) {
+        return new InMemoryCouchbaseTemplate(racingFacade(keyPrefix, race)).getEventBucket();
+    }
+
+    /**
+     * Returns a cluster running the next racing action before the first
+     * request for a document starting with the given prefix.
+     */
+    private static InMemoryClusterFacade racingFacade(String keyPrefix, List<Runnable> race) {
+        return new InMemoryClusterFacade() {
+            @Override
+            public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+                if (request instanceof BinaryRequest && ((BinaryRequest) request).key().startsWith(keyPrefix) && !race.isEmpty()) {
+                    race.remove(0).run();
+                }
+                return super.send(request);
+            }
+        };
+    }
+
+    private static List<String> identifiers(List<? extends TrackedEventData<?>> events) {
+        return events.stream().map(TrackedEventData::getEventIdentifier).collect(Collectors.toList());
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static List<DomainEventMessage<?>> events(String aggregateIdentifier, long first, int count) {
+        return LongStream.range(first, first + count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", aggregateIdentifier, sequenceNumber,
+                        "payload-" + sequenceNumber, MetaData.emptyInstance(), aggregateIdentifier + "-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+}
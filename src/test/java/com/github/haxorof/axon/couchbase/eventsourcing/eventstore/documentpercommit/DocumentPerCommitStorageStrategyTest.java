@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentpercommit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.GlobalEventLog;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.OperationMeasurement;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class DocumentPerCommitStorageStrategyTest {
+
+    private static final String AGGREGATE = "aggregate";
+
+    private final Serializer serializer = new XStreamSerializer();
+    private DocumentPerCommitStorageStrategy strategy;
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        strategy = new DocumentPerCommitStorageStrategy(new GlobalEventLog());
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+    }
+
+    @Test
+    public void manySingleEventCommitsAreReadInGrowingRounds() {
+        List<OperationMeasurement> reads = monitorReads();
+        for (int first = 0; first < 20; first++) {
+            strategy.appendEvents(bucket, events("commit" + first, first, 1), serializer);
+        }
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 20)));
+        assertThat(reads.get(0).getRequests(), equalTo(8 + 16));
+    }
+
+    @Test
+    public void smallAggregateIsReadInOneRound() {
+        List<OperationMeasurement> reads = monitorReads();
+        strategy.appendEvents(bucket, events("first", 0, 2), serializer);
+        strategy.appendEvents(bucket, events("second", 2, 1), serializer);
+
+        assertThat(sequenceNumbers(0), equalTo(range(0, 3)));
+        assertThat(reads.get(0).getRequests(), equalTo(8));
+        assertThat(bucket.get("cbes:cm:" + AGGREGATE), nullValue());
+    }
+
+    @Test
+    public void readStartingInsideCommitFindsTheCommitHoldingIt() {
+        strategy.appendEvents(bucket, events("first", 0, 5), serializer);
+        strategy.appendEvents(bucket, events("second", 5, 2), serializer);
+
+        assertThat(sequenceNumbers(2), equalTo(range(2, 7)));
+        assertThat(sequenceNumbers(6), equalTo(range(6, 7)));
+        assertThat(sequenceNumbers(7).isEmpty(), is(true));
+    }
+
+    @Test
+    public void readStartingInsideCommitReusesTheCommitsFoundAfterIt() {
+        List<OperationMeasurement> reads = monitorReads();
+        strategy.appendEvents(bucket, events("first", 0, 5), serializer);
+        strategy.appendEvents(bucket, events("second", 5, 2), serializer);
+
+        assertThat(sequenceNumbers(2), equalTo(range(2, 7)));
+        assertThat(reads.get(0).getRequests(), equalTo(8 + 2));
+    }
+
+    @Test
+    public void readPastTheEndIsBoundedByTheHead() {
+        List<OperationMeasurement> reads = monitorReads();
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+
+        assertThat(sequenceNumbers(1000).isEmpty(), is(true));
+        assertThat(sequenceNumbers(2), equalTo(range(2, 3)));
+        assertThat(reads.get(0).getRequests(), equalTo(8 + 1 + 8));
+        assertThat(reads.get(1).getRequests(), equalTo(8 + 1 + 1));
+    }
+
+    @Test
+    public void laggingHeadLeadsToTheCommitsAfterIt() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        JsonDocument head = bucket.get("cbes:ch:" + AGGREGATE);
+        strategy.appendEvents(bucket, events("second", 3, 10), serializer);
+        strategy.appendEvents(bucket, events("third", 13, 2), serializer);
+        bucket.upsert(head);
+
+        assertThat(sequenceNumbers(11), equalTo(range(11, 15)));
+        assertThat(sequenceNumbers(15).isEmpty(), is(true));
+    }
+
+    @Test
+    public void readsNothingForUnknownAggregate() {
+        assertThat(sequenceNumbers(0).isEmpty(), is(true));
+        assertThat(sequenceNumbers(40).isEmpty(), is(true));
+    }
+
+    @Test
+    public void conflictingCommitStoresNothing() {
+        strategy.appendEvents(bucket, events("first", 0, 3), serializer);
+        strategy.appendEvents(bucket, events("winner", 3, 2), serializer);
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events("loser", 3, 1), serializer));
+
+        List<? extends DomainEventData<?>> events = strategy.findDomainEvents(bucket, AGGREGATE, 0, 100);
+        assertThat(sequenceNumbers(events), equalTo(range(0, 5)));
+        assertThat(events.get(3).getEventIdentifier(), equalTo("winner-3"));
+    }
+
+    private List<OperationMeasurement> monitorReads() {
+        List<OperationMeasurement> reads = new CopyOnWriteArrayList<>();
+        strategy.setMonitor(measurement -> {
+            if (measurement.getOperation() == Operation.READ_EVENTS) {
+                reads.add(measurement);
+            }
+        });
+        return reads;
+    }
+
+    private List<DomainEventMessage<?>> events(String commit, long first, int count) {
+        return LongStream.range(first, first + count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", AGGREGATE, sequenceNumber,
+                        "payload-" + sequenceNumber, MetaData.emptyInstance(), commit + "-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> sequenceNumbers(long firstSequenceNumber) {
+        return sequenceNumbers(strategy.findDomainEvents(bucket, AGGREGATE, firstSequenceNumber, 100));
+    }
+
+    private static List<Long> sequenceNumbers(List<? extends DomainEventData<?>> events) {
+        return events.stream().map(DomainEventData::getSequenceNumber).collect(Collectors.toList());
+    }
+
+    private static List<Long> range(long first, long end) {
+        return LongStream.range(first, end).boxed().collect(Collectors.toList());
+    }
+
+}
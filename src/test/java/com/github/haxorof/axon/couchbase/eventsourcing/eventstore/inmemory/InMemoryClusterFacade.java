@@ -0,0 +1,866 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CoreContext;
+import com.couchbase.client.core.endpoint.ResponseStatusConverter;
+import com.couchbase.client.core.endpoint.kv.KeyValueStatus;
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import com.couchbase.client.core.message.kv.BinaryStoreRequest;
+import com.couchbase.client.core.message.kv.CounterRequest;
+import com.couchbase.client.core.message.kv.CounterResponse;
+import com.couchbase.client.core.message.kv.GetRequest;
+import com.couchbase.client.core.message.kv.GetResponse;
+import com.couchbase.client.core.message.kv.InsertRequest;
+import com.couchbase.client.core.message.kv.InsertResponse;
+import com.couchbase.client.core.message.kv.ObserveRequest;
+import com.couchbase.client.core.message.kv.ObserveResponse;
+import com.couchbase.client.core.message.kv.RemoveRequest;
+import com.couchbase.client.core.message.kv.RemoveResponse;
+import com.couchbase.client.core.message.kv.ReplaceRequest;
+import com.couchbase.client.core.message.kv.ReplaceResponse;
+import com.couchbase.client.core.message.kv.ReplicaGetRequest;
+import com.couchbase.client.core.message.kv.UpsertRequest;
+import com.couchbase.client.core.message.kv.UpsertResponse;
+import com.couchbase.client.core.message.kv.subdoc.BinarySubdocMultiLookupRequest;
+import com.couchbase.client.core.message.kv.subdoc.BinarySubdocMultiMutationRequest;
+import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import com.couchbase.client.core.message.kv.subdoc.multi.MultiLookupResponse;
+import com.couchbase.client.core.message.kv.subdoc.multi.MultiMutationResponse;
+import com.couchbase.client.core.message.kv.subdoc.multi.MultiResult;
+import com.couchbase.client.core.message.kv.subdoc.multi.Mutation;
+import com.couchbase.client.core.message.kv.subdoc.simple.AbstractSubdocMutationRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.AbstractSubdocRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SimpleSubdocResponse;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubArrayRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubCounterRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubDeleteRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubDictAddRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubDictUpsertRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubExistRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubGetCountRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubGetRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.SubReplaceRequest;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.DocumentMutation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.feed.MutationFeed;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.axonframework.common.Assert;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * {@link ClusterFacade} which answers the key/value, counter and
+ * sub-document requests of the Couchbase SDK from memory.
+ * <p>
+ * Requests are decoded from the same wire representation the SDK sends to a
+ * server, so buckets opened on top of this facade behave like real ones for
+ * the operations used by the storage strategies. Every operation on a single
+ * document is atomic.
+ * <p>
+ * The facade is also the {@link MutationFeed} of its bucket, delivering the
+ * latest state of a document on the thread which changed it.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class InMemoryClusterFacade implements ClusterFacade, MutationFeed {
+
+    /**
+     * Largest document accepted by a Couchbase server, 20MB.
+     */
+    public static final int DEFAULT_MAX_DOCUMENT_SIZE = 20 * 1024 * 1024;
+
+    private static final byte CREATE_PATH_FLAG = 0x01;
+    private static final byte UPSERT_DOCUMENT_FLAG = 0x01;
+    private static final byte INSERT_DOCUMENT_FLAG = 0x02;
+
+    private final Map<String, StoredDocument> documents = new ConcurrentHashMap<>();
+    private final AtomicLong casSequence = new AtomicLong();
+    private final Subject<DocumentMutation, DocumentMutation> mutations = PublishSubject.<DocumentMutation>create().toSerialized();
+    private final int maxDocumentSize;
+
+    public InMemoryClusterFacade() {
+        this(DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+
+    public InMemoryClusterFacade(int maxDocumentSize) {
+        Assert.isTrue(maxDocumentSize > 0, () -> "Maximum document size must be positive");
+        this.maxDocumentSize = maxDocumentSize;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+        Subject<CouchbaseResponse, CouchbaseResponse> observable = request.observable();
+        try {
+            observable.onNext(handle(request));
+            observable.onCompleted();
+        } catch (RuntimeException e) {
+            observable.onError(e);
+        }
+        return (Observable<R>) observable;
+    }
+
+    @Override
+    public Observable<DocumentMutation> mutations() {
+        return mutations.asObservable();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public long id() {
+        return 0;
+    }
+
+    @Override
+    public CoreContext ctx() {
+        return null;
+    }
+
+    /**
+     * Returns the number of documents currently stored.
+     *
+     * @return the document count
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * Removes all documents.
+     */
+    public void clear() {
+        documents.clear();
+    }
+
+    /**
+     * Gives a document a new CAS value without changing its content, as a
+     * concurrent write of the same document would.
+     *
+     * @param key key of the document
+     * @return {@code true} if the document exists
+     */
+    protected boolean touch(String key) {
+        boolean exists = documents.computeIfPresent(key, (id, existing)
+                -> new StoredDocument(existing.content, existing.flags, nextCas())) != null;
+        published(key);
+        return exists;
+    }
+
+    protected CouchbaseResponse handle(CouchbaseRequest request) {
+        if (request instanceof GetRequest || request instanceof ReplicaGetRequest) {
+            return get((BinaryRequest) request);
+        } else if (request instanceof InsertRequest || request instanceof UpsertRequest
+                || request instanceof ReplaceRequest) {
+            return store((BinaryStoreRequest) request);
+        } else if (request instanceof RemoveRequest) {
+            return remove((RemoveRequest) request);
+        } else if (request instanceof CounterRequest) {
+            return counter((CounterRequest) request);
+        } else if (request instanceof ObserveRequest) {
+            return observe((ObserveRequest) request);
+        } else if (request instanceof BinarySubdocMultiLookupRequest) {
+            return multiLookup((BinarySubdocMultiLookupRequest) request);
+        } else if (request instanceof BinarySubdocMultiMutationRequest) {
+            return multiMutation((BinarySubdocMultiMutationRequest) request);
+        } else if (request instanceof AbstractSubdocMutationRequest) {
+            return singleMutation((AbstractSubdocMutationRequest) request);
+        } else if (request instanceof AbstractSubdocRequest) {
+            return singleLookup((AbstractSubdocRequest) request);
+        }
+        throw new UnsupportedOperationException("Request " + request.getClass().getSimpleName()
+                + " is not supported in memory");
+    }
+
+    private GetResponse get(BinaryRequest request) {
+        StoredDocument document = documents.get(request.key());
+        if (document == null) {
+            return new GetResponse(ResponseStatus.NOT_EXISTS, KeyValueStatus.ERR_NOT_FOUND.code(), 0, 0,
+                    request.bucket(), Unpooled.EMPTY_BUFFER, request);
+        }
+        return new GetResponse(ResponseStatus.SUCCESS, KeyValueStatus.SUCCESS.code(), document.cas,
+                document.flags, request.bucket(), Unpooled.wrappedBuffer(document.content), request);
+    }
+
+    private CouchbaseResponse store(BinaryStoreRequest request) {
+        byte[] content = readAndRelease(request.content());
+        long[] cas = new long[1];
+        ResponseStatus[] status = {ResponseStatus.SUCCESS};
+        documents.compute(request.key(), (key, existing) -> {
+            if (content.length > maxDocumentSize) {
+                status[0] = ResponseStatus.TOO_BIG;
+                return existing;
+            }
+            if (request instanceof InsertRequest && existing != null) {
+                status[0] = ResponseStatus.EXISTS;
+                return existing;
+            }
+            if (request instanceof ReplaceRequest) {
+                long expectedCas = ((ReplaceRequest) request).cas();
+                if (existing == null) {
+                    status[0] = ResponseStatus.NOT_EXISTS;
+                    return null;
+                } else if (expectedCas != 0 && expectedCas != existing.cas) {
+                    status[0] = ResponseStatus.EXISTS;
+                    return existing;
+                }
+            }
+            StoredDocument stored = new StoredDocument(content, request.flags(), nextCas());
+            cas[0] = stored.cas;
+            return stored;
+        });
+        if (status[0] == ResponseStatus.SUCCESS) {
+            published(request.key());
+        }
+        short code = statusCode(status[0]);
+        if (request instanceof InsertRequest) {
+            return new InsertResponse(status[0], code, cas[0], request.bucket(), null, null, request);
+        } else if (request instanceof UpsertRequest) {
+            return new UpsertResponse(status[0], code, cas[0], request.bucket(), null, null, request);
+        }
+        return new ReplaceResponse(status[0], code, cas[0], request.bucket(), null, null, request);
+    }
+
+    private RemoveResponse remove(RemoveRequest request) {
+        ResponseStatus[] status = {ResponseStatus.SUCCESS};
+        documents.compute(request.key(), (key, existing) -> {
+            if (existing == null) {
+                status[0] = ResponseStatus.NOT_EXISTS;
+                return null;
+            } else if (request.cas() != 0 && request.cas() != existing.cas) {
+                status[0] = ResponseStatus.EXISTS;
+                return existing;
+            }
+            return null;
+        });
+        if (status[0] == ResponseStatus.SUCCESS) {
+            published(request.key());
+        }
+        return new RemoveResponse(status[0], statusCode(status[0]), 0, request.bucket(), null, null, request);
+    }
+
+    private CounterResponse counter(CounterRequest request) {
+        ResponseStatus[] status = {ResponseStatus.SUCCESS};
+        long[] value = new long[1];
+        long[] cas = new long[1];
+        documents.compute(request.key(), (key, existing) -> {
+            long current;
+            if (existing == null) {
+                if (request.expiry() == -1) {
+                    status[0] = ResponseStatus.NOT_EXISTS;
+                    return null;
+                }
+                current = request.initial();
+            } else {
+                try {
+                    current = Long.parseLong(new String(existing.content, StandardCharsets.UTF_8)) + request.delta();
+                } catch (NumberFormatException e) {
+                    status[0] = ResponseStatus.INVALID_ARGUMENTS;
+                    return existing;
+                }
+            }
+            StoredDocument stored = new StoredDocument(Long.toString(current).getBytes(StandardCharsets.UTF_8),
+                    0, nextCas());
+            value[0] = current;
+            cas[0] = stored.cas;
+            return stored;
+        });
+        if (status[0] == ResponseStatus.SUCCESS) {
+            published(request.key());
+        }
+        return new CounterResponse(status[0], statusCode(status[0]), request.bucket(), value[0], cas[0], null, request);
+    }
+
+    private ObserveResponse observe(ObserveRequest request) {
+        StoredDocument document = documents.get(request.key());
+        ObserveResponse.ObserveStatus observeStatus = document == null
+                ? ObserveResponse.ObserveStatus.NOT_FOUND_PERSISTED
+                : ObserveResponse.ObserveStatus.FOUND_PERSISTED;
+        return new ObserveResponse(ResponseStatus.SUCCESS, KeyValueStatus.SUCCESS.code(), observeStatus.value(),
+                true, document == null ? 0 : document.cas, request.bucket(), request);
+    }
+
+    private SimpleSubdocResponse singleLookup(AbstractSubdocRequest request) {
+        Lookup lookup;
+        if (request instanceof SubGetRequest) {
+            lookup = Lookup.GET;
+        } else if (request instanceof SubExistRequest) {
+            lookup = Lookup.EXIST;
+        } else if (request instanceof SubGetCountRequest) {
+            lookup = Lookup.GET_COUNT;
+        } else {
+            throw new UnsupportedOperationException("Request " + request.getClass().getSimpleName()
+                    + " is not supported in memory");
+        }
+        StoredDocument document = documents.get(request.key());
+        if (document == null) {
+            return new SimpleSubdocResponse(ResponseStatus.NOT_EXISTS, KeyValueStatus.ERR_NOT_FOUND.code(),
+                    request.bucket(), Unpooled.EMPTY_BUFFER, request, 0, null);
+        }
+        try {
+            byte[] value = lookup(document.json(), lookup, request.path());
+            return new SimpleSubdocResponse(ResponseStatus.SUCCESS, KeyValueStatus.SUCCESS.code(), request.bucket(),
+                    value == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(value), request, document.cas, null);
+        } catch (SubdocFailure e) {
+            return new SimpleSubdocResponse(ResponseStatusConverter.fromBinary(e.status.code()), e.status.code(),
+                    request.bucket(), Unpooled.EMPTY_BUFFER, request, document.cas, null);
+        }
+    }
+
+    private MultiLookupResponse multiLookup(BinarySubdocMultiLookupRequest request) {
+        StoredDocument document = documents.get(request.key());
+        if (document == null) {
+            return new MultiLookupResponse(ResponseStatus.NOT_EXISTS, KeyValueStatus.ERR_NOT_FOUND.code(),
+                    request.bucket(), Collections.emptyList(), request, 0);
+        }
+        Map<String, Object> json = document.json();
+        List<MultiResult<Lookup>> results = new ArrayList<>();
+        boolean failure = false;
+        ByteBuf encoded = request.content();
+        int index = encoded.readerIndex();
+        while (index < encoded.writerIndex()) {
+            byte opCode = encoded.getByte(index);
+            int pathLength = encoded.getUnsignedShort(index + 2);
+            String path = encoded.toString(index + 4, pathLength, StandardCharsets.UTF_8);
+            index += 4 + pathLength;
+            Lookup lookup = lookupFor(opCode);
+            KeyValueStatus status = KeyValueStatus.SUCCESS;
+            byte[] value = null;
+            try {
+                value = lookup(json, lookup, path);
+            } catch (SubdocFailure e) {
+                status = e.status;
+                failure = true;
+            }
+            results.add(MultiResult.create(status.code(), ResponseStatusConverter.fromBinary(status.code()), path,
+                    lookup, value == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(value)));
+        }
+        ResponseStatus status = failure ? ResponseStatus.SUBDOC_MULTI_PATH_FAILURE : ResponseStatus.SUCCESS;
+        return new MultiLookupResponse(status, statusCode(status), request.bucket(), results, request, document.cas);
+    }
+
+    private SimpleSubdocResponse singleMutation(AbstractSubdocMutationRequest request) {
+        Mutation mutation;
+        if (request instanceof SubDictUpsertRequest) {
+            mutation = Mutation.DICT_UPSERT;
+        } else if (request instanceof SubDictAddRequest) {
+            mutation = Mutation.DICT_ADD;
+        } else if (request instanceof SubReplaceRequest) {
+            mutation = Mutation.REPLACE;
+        } else if (request instanceof SubDeleteRequest) {
+            mutation = Mutation.DELETE;
+        } else if (request instanceof SubCounterRequest) {
+            mutation = Mutation.COUNTER;
+        } else if (request instanceof SubArrayRequest) {
+            mutation = mutationFor(((SubArrayRequest) request).arrayOperation().opCode());
+        } else {
+            throw new UnsupportedOperationException("Request " + request.getClass().getSimpleName()
+                    + " is not supported in memory");
+        }
+        byte[] fragment = readAndRelease(request.fragment());
+        List<MutationSpec> specs = Collections.singletonList(
+                new MutationSpec(mutation, request.path(), fragment, request.createIntermediaryPath()));
+        byte docFlags = (byte) ((request.upsertDocument() || request.createDocument() ? UPSERT_DOCUMENT_FLAG : 0)
+                | (request.insertDocument() ? INSERT_DOCUMENT_FLAG : 0));
+        MutationOutcome outcome = mutate(request.key(), request.cas(), docFlags, specs);
+        byte[] value = outcome.values.isEmpty() ? null : outcome.values.get(0);
+        KeyValueStatus status = outcome.failureIndex >= 0 ? outcome.failureStatus : outcome.status;
+        return new SimpleSubdocResponse(ResponseStatusConverter.fromBinary(status.code()), status.code(),
+                request.bucket(), value == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(value), request,
+                outcome.cas, null);
+    }
+
+    private MultiMutationResponse multiMutation(BinarySubdocMultiMutationRequest request) {
+        List<MutationSpec> specs = new ArrayList<>();
+        ByteBuf encoded = request.content();
+        int index = encoded.readerIndex();
+        while (index < encoded.writerIndex()) {
+            byte opCode = encoded.getByte(index);
+            byte flags = encoded.getByte(index + 1);
+            int pathLength = encoded.getUnsignedShort(index + 2);
+            int valueLength = encoded.getInt(index + 4);
+            String path = encoded.toString(index + 8, pathLength, StandardCharsets.UTF_8);
+            byte[] fragment = new byte[valueLength];
+            encoded.getBytes(index + 8 + pathLength, fragment);
+            index += 8 + pathLength + valueLength;
+            specs.add(new MutationSpec(mutationFor(opCode), path, fragment, (flags & CREATE_PATH_FLAG) != 0));
+        }
+        encoded.release();
+        MutationOutcome outcome = mutate(request.key(), request.cas(), request.docFlags(), specs);
+        if (outcome.status != KeyValueStatus.SUCCESS) {
+            return new MultiMutationResponse(ResponseStatusConverter.fromBinary(outcome.status.code()),
+                    outcome.status.code(), request.bucket(), request, outcome.cas, null);
+        } else if (outcome.failureIndex >= 0) {
+            return new MultiMutationResponse(ResponseStatus.SUBDOC_MULTI_PATH_FAILURE,
+                    KeyValueStatus.ERR_SUBDOC_MULTI_PATH_FAILURE.code(), request.bucket(), outcome.failureIndex,
+                    outcome.failureStatus.code(), request, 0, null);
+        }
+        List<MultiResult<Mutation>> results = new ArrayList<>();
+        for (int i = 0; i < specs.size(); i++) {
+            byte[] value = outcome.values.get(i);
+            results.add(MultiResult.create(KeyValueStatus.SUCCESS.code(), ResponseStatus.SUCCESS, specs.get(i).path,
+                    specs.get(i).mutation, value == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(value)));
+        }
+        return new MultiMutationResponse(request.bucket(), request, outcome.cas, null, results);
+    }
+
+    private MutationOutcome mutate(String key, long expectedCas, byte docFlags, List<MutationSpec> specs) {
+        MutationOutcome outcome = new MutationOutcome();
+        documents.compute(key, (id, existing) -> {
+            Map<String, Object> json;
+            int flags;
+            if (existing == null) {
+                if ((docFlags & (UPSERT_DOCUMENT_FLAG | INSERT_DOCUMENT_FLAG)) == 0 || expectedCas != 0) {
+                    outcome.status = KeyValueStatus.ERR_NOT_FOUND;
+                    return null;
+                }
+                json = new LinkedHashMap<>();
+                flags = TranscoderUtils.JSON_COMMON_FLAGS;
+            } else if ((docFlags & INSERT_DOCUMENT_FLAG) != 0
+                    || (expectedCas != 0 && expectedCas != existing.cas)) {
+                outcome.status = KeyValueStatus.ERR_EXISTS;
+                return existing;
+            } else {
+                json = existing.json();
+                flags = existing.flags;
+            }
+            for (int i = 0; i < specs.size(); i++) {
+                try {
+                    outcome.values.add(apply(json, specs.get(i)));
+                } catch (SubdocFailure e) {
+                    outcome.failureIndex = i;
+                    outcome.failureStatus = e.status;
+                    outcome.values.clear();
+                    return existing;
+                }
+            }
+            byte[] content = JsonObject.from(json).toString().getBytes(StandardCharsets.UTF_8);
+            if (content.length > maxDocumentSize) {
+                outcome.status = KeyValueStatus.ERR_TOO_BIG;
+                outcome.values.clear();
+                return existing;
+            }
+            StoredDocument stored = new StoredDocument(content, flags, nextCas());
+            outcome.cas = stored.cas;
+            return stored;
+        });
+        if (outcome.cas != 0) {
+            published(key);
+        }
+        return outcome;
+    }
+
+    private byte[] lookup(Map<String, Object> json, Lookup lookup, String path) {
+        if (lookup == Lookup.GETDOC) {
+            return encode(json);
+        }
+        Object value = resolve(json, parsePath(path));
+        switch (lookup) {
+            case GET:
+                return encode(value);
+            case GET_COUNT:
+                if (value instanceof Map) {
+                    return encode(((Map<?, ?>) value).size());
+                } else if (value instanceof List) {
+                    return encode(((List<?>) value).size());
+                }
+                throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] apply(Map<String, Object> json, MutationSpec spec) {
+        if (spec.mutation == Mutation.UPSERTDOC) {
+            json.clear();
+            json.putAll((Map<String, Object>) decode(spec.fragment).get(0));
+            return null;
+        }
+        List<Object> path = parsePath(spec.path);
+        Object last = path.get(path.size() - 1);
+        Object parent = resolveParent(json, path, spec.createPath, spec.mutation);
+        switch (spec.mutation) {
+            case DICT_ADD:
+            case DICT_UPSERT: {
+                Map<String, Object> dictionary = asDictionary(parent, last);
+                if (spec.mutation == Mutation.DICT_ADD && dictionary.containsKey(last)) {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_EXISTS);
+                }
+                dictionary.put((String) last, single(spec.fragment));
+                return null;
+            }
+            case REPLACE: {
+                if (parent instanceof Map && ((Map<String, Object>) parent).containsKey(last)) {
+                    ((Map<String, Object>) parent).put((String) last, single(spec.fragment));
+                } else if (parent instanceof List && last instanceof Integer) {
+                    List<Object> array = (List<Object>) parent;
+                    array.set(arrayIndex(array, (Integer) last, false), single(spec.fragment));
+                } else {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_NOT_FOUND);
+                }
+                return null;
+            }
+            case DELETE: {
+                if (parent instanceof Map && ((Map<String, Object>) parent).containsKey(last)) {
+                    ((Map<String, Object>) parent).remove(last);
+                } else if (parent instanceof List && last instanceof Integer) {
+                    List<Object> array = (List<Object>) parent;
+                    array.remove(arrayIndex(array, (Integer) last, false));
+                } else {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_NOT_FOUND);
+                }
+                return null;
+            }
+            case COUNTER: {
+                Map<String, Object> dictionary = asDictionary(parent, last);
+                Object current = dictionary.getOrDefault(last, 0L);
+                if (!(current instanceof Number)) {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+                }
+                long value = ((Number) current).longValue() + ((Number) single(spec.fragment)).longValue();
+                dictionary.put((String) last, value);
+                return encode(value);
+            }
+            case ARRAY_PUSH_LAST:
+            case ARRAY_PUSH_FIRST:
+            case ARRAY_ADD_UNIQUE: {
+                List<Object> array = asArray(parent, last, spec.createPath);
+                List<Object> values = decode(spec.fragment);
+                if (spec.mutation == Mutation.ARRAY_ADD_UNIQUE) {
+                    if (array.contains(values.get(0))) {
+                        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_EXISTS);
+                    }
+                    array.add(values.get(0));
+                } else if (spec.mutation == Mutation.ARRAY_PUSH_LAST) {
+                    array.addAll(values);
+                } else {
+                    array.addAll(0, values);
+                }
+                return null;
+            }
+            case ARRAY_INSERT: {
+                if (!(parent instanceof List) || !(last instanceof Integer)) {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+                }
+                List<Object> array = (List<Object>) parent;
+                array.addAll(arrayIndex(array, (Integer) last, true), decode(spec.fragment));
+                return null;
+            }
+            default:
+                throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_INVALID_COMBO);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asDictionary(Object parent, Object last) {
+        if (!(parent instanceof Map) || !(last instanceof String)) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+        }
+        return (Map<String, Object>) parent;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asArray(Object parent, Object last, boolean createPath) {
+        Object array;
+        if (parent instanceof Map && last instanceof String) {
+            Map<String, Object> dictionary = (Map<String, Object>) parent;
+            array = dictionary.get(last);
+            if (array == null && !dictionary.containsKey(last)) {
+                if (!createPath) {
+                    throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_NOT_FOUND);
+                }
+                array = new ArrayList<>();
+                dictionary.put((String) last, array);
+            }
+        } else if (parent instanceof List && last instanceof Integer) {
+            List<Object> list = (List<Object>) parent;
+            array = list.get(arrayIndex(list, (Integer) last, false));
+        } else {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+        }
+        if (!(array instanceof List)) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+        }
+        return (List<Object>) array;
+    }
+
+    private static int arrayIndex(List<?> array, int index, boolean insert) {
+        int resolved = index < 0 ? array.size() + index : index;
+        if (resolved < 0 || resolved > array.size() || (!insert && resolved == array.size())) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_NOT_FOUND);
+        }
+        return resolved;
+    }
+
+    private static Object resolve(Map<String, Object> json, List<Object> path) {
+        Object current = json;
+        for (Object component : path) {
+            current = child(current, component);
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object resolveParent(Map<String, Object> json, List<Object> path, boolean createPath,
+            Mutation mutation) {
+        Object current = json;
+        for (Object component : path.subList(0, path.size() - 1)) {
+            if (createPath && current instanceof Map && component instanceof String
+                    && !((Map<String, Object>) current).containsKey(component)) {
+                Map<String, Object> created = new LinkedHashMap<>();
+                ((Map<String, Object>) current).put((String) component, created);
+                current = created;
+            } else {
+                current = child(current, component);
+            }
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object child(Object current, Object component) {
+        if (current instanceof Map && component instanceof String) {
+            Map<String, Object> dictionary = (Map<String, Object>) current;
+            if (!dictionary.containsKey(component)) {
+                throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_NOT_FOUND);
+            }
+            return dictionary.get(component);
+        } else if (current instanceof List && component instanceof Integer) {
+            List<Object> array = (List<Object>) current;
+            return array.get(arrayIndex(array, (Integer) component, false));
+        }
+        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_MISMATCH);
+    }
+
+    private static List<Object> parsePath(String path) {
+        List<Object> components = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (quoted) {
+                if (c == '`' && i + 1 < path.length() && path.charAt(i + 1) == '`') {
+                    name.append('`');
+                    i++;
+                } else if (c == '`') {
+                    quoted = false;
+                } else {
+                    name.append(c);
+                }
+            } else if (c == '`') {
+                quoted = true;
+            } else if (c == '.' || c == '[') {
+                if (name.length() > 0) {
+                    components.add(name.toString());
+                    name.setLength(0);
+                }
+                if (c == '[') {
+                    int end = path.indexOf(']', i);
+                    if (end < 0) {
+                        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_INVALID);
+                    }
+                    try {
+                        components.add(Integer.parseInt(path.substring(i + 1, end)));
+                    } catch (NumberFormatException e) {
+                        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_INVALID);
+                    }
+                    i = end;
+                }
+            } else {
+                name.append(c);
+            }
+        }
+        if (name.length() > 0) {
+            components.add(name.toString());
+        }
+        if (components.isEmpty()) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_PATH_INVALID);
+        }
+        return components;
+    }
+
+    private static Lookup lookupFor(byte opCode) {
+        for (Lookup lookup : Lookup.values()) {
+            if (lookup.opCode() == opCode) {
+                return lookup;
+            }
+        }
+        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_INVALID_COMBO);
+    }
+
+    private static Mutation mutationFor(byte opCode) {
+        for (Mutation mutation : Mutation.values()) {
+            if (mutation.opCode() == opCode) {
+                return mutation;
+            }
+        }
+        throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_INVALID_COMBO);
+    }
+
+    private static Object single(byte[] fragment) {
+        List<Object> values = decode(fragment);
+        if (values.size() != 1) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_VALUE_CANTINSERT);
+        }
+        return values.get(0);
+    }
+
+    private static List<Object> decode(byte[] fragment) {
+        try {
+            return JsonArray.fromJson("[" + new String(fragment, StandardCharsets.UTF_8) + "]").toList();
+        } catch (RuntimeException e) {
+            throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_VALUE_CANTINSERT);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] encode(Object value) {
+        String json;
+        if (value instanceof Map) {
+            json = JsonObject.from((Map<String, Object>) value).toString();
+        } else if (value instanceof List) {
+            json = JsonArray.from((List<Object>) value).toString();
+        } else if (value instanceof String) {
+            json = JsonArray.from(value).toString();
+            json = json.substring(1, json.length() - 1);
+        } else {
+            json = String.valueOf(value);
+        }
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAndRelease(ByteBuf buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        buffer.release();
+        return bytes;
+    }
+
+    private static short statusCode(ResponseStatus status) {
+        switch (status) {
+            case SUCCESS:
+                return KeyValueStatus.SUCCESS.code();
+            case NOT_EXISTS:
+                return KeyValueStatus.ERR_NOT_FOUND.code();
+            case EXISTS:
+                return KeyValueStatus.ERR_EXISTS.code();
+            case TOO_BIG:
+                return KeyValueStatus.ERR_TOO_BIG.code();
+            case SUBDOC_MULTI_PATH_FAILURE:
+                return KeyValueStatus.ERR_SUBDOC_MULTI_PATH_FAILURE.code();
+            default:
+                return KeyValueStatus.ERR_INVALID.code();
+        }
+    }
+
+    /**
+     * Delivers the current state of a changed document to the subscribers of
+     * the feed. Concurrent changes may deliver the same state twice.
+     */
+    private void published(String key) {
+        if (mutations.hasObservers()) {
+            StoredDocument document = documents.get(key);
+            mutations.onNext(document == null
+                    ? new DocumentMutation(key, 0, null) : new DocumentMutation(key, document.cas, document.content));
+        }
+    }
+
+    private long nextCas() {
+        return casSequence.incrementAndGet();
+    }
+
+    private static final class StoredDocument {
+
+        private final byte[] content;
+        private final int flags;
+        private final long cas;
+
+        private StoredDocument(byte[] content, int flags, long cas) {
+            this.content = content;
+            this.flags = flags;
+            this.cas = cas;
+        }
+
+        private Map<String, Object> json() {
+            try {
+                return JsonObject.fromJson(new String(content, StandardCharsets.UTF_8)).toMap();
+            } catch (RuntimeException e) {
+                throw new SubdocFailure(KeyValueStatus.ERR_SUBDOC_DOC_NOT_JSON);
+            }
+        }
+    }
+
+    private static final class MutationSpec {
+
+        private final Mutation mutation;
+        private final String path;
+        private final byte[] fragment;
+        private final boolean createPath;
+
+        private MutationSpec(Mutation mutation, String path, byte[] fragment, boolean createPath) {
+            this.mutation = mutation;
+            this.path = path;
+            this.fragment = fragment;
+            this.createPath = createPath;
+        }
+    }
+
+    private static final class MutationOutcome {
+
+        private KeyValueStatus status = KeyValueStatus.SUCCESS;
+        private int failureIndex = -1;
+        private KeyValueStatus failureStatus;
+        private final List<byte[]> values = new ArrayList<>();
+        private long cas;
+    }
+
+    private static final class SubdocFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final KeyValueStatus status;
+
+        private SubdocFailure(KeyValueStatus status) {
+            super(status.description(), null, false, false);
+            this.status = status;
+        }
+    }
+}
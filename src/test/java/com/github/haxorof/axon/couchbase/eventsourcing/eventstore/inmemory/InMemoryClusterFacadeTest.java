@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class InMemoryClusterFacadeTest {
+
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+    }
+
+    @Test
+    public void insertedDocumentIsReadBack() {
+        bucket.insert(JsonDocument.create("key", JsonObject.create().put("value", 1)));
+
+        assertThat(bucket.get("key").content().getInt("value"), equalTo(1));
+        assertThat(bucket.get("missing"), nullValue());
+        assertThrows(DocumentAlreadyExistsException.class,
+                () -> bucket.insert(JsonDocument.create("key", JsonObject.create().put("value", 2))));
+    }
+
+    @Test
+    public void replaceWithStaleCasFails() {
+        JsonDocument inserted = bucket.insert(JsonDocument.create("key", JsonObject.create().put("value", 1)));
+        bucket.replace(JsonDocument.create("key", JsonObject.create().put("value", 2), inserted.cas()));
+
+        assertThrows(CASMismatchException.class,
+                () -> bucket.replace(JsonDocument.create("key", JsonObject.create().put("value", 3), inserted.cas())));
+        assertThat(bucket.get("key").content().getInt("value"), equalTo(2));
+    }
+
+    @Test
+    public void counterStartsAtItsInitialValue() {
+        assertThat(bucket.counter("counter", 1, 5).content(), equalTo(5L));
+        assertThat(bucket.counter("counter", 1, 5).content(), equalTo(6L));
+    }
+
+    @Test
+    public void subDocumentMutationsAreAppliedTogether() {
+        JsonDocument inserted = bucket.insert(JsonDocument.create("key",
+                JsonObject.create().put("events", JsonArray.from("a")).put("last", "a")));
+
+        bucket.mutateIn("key").arrayAppend("events", "b").replace("last", "b").withCas(inserted.cas()).execute();
+
+        assertThrows(CASMismatchException.class,
+                () -> bucket.mutateIn("key").arrayAppend("events", "c").withCas(inserted.cas()).execute());
+        JsonObject content = bucket.get("key").content();
+        assertThat(content.getArray("events"), equalTo(JsonArray.from("a", "b")));
+        assertThat(bucket.lookupIn("key").get("last").execute().content("last"), equalTo((Object) "b"));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.CouchbaseBucket;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.CouchbaseTemplate;
+import java.util.Collections;
+
+/**
+ * Template whose bucket is kept in memory by an {@link InMemoryClusterFacade},
+ * for benchmarks and tests which should run without a Couchbase cluster.
+ * Events and snapshots are stored in the same bucket.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class InMemoryCouchbaseTemplate implements CouchbaseTemplate {
+
+    private static final String BUCKET_NAME = "events";
+
+    /**
+     * Environment shared by all in-memory buckets, so that creating a bucket
+     * does not start any threads of its own.
+     */
+    private static CouchbaseEnvironment environment;
+
+    private final InMemoryClusterFacade core;
+    private final Bucket bucket;
+
+    public InMemoryCouchbaseTemplate() {
+        this(new InMemoryClusterFacade());
+    }
+
+    public InMemoryCouchbaseTemplate(InMemoryClusterFacade core) {
+        this.core = core;
+        this.bucket = new CouchbaseBucket(environment(), core, BUCKET_NAME, null, null, Collections.emptyList());
+    }
+
+    static synchronized CouchbaseEnvironment environment() {
+        if (environment == null) {
+            environment = DefaultCouchbaseEnvironment.builder()
+                    .operationTracingEnabled(false)
+                    .orphanResponseReportingEnabled(false)
+                    .ioPoolSize(1)
+                    .computationPoolSize(2)
+                    .build();
+        }
+        return environment;
+    }
+
+    /**
+     * Returns the facade holding the documents of the bucket.
+     *
+     * @return the in-memory facade
+     */
+    public InMemoryClusterFacade getCore() {
+        return core;
+    }
+
+    @Override
+    public Bucket getEventBucket() {
+        return bucket;
+    }
+
+    @Override
+    public Bucket getSnapshotBucket() {
+        return bucket;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.axonframework.common.Assert;
+
+/**
+ * Distribution from which {@link SimulatedClusterFacade} draws the latency of
+ * each operation.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+    /**
+     * Quantile of the standard normal distribution at 0.99.
+     */
+    double NORMAL_P99 = 2.3263;
+
+    /**
+     * Draws the latency of one operation.
+     *
+     * @param random source of randomness
+     * @return the latency in nanoseconds
+     */
+    long sample(Random random);
+
+    /**
+     * Returns a distribution without any latency.
+     *
+     * @return the distribution
+     */
+    static LatencyDistribution none() {
+        return random -> 0;
+    }
+
+    /**
+     * Returns a distribution which always yields the same latency.
+     *
+     * @param latency the latency
+     * @param unit unit of the latency
+     * @return the distribution
+     */
+    static LatencyDistribution constant(long latency, TimeUnit unit) {
+        Assert.isTrue(latency >= 0, () -> "Latency must not be negative");
+        long nanos = unit.toNanos(latency);
+        return random -> nanos;
+    }
+
+    /**
+     * Returns a distribution yielding latencies evenly spread over a range.
+     *
+     * @param min smallest latency
+     * @param max largest latency
+     * @param unit unit of the latencies
+     * @return the distribution
+     */
+    static LatencyDistribution uniform(long min, long max, TimeUnit unit) {
+        Assert.isTrue(min >= 0 && min <= max, () -> "Latency range must not be negative or empty");
+        long minNanos = unit.toNanos(min);
+        long rangeNanos = unit.toNanos(max) - minNanos;
+        return random -> minNanos + (long) (random.nextDouble() * rangeNanos);
+    }
+
+    /**
+     * Returns a log-normal distribution, which models the long tail of
+     * network round trips well, given its median and 99th percentile.
+     *
+     * @param median the median latency
+     * @param p99 the 99th percentile of the latency
+     * @param unit unit of the latencies
+     * @return the distribution
+     */
+    static LatencyDistribution logNormal(long median, long p99, TimeUnit unit) {
+        Assert.isTrue(median > 0 && median <= p99, () -> "Median must be positive and not above the 99th percentile");
+        double mu = Math.log(unit.toNanos(median));
+        double sigma = (Math.log(unit.toNanos(p99)) - mu) / NORMAL_P99;
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+}
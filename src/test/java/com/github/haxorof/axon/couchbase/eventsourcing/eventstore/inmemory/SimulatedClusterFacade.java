@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import com.couchbase.client.core.message.kv.BinaryStoreRequest;
+import com.couchbase.client.core.message.kv.CounterRequest;
+import com.couchbase.client.core.message.kv.RemoveRequest;
+import com.couchbase.client.core.message.kv.ReplaceRequest;
+import com.couchbase.client.core.message.kv.subdoc.BinarySubdocMultiLookupRequest;
+import com.couchbase.client.core.message.kv.subdoc.BinarySubdocMultiMutationRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.AbstractSubdocMutationRequest;
+import com.couchbase.client.core.message.kv.subdoc.simple.AbstractSubdocRequest;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.Assert;
+import rx.Observable;
+import rx.subjects.Subject;
+
+/**
+ * In-memory facade which behaves like a remote cluster under load, for sizing
+ * and soak testing the event store without a Couchbase server. Responses are
+ * delayed by a latency drawn per operation type, a fraction of the requests
+ * time out, and CAS protected writes can be made to lose against a simulated
+ * concurrent writer. The document size limit of the server is enforced.
+ * <p>
+ * A request which times out fails with a {@link TimeoutException} after the
+ * timeout has passed. As with a real cluster, the caller cannot tell whether
+ * it was applied: it is applied in about half of the cases.
+ * <p>
+ * Buckets are opened on the facade through
+ * {@link InMemoryCouchbaseTemplate#InMemoryCouchbaseTemplate(InMemoryClusterFacade)}.
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+@Slf4j
+public class SimulatedClusterFacade extends InMemoryClusterFacade {
+
+    /**
+     * Default number of threads delivering the delayed responses.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Default time after which a request times out, the key/value timeout of
+     * the SDK.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2500;
+
+    /**
+     * Types of operation which may be given different latencies.
+     */
+    public enum OperationType {
+        GET, STORE, REMOVE, COUNTER, LOOKUP, MUTATE;
+
+        static OperationType of(CouchbaseRequest request) {
+            if (request instanceof BinaryStoreRequest) {
+                return STORE;
+            } else if (request instanceof RemoveRequest) {
+                return REMOVE;
+            } else if (request instanceof CounterRequest) {
+                return COUNTER;
+            } else if (request instanceof BinarySubdocMultiMutationRequest
+                    || request instanceof AbstractSubdocMutationRequest) {
+                return MUTATE;
+            } else if (request instanceof BinarySubdocMultiLookupRequest || request instanceof AbstractSubdocRequest) {
+                return LOOKUP;
+            }
+            return GET;
+        }
+    }
+
+    private final Map<OperationType, LatencyDistribution> latencies = Collections.synchronizedMap(new EnumMap<>(OperationType.class));
+    private final ScheduledExecutorService scheduler;
+    private volatile double timeoutProbability;
+    private volatile long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    private volatile double casConflictProbability;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong casConflictCount = new AtomicLong();
+
+    public SimulatedClusterFacade() {
+        this(DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+
+    public SimulatedClusterFacade(int maxDocumentSize) {
+        this(maxDocumentSize, DEFAULT_THREADS);
+    }
+
+    public SimulatedClusterFacade(int maxDocumentSize, int threads) {
+        super(maxDocumentSize);
+        Assert.isTrue(threads > 0, () -> "Number of threads must be positive");
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "simulated-couchbase-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        latency(LatencyDistribution.none());
+    }
+
+    /**
+     * Sets the latency of all types of operation.
+     *
+     * @param latency the latency distribution
+     * @return this facade
+     */
+    public SimulatedClusterFacade latency(LatencyDistribution latency) {
+        for (OperationType type : OperationType.values()) {
+            latency(type, latency);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the latency of one type of operation.
+     *
+     * @param type the type of operation
+     * @param latency the latency distribution
+     * @return this facade
+     */
+    public SimulatedClusterFacade latency(OperationType type, LatencyDistribution latency) {
+        Assert.notNull(latency, () -> "Latency distribution may not be null");
+        latencies.put(type, latency);
+        return this;
+    }
+
+    /**
+     * Lets a fraction of the requests time out.
+     *
+     * @param probability probability that a request times out
+     * @param timeout time after which the request fails
+     * @param unit unit of the timeout
+     * @return this facade
+     */
+    public SimulatedClusterFacade timeouts(double probability, long timeout, TimeUnit unit) {
+        Assert.isTrue(probability >= 0 && probability <= 1, () -> "Probability must be between 0 and 1");
+        this.timeoutProbability = probability;
+        this.timeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Lets a fraction of the writes which are conditional on a CAS value find
+     * the document changed by someone else.
+     *
+     * @param probability probability that such a write conflicts
+     * @return this facade
+     */
+    public SimulatedClusterFacade casConflicts(double probability) {
+        Assert.isTrue(probability >= 0 && probability <= 1, () -> "Probability must be between 0 and 1");
+        this.casConflictProbability = probability;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCasConflictCount() {
+        return casConflictCount.get();
+    }
+
+    /**
+     * Stops delivering responses. Requests still in flight never complete.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+        Subject<CouchbaseResponse, CouchbaseResponse> observable = request.observable();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        requestCount.incrementAndGet();
+        if (random.nextDouble() < timeoutProbability) {
+            timeoutCount.incrementAndGet();
+            boolean applied = random.nextBoolean();
+            scheduler.schedule(() -> {
+                if (applied) {
+                    respond(request, null);
+                }
+                observable.onError(new TimeoutException());
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        } else {
+            LatencyDistribution latency = latencies.get(OperationType.of(request));
+            scheduler.schedule(() -> respond(request, observable), latency.sample(random), TimeUnit.NANOSECONDS);
+        }
+        return (Observable<R>) observable;
+    }
+
+    private void respond(CouchbaseRequest request, Subject<CouchbaseResponse, CouchbaseResponse> observable) {
+        try {
+            long cas = expectedCas(request);
+            if (cas != 0 && ThreadLocalRandom.current().nextDouble() < casConflictProbability
+                    && touch(((BinaryRequest) request).key())) {
+                casConflictCount.incrementAndGet();
+            }
+            CouchbaseResponse response = handle(request);
+            if (observable != null) {
+                observable.onNext(response);
+                observable.onCompleted();
+            }
+        } catch (RuntimeException e) {
+            if (observable != null) {
+                observable.onError(e);
+            } else {
+                log.debug("Timed out request failed", e);
+            }
+        }
+    }
+
+    private static long expectedCas(CouchbaseRequest request) {
+        if (request instanceof ReplaceRequest) {
+            return ((ReplaceRequest) request).cas();
+        } else if (request instanceof RemoveRequest) {
+            return ((RemoveRequest) request).cas();
+        } else if (request instanceof BinarySubdocMultiMutationRequest) {
+            return ((BinarySubdocMultiMutationRequest) request).cas();
+        } else if (request instanceof AbstractSubdocMutationRequest) {
+            return ((AbstractSubdocMutationRequest) request).cas();
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.RequestTooBigException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class SimulatedClusterFacadeTest {
+
+    private SimulatedClusterFacade facade;
+    private Bucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        facade = new SimulatedClusterFacade(1024);
+        bucket = new InMemoryCouchbaseTemplate(facade).getEventBucket();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        facade.shutdown();
+    }
+
+    @Test
+    public void responsesAreDelayedByTheLatencyOfTheOperation() {
+        facade.latency(SimulatedClusterFacade.OperationType.GET, LatencyDistribution.constant(50, TimeUnit.MILLISECONDS));
+        bucket.insert(JsonDocument.create("key", JsonObject.create()));
+
+        long start = System.nanoTime();
+        bucket.get("key");
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(facade.getRequestCount(), equalTo(2L));
+    }
+
+    @Test
+    public void requestsTimeOut() {
+        facade.timeouts(1, 10, TimeUnit.MILLISECONDS);
+
+        assertThrows(RuntimeException.class, () -> bucket.get("key"));
+        assertThat(facade.getTimeoutCount(), equalTo(1L));
+    }
+
+    @Test
+    public void writeConditionalOnCasLosesAgainstConcurrentWriter() {
+        JsonDocument inserted = bucket.insert(JsonDocument.create("key", JsonObject.create().put("value", 1)));
+        facade.casConflicts(1);
+
+        assertThrows(CASMismatchException.class,
+                () -> bucket.replace(JsonDocument.create("key", JsonObject.create().put("value", 2), inserted.cas())));
+        assertThat(facade.getCasConflictCount(), equalTo(1L));
+        assertThat(bucket.get("key").content().getInt("value"), equalTo(1));
+    }
+
+    @Test
+    public void documentLargerThanTheLimitIsRejected() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() <= 1024) {
+            value.append("0123456789");
+        }
+
+        assertThrows(RequestTooBigException.class,
+                () -> bucket.upsert(JsonDocument.create("key", JsonObject.create().put("value", value.toString()))));
+        assertThat(bucket.exists("key"), equalTo(false));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.migration;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.DomainEventData;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class BulkEventImporterTest {
+
+    private static final List<String> AGGREGATES = Arrays.asList("a", "b", "c");
+    private static final int EVENTS_PER_AGGREGATE = 5;
+
+    private final Serializer serializer = new XStreamSerializer();
+    private InMemoryCouchbaseTemplate template;
+    private Bucket bucket;
+    private DocumentPerAggregateStorageStrategy strategy;
+    private BulkEventImporter importer;
+
+    @BeforeEach
+    public void setUp() {
+        template = new InMemoryCouchbaseTemplate();
+        bucket = template.getEventBucket();
+        strategy = new DocumentPerAggregateStorageStrategy();
+        importer = new BulkEventImporter(template, strategy, serializer, 4, 2);
+    }
+
+    @Test
+    public void allEventsAreImportedInTheOrderOfTheirAggregates() {
+        assertThat(importer.importEvents("test", source()), equalTo(15L));
+
+        assertThat(importer.getPosition("test"), equalTo(15L));
+        for (String aggregate : AGGREGATES) {
+            assertThat(sequenceNumbers(aggregate), equalTo(Arrays.asList(0L, 1L, 2L, 3L, 4L)));
+        }
+        assertThat(strategy.findTrackedEvents(bucket, null, 100).size(), equalTo(15));
+    }
+
+    @Test
+    public void importContinuesAfterTheEventsOfAnEarlierRun() {
+        importer.importEvents("test", source().limit(6));
+
+        assertThat(importer.getPosition("test"), equalTo(6L));
+        assertThat(importer.importEvents("test", source()), equalTo(9L));
+        for (String aggregate : AGGREGATES) {
+            assertThat(sequenceNumbers(aggregate), equalTo(Arrays.asList(0L, 1L, 2L, 3L, 4L)));
+        }
+    }
+
+    @Test
+    public void eventsStoredBeyondTheCheckpointAreSkipped() {
+        strategy.appendEvents(bucket, source().filter(event -> event.getAggregateIdentifier().equals("a")).collect(Collectors.toList()),
+                serializer);
+        bucket.upsert(JsonDocument.create("cbes:im:test", JsonObject.create().put("position", 0).put("highWater", 15)));
+
+        assertThat(importer.importEvents("test", source()), equalTo(10L));
+        assertThat(sequenceNumbers("a"), equalTo(Arrays.asList(0L, 1L, 2L, 3L, 4L)));
+        assertThat(importer.getPosition("test"), equalTo(15L));
+    }
+
+    private List<Long> sequenceNumbers(String aggregate) {
+        return strategy.findDomainEvents(bucket, aggregate, 0, 100).stream()
+                .map(DomainEventData::getSequenceNumber)
+                .collect(Collectors.toList());
+    }
+
+    private static Stream<DomainEventMessage<?>> source() {
+        return LongStream.range(0, EVENTS_PER_AGGREGATE).boxed()
+                .<DomainEventMessage<?>>flatMap(sequenceNumber -> AGGREGATES.stream().map(aggregate -> new GenericDomainEventMessage<>("type", aggregate,
+                        sequenceNumber, "payload", MetaData.emptyInstance(), aggregate + "-" + sequenceNumber, Instant.now())));
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Bj&ouml;rn Oscarsson.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.couchbase.client.java.Bucket;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.documentperaggregate.DocumentPerAggregateStorageStrategy;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.inmemory.InMemoryCouchbaseTemplate;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.CouchbaseStoreMonitor.Operation;
+import com.github.haxorof.axon.couchbase.eventsourcing.eventstore.monitoring.StatisticsCouchbaseStoreMonitor.OperationStatistics;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Bj&ouml;rn Oscarsson
+ */
+public class StatisticsCouchbaseStoreMonitorTest {
+
+    private final Serializer serializer = new XStreamSerializer();
+    private Bucket bucket;
+    private DocumentPerAggregateStorageStrategy strategy;
+
+    @BeforeEach
+    public void setUp() {
+        bucket = new InMemoryCouchbaseTemplate().getEventBucket();
+        strategy = new DocumentPerAggregateStorageStrategy();
+    }
+
+    @Test
+    public void appendAndReadAreMeasured() {
+        StatisticsCouchbaseStoreMonitor monitor = new StatisticsCouchbaseStoreMonitor();
+        strategy.setMonitor(monitor);
+
+        strategy.appendEvents(bucket, events(0, 3), serializer);
+        strategy.findDomainEvents(bucket, "aggregate", 0, 100);
+
+        OperationStatistics append = monitor.getStatistics(Operation.APPEND_EVENTS);
+        assertThat(append.getCount(), equalTo(1L));
+        assertThat(append.getEvents().getSum(), equalTo(3L));
+        assertTrue(append.getRequests().getSum() > 0);
+        OperationStatistics read = monitor.getStatistics(Operation.READ_EVENTS);
+        assertThat(read.getCount(), equalTo(1L));
+        assertThat(read.getEvents().getSum(), equalTo(3L));
+        assertTrue(read.getRequests().getSum() > 0);
+        assertThat(monitor.getStatistics(Operation.READ_SNAPSHOT).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void sizesAreOnlyMeasuredWhenAskedFor() {
+        StatisticsCouchbaseStoreMonitor monitor = new StatisticsCouchbaseStoreMonitor();
+        strategy.setMonitor(monitor);
+        strategy.appendEvents(bucket, events(0, 3), serializer);
+        strategy.findDomainEvents(bucket, "aggregate", 0, 100);
+
+        StatisticsCouchbaseStoreMonitor sizes = new StatisticsCouchbaseStoreMonitor(true);
+        strategy.setMonitor(sizes);
+        strategy.appendEvents(bucket, events(3, 1), serializer);
+        strategy.findDomainEvents(bucket, "aggregate", 0, 100);
+
+        assertThat(monitor.getStatistics(Operation.APPEND_EVENTS).getBytesWritten(), equalTo(0L));
+        assertThat(monitor.getStatistics(Operation.READ_EVENTS).getBytesRead(), equalTo(0L));
+        assertThat(monitor.getStatistics(Operation.READ_EVENTS).getDocumentSizes().getCount(), equalTo(0L));
+        assertTrue(sizes.getStatistics(Operation.APPEND_EVENTS).getBytesWritten() > 0);
+        assertTrue(sizes.getStatistics(Operation.READ_EVENTS).getBytesRead() > 0);
+        assertTrue(sizes.getStatistics(Operation.READ_EVENTS).getDocumentSizes().getCount() > 0);
+    }
+
+    @Test
+    public void failedOperationIsCounted() {
+        StatisticsCouchbaseStoreMonitor monitor = new StatisticsCouchbaseStoreMonitor();
+        strategy.setMonitor(monitor);
+        strategy.appendEvents(bucket, events(0, 2), serializer);
+
+        assertThrows(RuntimeException.class, () -> strategy.appendEvents(bucket, events(0, 1), serializer));
+
+        assertThat(monitor.getStatistics(Operation.APPEND_EVENTS).getCount(), equalTo(2L));
+        assertThat(monitor.getStatistics(Operation.APPEND_EVENTS).getFailures(), equalTo(1L));
+    }
+
+    private static List<DomainEventMessage<?>> events(long first, int count) {
+        return LongStream.range(first, first + count)
+                .mapToObj(sequenceNumber -> new GenericDomainEventMessage<>("type", "aggregate", sequenceNumber,
+                        "payload-" + sequenceNumber, MetaData.emptyInstance(), "aggregate-" + sequenceNumber, Instant.now()))
+                .collect(Collectors.toList());
+    }
+
+}